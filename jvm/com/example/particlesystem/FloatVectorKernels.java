@@ -0,0 +1,143 @@
+/** File:		FloatVectorKernels.java
+ ** Author:		Dongli Zhang
+ ** Contact:	dongli.zhang0129@gmail.com
+ **
+ ** Copyright (C) Dongli Zhang 2013
+ **
+ ** This program is free software;  you can redistribute it and/or modify
+ ** it under the terms of the GNU General Public License as published by
+ ** the Free Software Foundation; either version 2 of the License, or
+ ** (at your option) any later version.
+ **
+ ** This program is distributed in the hope that it will be useful,
+ ** but WITHOUT ANY WARRANTY;  without even the implied warranty of
+ ** MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See
+ ** the GNU General Public License for more details.
+ **
+ ** You should have received a copy of the GNU General Public License
+ ** along with this program;  if not, write to the Free Software 
+ ** Foundation, 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA
+ */
+
+package com.example.particlesystem;
+
+import jdk.incubator.vector.FloatVector;
+import jdk.incubator.vector.VectorMask;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorSpecies;
+
+/* NeighborKernels in the lanes of the preferred FloatVector of the machine.
+ * The candidates come contiguous in a NeighborBlock, always whole vectors
+ * since they are padded, a lane mask keeps the pairs within the kernel length
+ * and the masked lanes are summed. The lanes add up in a different order than
+ * the scalar loop, the sums agree to float rounding.
+ * Loads gather through the slots instead (FloatVector.fromArray with an index
+ * map) were slower than the copy into the block, allocated on every call once
+ * the force pass outgrew what C2 inlines, and crashed 17.0.9 in compiled code.
+ * Until C2 has compiled them the calls allocate their vectors, they need a few
+ * hundred steps where the scalar loops need 100, e.g. AllocationCheck -warmup 500.
+ *
+ * Needs a JVM with the incubating Vector API, compiled and run with
+ * --add-modules jdk.incubator.vector:
+ *   javac --release 17 --add-modules jdk.incubator.vector -cp <classes> -d <classes> jvm/com/example/particlesystem/*.java
+ * Not part of the Android build.
+ */
+public class FloatVectorKernels implements NeighborKernels
+{
+	private static final VectorSpecies<Float> SPECIES = FloatVector.SPECIES_PREFERRED;
+	
+	private float kernel;
+	private float kernel2;
+	private float mass;
+	private float viscosity;
+	private float poly6Coef;
+	private float spikyCoef;
+	private float viscoCoef;
+	
+	public void SetConstants(float h, float m, float visc, SPHKernel kf)
+	{
+		kernel = h;
+		kernel2 = h*h;
+		mass = m;
+		viscosity = visc;
+		poly6Coef = kf.GetPoly6Coef();
+		spikyCoef = kf.GetSpikyCoef();
+		viscoCoef = kf.GetViscoCoef();
+	}
+	
+	public float Density(NeighborBlock block, ParticleStore ps, int k)
+	{
+		float[] posX = block.posX;
+		float[] posY = block.posY;
+		int count = block.count;
+		float x = ps.posX[k];
+		float y = ps.posY[k];
+		FloatVector sum = FloatVector.zero(SPECIES);
+		
+		for(int n=0; n<count; n+=SPECIES.length())
+		{
+			FloatVector dx = FloatVector.fromArray(SPECIES, posX, n).sub(x);
+			FloatVector dy = FloatVector.fromArray(SPECIES, posY, n).sub(y);
+			FloatVector dist2 = dx.mul(dx).add(dy.mul(dy));
+			VectorMask<Float> near = dist2.compare(VectorOperators.GE, MIN_DIST2)
+					.and(dist2.compare(VectorOperators.LT, kernel2));
+			
+			// poly6 without its constant factor
+			FloatVector d = dist2.neg().add(kernel2);
+			sum = sum.add(d.mul(d).mul(d), near);
+		}
+		return mass*poly6Coef*sum.reduceLanes(VectorOperators.ADD);
+	}
+	
+	public void Force(NeighborBlock block, ParticleStore ps, int k, float[] acc)
+	{
+		float[] posX = block.posX;
+		float[] posY = block.posY;
+		float[] pres = block.pres;
+		float[] evX = block.evX;
+		float[] evY = block.evY;
+		int count = block.count;
+		float x = ps.posX[k];
+		float y = ps.posY[k];
+		float pp = ps.pres[k];
+		float vx = ps.evX[k];
+		float vy = ps.evY[k];
+		float v = mass/ps.dens[k];
+		float pressureScale = v*spikyCoef;
+		float viscosityScale = v*viscosity*viscoCoef;
+		FloatVector ax = FloatVector.zero(SPECIES);
+		FloatVector ay = ax;
+		
+		for(int n=0; n<count; n+=SPECIES.length())
+		{
+			FloatVector dx = FloatVector.fromArray(SPECIES, posX, n).sub(x);
+			FloatVector dy = FloatVector.fromArray(SPECIES, posY, n).sub(y);
+			FloatVector dist2 = dx.mul(dx).add(dy.mul(dy));
+			VectorMask<Float> near = dist2.compare(VectorOperators.GE, MIN_DIST2)
+					.and(dist2.compare(VectorOperators.LT, kernel2));
+			
+			// the masked out lanes may divide by 0, they are never added
+			FloatVector dist = dist2.sqrt();
+			FloatVector d = dist.neg().add(kernel);
+			
+			// pressure: spiky gradient along the distance vector
+			FloatVector p = FloatVector.fromArray(SPECIES, pres, n).add(pp);
+			FloatVector pressure = p.mul(d).mul(d).mul(pressureScale).div(dist);
+			
+			// viscosity: visco laplacian times the relative velocity
+			FloatVector visc = d.mul(viscosityScale);
+			FloatVector rvx = FloatVector.fromArray(SPECIES, evX, n).sub(vx);
+			FloatVector rvy = FloatVector.fromArray(SPECIES, evY, n).sub(vy);
+			
+			ax = ax.add(rvx.mul(visc).sub(dx.mul(pressure)), near);
+			ay = ay.add(rvy.mul(visc).sub(dy.mul(pressure)), near);
+		}
+		acc[0] = ax.reduceLanes(VectorOperators.ADD);
+		acc[1] = ay.reduceLanes(VectorOperators.ADD);
+	}
+	
+	public int GetLanes()
+	{
+		return SPECIES.length();
+	}
+}
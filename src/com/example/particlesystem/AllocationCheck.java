@@ -0,0 +1,111 @@
+/** File:		AllocationCheck.java
+ ** Author:		Dongli Zhang
+ ** Contact:	dongli.zhang0129@gmail.com
+ **
+ ** Copyright (C) Dongli Zhang 2013
+ **
+ ** This program is free software;  you can redistribute it and/or modify
+ ** it under the terms of the GNU General Public License as published by
+ ** the Free Software Foundation; either version 2 of the License, or
+ ** (at your option) any later version.
+ **
+ ** This program is distributed in the hope that it will be useful,
+ ** but WITHOUT ANY WARRANTY;  without even the implied warranty of
+ ** MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See
+ ** the GNU General Public License for more details.
+ **
+ ** You should have received a copy of the GNU General Public License
+ ** along with this program;  if not, write to the Free Software 
+ ** Foundation, 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA
+ */
+
+package com.example.particlesystem;
+
+/* Fails if a step of the simulation allocates once it is warm:
+ *
+ *   java -cp bin/classes com.example.particlesystem.AllocationCheck -steps 400 -fling 3
+ *
+ * takes the options of HeadlessRunner and builds the same scene. After the
+ * warmup steps each step is measured on its own by an AllocationGuard that
+ * watches this thread and the worker pool. Exits with 1 if any step allocated,
+ * 0 if none did or the VM cannot count allocations.
+ */
+public class AllocationCheck
+{
+	private final HeadlessRunner runner;
+	
+	public AllocationCheck(HeadlessRunner r)
+	{
+		runner = r;
+	}
+	
+	public static void main(String[] args)
+	{
+		HeadlessRunner r = new HeadlessRunner();
+		if(!r.ParseArgs(args))
+		{
+			System.err.println("usage: AllocationCheck [options of HeadlessRunner]");
+			HeadlessRunner.PrintUsage();
+			System.exit(2);
+		}
+		if(!new AllocationCheck(r).Run())
+		{
+			System.exit(1);
+		}
+	}
+	
+	// false if a measured step allocated
+	public boolean Run()
+	{
+		ParticleSimulation sim = runner.CreateSimulation();
+		int warmup = runner.GetWarmup();
+		int steps = runner.GetSteps();
+		
+		// profile the warmup too, so the measured steps run code that is already warm
+		sim.SetProfiling(true);
+		for(int i=0; i<warmup; i++)
+		{
+			runner.Step(sim, i);
+		}
+		
+		Thread[] workers = sim.GetWorkerThreads();
+		Thread[] watched = new Thread[workers.length+1];
+		watched[0] = Thread.currentThread();
+		System.arraycopy(workers, 0, watched, 1, workers.length);
+		AllocationGuard guard = new AllocationGuard(watched);
+		// without a pool the warmup never touches WorkerPool, and compiled code would
+		// load it in the middle of a measured step the first time it needs it
+		guard.Preload(new Class<?>[] { WorkerPool.class });
+		
+		int allocatingSteps = 0;
+		long allocated = 0;
+		for(int i=0; i<steps; i++)
+		{
+			long b = guard.Begin();
+			runner.Step(sim, warmup+i);
+			long n = guard.End(b);
+			if(n > 0)
+			{
+				allocated += n;
+				allocatingSteps++;
+			}
+		}
+		sim.SetProfiling(false);
+		sim.Shutdown();
+		
+		if(!guard.IsSupported())
+		{
+			System.out.println("allocation guard: not supported on this VM, skipped");
+		}
+		else if(allocatingSteps > 0)
+		{
+			System.out.println("allocation guard: FAILED, "+allocatingSteps+" of "+steps+" steps allocated "+allocated+" bytes");
+			return false;
+		}
+		else
+		{
+			System.out.println("allocation guard: passed, 0 bytes allocated in "+steps+" steps");
+		}
+		return true;
+	}
+}
@@ -0,0 +1,154 @@
+/** File:		AllocationGuard.java
+ ** Author:		Dongli Zhang
+ ** Contact:	dongli.zhang0129@gmail.com
+ **
+ ** Copyright (C) Dongli Zhang 2013
+ **
+ ** This program is free software;  you can redistribute it and/or modify
+ ** it under the terms of the GNU General Public License as published by
+ ** the Free Software Foundation; either version 2 of the License, or
+ ** (at your option) any later version.
+ **
+ ** This program is distributed in the hope that it will be useful,
+ ** but WITHOUT ANY WARRANTY;  without even the implied warranty of
+ ** MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See
+ ** the GNU General Public License for more details.
+ **
+ ** You should have received a copy of the GNU General Public License
+ ** along with this program;  if not, write to the Free Software 
+ ** Foundation, 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA
+ */
+
+package com.example.particlesystem;
+
+import java.lang.reflect.Method;
+
+/* Counts the heap bytes allocated by a set of threads, using the
+ * allocated-bytes counters of the HotSpot ThreadMXBean. The bean is looked up
+ * by reflection because java.lang.management does not exist on Android; there
+ * IsSupported() is false. The reflective call gets one argument array for
+ * good, so what the measurement itself allocates (the result array) does not
+ * depend on how the JIT compiled it; that constant is calibrated away, so a
+ * section that allocates nothing measures 0.
+ *
+ * Loading a class allocates too. A class the warm-up never touched is loaded
+ * by the first measured section that needs it, so Preload() takes those the
+ * caller knows about before measuring.
+ */
+public class AllocationGuard
+{
+	private Object bean;     // com.sun.management.ThreadMXBean
+	private Method method;   // getThreadAllocatedBytes(long[])
+	private long[] ids;      // threads to watch
+	private Object[] args;   // { ids }, made once rather than a varargs array per call
+	private long overhead;   // bytes allocated by one Begin()/End() pair
+	
+	public AllocationGuard(Thread[] threads)
+	{
+		ids = new long[threads.length];
+		for(int i=0; i<threads.length; i++)
+		{
+			ids[i] = threads[i].getId();
+		}
+		args = new Object[] { ids };
+		
+		try
+		{
+			Class<?> factory = Class.forName("java.lang.management.ManagementFactory");
+			Object b = factory.getMethod("getThreadMXBean").invoke(null);
+			Class<?> sunBean = Class.forName("com.sun.management.ThreadMXBean");
+			if(!sunBean.isInstance(b))
+			{
+				return;
+			}
+			sunBean.getMethod("setThreadAllocatedMemoryEnabled", boolean.class).invoke(b, true);
+			method = sunBean.getMethod("getThreadAllocatedBytes", long[].class);
+			bean = b;
+		}
+		catch(Exception e)
+		{
+			// not a HotSpot JVM
+			bean = null;
+			return;
+		}
+		
+		// let the reflective call settle, then measure what an empty section costs;
+		// the least of them, since anything above it is counted against the section
+		for(int i=0; i<100; i++)
+		{
+			End(Begin());
+		}
+		long min = Long.MAX_VALUE;
+		for(int i=0; i<100; i++)
+		{
+			long b = Begin();
+			long n = Read()-b;
+			if(n < min)
+			{
+				min = n;
+			}
+		}
+		overhead = min;
+	}
+	
+	// load and initialize classes the warm-up may not have touched, such as
+	// WorkerPool when the simulation runs without one
+	public void Preload(Class<?>[] classes)
+	{
+		for(int i=0; i<classes.length; i++)
+		{
+			try
+			{
+				Class.forName(classes[i].getName(), true, classes[i].getClassLoader());
+			}
+			catch(ClassNotFoundException e)
+			{
+				// it was loaded to get here
+			}
+		}
+	}
+	
+	public boolean IsSupported()
+	{
+		return bean != null;
+	}
+	
+	// start a measured section
+	public long Begin()
+	{
+		return Read();
+	}
+	
+	// bytes allocated by the watched threads since Begin() returned begin
+	public long End(long begin)
+	{
+		long n = Read()-begin-overhead;
+		return n > 0 ? n : 0;
+	}
+	
+	private long Read()
+	{
+		if(bean == null)
+		{
+			return 0;
+		}
+		
+		try
+		{
+			long[] bytes = (long[]) method.invoke(bean, args);
+			long sum = 0;
+			for(int i=0; i<bytes.length; i++)
+			{
+				if(bytes[i] > 0)
+				{
+					sum += bytes[i];
+				}
+			}
+			return sum;
+		}
+		catch(Exception e)
+		{
+			return 0;
+		}
+	}
+}
@@ -0,0 +1,39 @@
+/** File:		AndroidLogSink.java
+ ** Author:		Dongli Zhang
+ ** Contact:	dongli.zhang0129@gmail.com
+ **
+ ** Copyright (C) Dongli Zhang 2013
+ **
+ ** This program is free software;  you can redistribute it and/or modify
+ ** it under the terms of the GNU General Public License as published by
+ ** the Free Software Foundation; either version 2 of the License, or
+ ** (at your option) any later version.
+ **
+ ** This program is distributed in the hope that it will be useful,
+ ** but WITHOUT ANY WARRANTY;  without even the implied warranty of
+ ** MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See
+ ** the GNU General Public License for more details.
+ **
+ ** You should have received a copy of the GNU General Public License
+ ** along with this program;  if not, write to the Free Software 
+ ** Foundation, 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA
+ */
+
+
+package com.example.particlesystem;
+
+import android.util.Log;
+
+// forwards the messages of the simulation core to logcat
+public class AndroidLogSink implements SPHLog.Sink
+{
+	public void Info(String tag, String msg)
+	{
+		Log.i(tag, msg);
+	}
+	
+	public void Error(String tag, String msg)
+	{
+		Log.e(tag, msg);
+	}
+}
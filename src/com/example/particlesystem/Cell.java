@@ -21,16 +21,32 @@
 
 package com.example.particlesystem;
 
-import java.util.LinkedList;
-
+// Debug view of one grid cell, filled on demand by CellGrid.GetCell().
+// The simulation itself reads the flat cellStart/cellCount arrays of the grid.
 public class Cell {
-	// particle linked list of each cell
-	// We assign particle to each cell according to the position of each particle
-	public LinkedList<Particle> list;
+	// slots of the particles in the cell
+	public int[] list;
+	public int num;
 	
 	public Cell()
 	{
-		list = new LinkedList<Particle>();
-		list.clear();
+		list = new int[4];
+		num = 0;
+	}
+	
+	public void Clear()
+	{
+		num = 0;
+	}
+	
+	public void Add(int slot)
+	{
+		if(num == list.length)
+		{
+			int[] l = new int[list.length*2];
+			System.arraycopy(list, 0, l, 0, num);
+			list = l;
+		}
+		list[num++] = slot;
 	}
 }
@@ -0,0 +1,178 @@
+/** File:		CellGrid.java
+ ** Author:		Dongli Zhang
+ ** Contact:	dongli.zhang0129@gmail.com
+ **
+ ** Copyright (C) Dongli Zhang 2013
+ **
+ ** This program is free software;  you can redistribute it and/or modify
+ ** it under the terms of the GNU General Public License as published by
+ ** the Free Software Foundation; either version 2 of the License, or
+ ** (at your option) any later version.
+ **
+ ** This program is distributed in the hope that it will be useful,
+ ** but WITHOUT ANY WARRANTY;  without even the implied warranty of
+ ** MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See
+ ** the GNU General Public License for more details.
+ **
+ ** You should have received a copy of the GNU General Public License
+ ** along with this program;  if not, write to the Free Software 
+ ** Foundation, 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA
+ */
+
+package com.example.particlesystem;
+
+/* Cells of side cellSize holding the particle slots, rebuilt every step.
+ * Cell (x, y) covers [x*cellSize, (x+1)*cellSize) in both axes. After Build(),
+ * the slots of the particles in cell h are
+ * index[cellStart[h]] ... index[cellStart[h]+cellCount[h]-1], in ascending slot order,
+ * for 0 <= h < GetTotCell(). How (x, y) maps to h is up to the subclass.
+ * A query visits the square of cells around the cell of the position.
+ */
+public abstract class CellGrid implements NeighborSearch
+{
+	protected static final int LOCALITY_WINDOW = 16; // slots that count as close in memory, a few cache lines of floats
+	
+	protected float cellSize;  // size of each cell
+	
+	public int[] cellStart;    // first entry of each cell in index
+	public int[] cellCount;    // number of particles in each cell
+	public int[] index;        // particle slots sorted by cell
+	public int[] particleCell; // cell hash of each particle slot
+	
+	public float GetCellSize()
+	{
+		return cellSize;
+	}
+	
+	// cell coordinate of a position, rounds down so negative positions work too
+	public int CellCoord(float v)
+	{
+		return FastMath.Floor(v/cellSize);
+	}
+	
+	// ceil(r/cellSize) for r >= 0
+	public int CellReach(float r)
+	{
+		return FastMath.Ceil(r/cellSize);
+	}
+	
+	public int[] GetIndex()
+	{
+		return index;
+	}
+	
+	// the cells within ceil(r/cellSize) of the cell of (x, y), x outer and y inner
+	public int Query(float x, float y, float r, int[] ranges)
+	{
+		int cellPosX = CellCoord(x);
+		int cellPosY = CellCoord(y);
+		int reach = CellReach(r);
+		int n = 0;
+		
+		for(int i=-reach; i<=reach; i++)
+		{
+			for(int j=-reach; j<=reach; j++)
+			{
+				int hash = CalcCellHash(cellPosX+i, cellPosY+j);
+				if(hash == -1 || cellCount[hash] == 0) continue;
+				
+				ranges[2*n]   = cellStart[hash];
+				ranges[2*n+1] = cellStart[hash] + cellCount[hash];
+				n++;
+			}
+		}
+		
+		return n;
+	}
+	
+	public int GetMaxRanges(float r)
+	{
+		int side = 2*CellReach(r) + 1;
+		return side*side;
+	}
+	
+	// number of cell hashes in use, the per cell phases run over [0, GetTotCell())
+	public abstract int GetTotCell();
+	
+	// given the x and y of cell in grid system, return the hash of cell, -1 if there is none
+	public abstract int CalcCellHash(int x, int y);
+	
+	// cell coordinates of a hash returned by CalcCellHash
+	public abstract int GetCellX(int hash);
+	public abstract int GetCellY(int hash);
+	
+	// count the slot jumps of the walk over cells[0 .. numCells-1], null walks them by hash,
+	// 0 right after a Z-order sort, towards 1 as the neighborhoods get scattered
+	protected float ScatterOf(int[] cells, int numCells, int num)
+	{
+		int far = 0;
+		int prev = 0;
+		for(int m=0; m<numCells; m++)
+		{
+			int h = cells == null ? m : cells[m];
+			int end = cellStart[h] + cellCount[h];
+			for(int s=cellStart[h]; s<end; s++)
+			{
+				int slot = index[s];
+				int jump = slot-prev;
+				if(jump > LOCALITY_WINDOW || jump < -LOCALITY_WINDOW)
+				{
+					far++;
+				}
+				prev = slot;
+			}
+		}
+		
+		return num == 0 ? 0.0f : (float)far/num;
+	}
+	
+	// append the slots of cells[0 .. numCells-1] to order, see MortonOrder
+	protected void OrderOf(int[] cells, int numCells, int[] order)
+	{
+		int n = 0;
+		for(int m=0; m<numCells; m++)
+		{
+			int h = cells[m];
+			int end = cellStart[h] + cellCount[h];
+			for(int s=cellStart[h]; s<end; s++)
+			{
+				order[n++] = index[s];
+			}
+		}
+	}
+	
+	// spread the low 16 bits of v to the even bits of a Morton code
+	protected static int Spread(int v)
+	{
+		v &= 0x0000ffff;
+		v = (v | (v << 8)) & 0x00ff00ff;
+		v = (v | (v << 4)) & 0x0f0f0f0f;
+		v = (v | (v << 2)) & 0x33333333;
+		v = (v | (v << 1)) & 0x55555555;
+		return v;
+	}
+	
+	// gather the even bits of a Morton code
+	protected static int Compact(int v)
+	{
+		v &= 0x55555555;
+		v = (v | (v >>> 1)) & 0x33333333;
+		v = (v | (v >>> 2)) & 0x0f0f0f0f;
+		v = (v | (v >>> 4)) & 0x00ff00ff;
+		v = (v | (v >>> 8)) & 0x0000ffff;
+		return v;
+	}
+	
+	// debug view of one cell, fills and returns c
+	public Cell GetCell(int hash, Cell c)
+	{
+		c.Clear();
+		int end = cellStart[hash] + cellCount[hash];
+		for(int s=cellStart[hash]; s<end; s++)
+		{
+			c.Add(index[s]);
+		}
+		
+		return c;
+	}
+}
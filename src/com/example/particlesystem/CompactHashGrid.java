@@ -0,0 +1,266 @@
+/** File:		CompactHashGrid.java
+ ** Author:		Dongli Zhang
+ ** Contact:	dongli.zhang0129@gmail.com
+ **
+ ** Copyright (C) Dongli Zhang 2013
+ **
+ ** This program is free software;  you can redistribute it and/or modify
+ ** it under the terms of the GNU General Public License as published by
+ ** the Free Software Foundation; either version 2 of the License, or
+ ** (at your option) any later version.
+ **
+ ** This program is distributed in the hope that it will be useful,
+ ** but WITHOUT ANY WARRANTY;  without even the implied warranty of
+ ** MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See
+ ** the GNU General Public License for more details.
+ **
+ ** You should have received a copy of the GNU General Public License
+ ** along with this program;  if not, write to the Free Software 
+ ** Foundation, 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA
+ */
+
+package com.example.particlesystem;
+
+/* Grid that stores only the occupied cells, so memory scales with the number
+ * of particles instead of the world area and cell coordinates are unbounded,
+ * negative ones included. An open-addressing table with linear probing maps
+ * (x, y) to a dense cell hash 0 ... GetTotCell()-1, numbered in the order the
+ * cells are first met in the slots. The table holds at least twice as many
+ * entries as there are particles, so it never fills up within a Build().
+ * Nothing is allocated per frame unless the particle count grows.
+ */
+public class CompactHashGrid extends CellGrid
+{
+	private static final int MIN_TABLE = 64;
+	
+	private long[] tableKey;   // packed (x, y) of each table entry
+	private int[] tableCell;   // cell hash of each table entry, -1 if empty
+	private int mask;          // table size - 1, the size is a power of two
+	
+	private int numCells;      // occupied cells at the last build
+	private int[] cellX;       // cell coordinates of each cell hash
+	private int[] cellY;
+	private int[] cellEntry;   // table entry of each cell hash, to clear the table quickly
+	
+	private int[] cursor;      // scratch insertion point of each cell
+	private long[] sortKeys;   // scratch Morton code and hash of each cell
+	
+	public CompactHashGrid(float size)
+	{
+		cellSize = size;
+		Allocate(0);
+	}
+	
+	// room for num particles, each in its own cell at worst
+	private void Allocate(int num)
+	{
+		int size = MIN_TABLE;
+		while(size < 2*num)
+		{
+			size <<= 1;
+		}
+		tableKey  = new long[size];
+		tableCell = new int[size];
+		mask = size-1;
+		for(int t=0; t<size; t++)
+		{
+			tableCell[t] = -1;
+		}
+		
+		cellStart = new int[num];
+		cellCount = new int[num];
+		cellX     = new int[num];
+		cellY     = new int[num];
+		cellEntry = new int[num];
+		cursor    = new int[num];
+		index        = new int[num];
+		particleCell = new int[num];
+		numCells = 0;
+	}
+	
+	public int GetTotCell()
+	{
+		return numCells;
+	}
+	
+	public int CalcCellHash(int x, int y)
+	{
+		return tableCell[Probe(x, y)];
+	}
+	
+	public int GetCellX(int hash)
+	{
+		return cellX[hash];
+	}
+	
+	public int GetCellY(int hash)
+	{
+		return cellY[hash];
+	}
+	
+	private static long Key(int x, int y)
+	{
+		return ((long)x << 32) | (y & 0xffffffffL);
+	}
+	
+	// table entry of cell (x, y), or the empty entry where it would go
+	private int Probe(int x, int y)
+	{
+		int h = x*0x9e3779b1 ^ y*0x85ebca6b;
+		h ^= h >>> 15;
+		int t = h & mask;
+		long key = Key(x, y);
+		while(tableCell[t] != -1 && tableKey[t] != key)
+		{
+			t = (t+1) & mask;
+		}
+		return t;
+	}
+	
+	// counting sort all particles of ps into the occupied cells
+	public void Build(ParticleStore ps, int num)
+	{
+		if(index.length < num)
+		{
+			Allocate(num);
+		}
+		
+		// forget the cells of the last build
+		for(int c=0; c<numCells; c++)
+		{
+			tableCell[cellEntry[c]] = -1;
+		}
+		numCells = 0;
+		
+		float[] posX = ps.posX;
+		float[] posY = ps.posY;
+		
+		// find or insert the cell of each particle and count its particles
+		int lastX = 0;
+		int lastY = 0;
+		int last = -1;
+		for(int i=0; i<num; i++)
+		{
+			int x = CellCoord(posX[i]);
+			int y = CellCoord(posY[i]);
+			
+			// neighbors in the store are often in the same cell, skip the probe
+			if(last == -1 || x != lastX || y != lastY)
+			{
+				int t = Probe(x, y);
+				last = tableCell[t];
+				if(last == -1)
+				{
+					last = numCells++;
+					tableKey[t] = Key(x, y);
+					tableCell[t] = last;
+					cellX[last] = x;
+					cellY[last] = y;
+					cellEntry[last] = t;
+					cellCount[last] = 0;
+				}
+				lastX = x;
+				lastY = y;
+			}
+			
+			particleCell[i] = last;
+			cellCount[last]++;
+		}
+		
+		// prefix sum gives the start of each cell
+		int sum = 0;
+		for(int c=0; c<numCells; c++)
+		{
+			cellStart[c] = sum;
+			cursor[c] = sum;
+			sum += cellCount[c];
+		}
+		
+		// scatter the slots, stable so each cell stays in slot order
+		for(int i=0; i<num; i++)
+		{
+			index[cursor[particleCell[i]]++] = i;
+		}
+	}
+	
+	// the cells are numbered in slot order, which follows the Z-order right after a
+	// sort, so walking them by hash measures the same drift as a Z-order walk
+	public float Scatter(int num)
+	{
+		return ScatterOf(null, numCells, num);
+	}
+	
+	public void MortonOrder(int[] order)
+	{
+		if(sortKeys == null || sortKeys.length < numCells)
+		{
+			sortKeys = new long[cellStart.length];
+		}
+		
+		// Morton code of the coordinates biased to 16 bits above the hash, both unsigned
+		for(int c=0; c<numCells; c++)
+		{
+			int code = Spread(cellX[c]+32768) | (Spread(cellY[c]+32768) << 1);
+			sortKeys[c] = ((code & 0xffffffffL) << 31) | c;
+		}
+		HeapSort(sortKeys, numCells);
+		
+		int n = 0;
+		for(int m=0; m<numCells; m++)
+		{
+			int h = (int)(sortKeys[m] & 0x7fffffffL);
+			int end = cellStart[h] + cellCount[h];
+			for(int s=cellStart[h]; s<end; s++)
+			{
+				order[n++] = index[s];
+			}
+		}
+	}
+	
+	// in place, so the reorder pass does not allocate
+	private static void HeapSort(long[] a, int n)
+	{
+		for(int i=n/2-1; i>=0; i--)
+		{
+			SiftDown(a, i, n);
+		}
+		for(int end=n-1; end>0; end--)
+		{
+			long t = a[0];
+			a[0] = a[end];
+			a[end] = t;
+			SiftDown(a, 0, end);
+		}
+	}
+	
+	private static void SiftDown(long[] a, int i, int n)
+	{
+		long v = a[i];
+		while(true)
+		{
+			int child = 2*i+1;
+			if(child >= n)
+			{
+				break;
+			}
+			if(child+1 < n && a[child+1] > a[child])
+			{
+				child++;
+			}
+			if(a[child] <= v)
+			{
+				break;
+			}
+			a[i] = a[child];
+			i = child;
+		}
+		a[i] = v;
+	}
+	
+	public long GetMemoryBytes()
+	{
+		long ints = tableCell.length + 6L*cellStart.length + index.length + particleCell.length;
+		long longs = tableKey.length + (sortKeys == null ? 0 : sortKeys.length);
+		return 4L*ints + 8L*longs;
+	}
+}
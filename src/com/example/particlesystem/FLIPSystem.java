@@ -0,0 +1,939 @@
+/** File:		FLIPSystem.java
+ ** Author:		Dongli Zhang
+ ** Contact:	dongli.zhang0129@gmail.com
+ **
+ ** Copyright (C) Dongli Zhang 2013
+ **
+ ** This program is free software;  you can redistribute it and/or modify
+ ** it under the terms of the GNU General Public License as published by
+ ** the Free Software Foundation; either version 2 of the License, or
+ ** (at your option) any later version.
+ **
+ ** This program is distributed in the hope that it will be useful,
+ ** but WITHOUT ANY WARRANTY;  without even the implied warranty of
+ ** MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See
+ ** the GNU General Public License for more details.
+ **
+ ** You should have received a copy of the GNU General Public License
+ ** along with this program;  if not, write to the Free Software 
+ ** Foundation, 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA
+ */
+
+package com.example.particlesystem;
+
+import java.nio.FloatBuffer;
+
+/* Hybrid particle-in-cell / FLIP fluid, an alternative to SPHSystem for large
+ * particle counts. The particles carry the velocity, the grid enforces the
+ * incompressibility, so the cost per step grows with the particles and the
+ * cells instead of the particle pairs.
+ * Each step splats the particle velocities onto a MAC grid (u on the vertical,
+ * v on the horizontal cell faces), adds gravity and the touch, makes the velocity
+ * divergence free in the fluid cells with a MIC(0) preconditioned conjugate
+ * gradient solve of the pressure, and hands the change of the grid velocity
+ * back to the particles, blended with a little PIC to damp the noise. The
+ * particles then move through the grid velocity with a midpoint step. The world
+ * box is solid on all four sides, cells without a particle are air.
+ * Nothing is allocated per step once the particles are in.
+ */
+public class FLIPSystem implements ParticleSimulation
+{
+	// phases of animation(), for profiling
+	public static final int PHASE_TRANSFER  = 0; // particle velocities onto the grid
+	public static final int PHASE_FORCES    = 1; // gravity, touch and walls on the grid
+	public static final int PHASE_PRESSURE  = 2; // pressure projection
+	public static final int PHASE_ADVECTION = 3; // grid velocities back onto the particles, move them
+	public static final int NUM_PHASES      = 4;
+	public static final int PHASE_STEP      = 4; // the whole step, recorded after the phases
+	public static final String[] PHASE_NAMES = {"transfer", "forces", "pressure", "advection", "step"};
+	
+	public static final float FLIP_RATIO        = 0.95f; // FLIP share of the new particle velocity, the rest is PIC
+	public static final int DEFAULT_ITERATIONS  = 200;   // iteration cap of the pressure solve
+	public static final float DEFAULT_TOLERANCE = 1e-3f; // largest divergence left, of the largest one before
+	public static final int EXTRAPOLATE_LAYERS  = 2;     // faces the velocity reaches into the air
+	
+	private static final float MIC_TUNING = 0.97f; // modified incomplete Cholesky blend
+	private static final float MIC_SAFETY = 0.25f; // fall back to the diagonal below this share of it
+	
+	private static final int AIR   = 0;
+	private static final int FLUID = 1;
+	
+	private float cellSize;
+	private Vec2f worldSize;
+	private Vec2i gridSize;
+	private int nx;            // cells in x and y
+	private int ny;
+	
+	private Vec2f gravity;
+	private float timeStep;
+	private float touchRadius; // faces reached by a touch
+	
+	private int numParticle;
+	private ParticleStore ps;
+	
+	// MAC grid, u(i, j) at u[i+j*(nx+1)] on the left face of cell (i, j), v(i, j) at v[i+j*nx] on the bottom face
+	private float[] u;
+	private float[] v;
+	private float[] oldU;      // grid velocity before the forces, then the change of the step
+	private float[] oldV;
+	private int[] validU;      // extrapolation layer that gave the face its velocity, 0 for none yet
+	private int[] validV;
+	private int[] cellType;    // AIR or FLUID
+	
+	// pressure solve over the cells
+	private float[] pressure;  // pressure times dt/(density*cellSize), the velocity change across a face
+	private float[] rhs;       // negative divergence of the fluid cells
+	private float[] residual;
+	private float[] aux;       // preconditioned residual
+	private float[] search;
+	private float[] diag;      // diagonal of the Laplacian
+	private float[] plusX;     // its coupling to the right neighbor, -1 or 0
+	private float[] plusY;     // its coupling to the upper neighbor
+	private float[] precon;    // MIC(0) factor
+	private int maxIterations = DEFAULT_ITERATIONS;
+	private float tolerance = DEFAULT_TOLERANCE;
+	private int iterations;    // of the last solve
+	private float residualMax; // largest divergence left by the last solve
+	
+	private WorkerPool pool;   // null runs every phase on the calling thread
+	private float[][] accU;    // per thread splat sums of the transfer
+	private float[][] weightU;
+	private float[][] accV;
+	private float[][] weightV;
+	private WorkerPool.RangeTask splatTask;
+	private WorkerPool.RangeTask gatherTask;
+	private WorkerPool.RangeTask advectionTask;
+	
+	private FloatBuffer positionOutput; // receives x, y of every slot during advection, may be null
+	
+	private volatile boolean profiling;
+	private SPHProfiler profiler;
+	
+	private final InputQueue input = new InputQueue(SPHSystem.INPUT_CAPACITY); // touches of the other threads
+	
+	public FLIPSystem(Vec2f w)
+	{
+		// half the kernel of SPHSystem, with 2x2 particles per cell the dam gets 10 times its particles
+		this(w, 0.02f);
+	}
+	
+	// c is the cell size of the MAC grid
+	public FLIPSystem(Vec2f w, float c)
+	{
+		worldSize = new Vec2f();
+		gridSize  = new Vec2i();
+		gravity   = new Vec2f();
+		worldSize.x = w.x;
+		worldSize.y = w.y;
+		
+		// square cells that tile the world exactly
+		nx = Math.max(1, Math.round(w.x/c));
+		cellSize = w.x/nx;
+		ny = Math.max(1, Math.round(w.y/cellSize));
+		gridSize.x = nx;
+		gridSize.y = ny;
+		
+		gravity.x = 0.0f;
+		gravity.y = -1.8f;
+		timeStep = 0.01f;
+		touchRadius = 2.0f*cellSize;
+		
+		numParticle = 0;
+		ps = new ParticleStore(1024);
+		
+		int cells = nx*ny;
+		int facesU = (nx+1)*ny;
+		int facesV = nx*(ny+1);
+		u = new float[facesU];
+		v = new float[facesV];
+		oldU = new float[facesU];
+		oldV = new float[facesV];
+		validU = new int[facesU];
+		validV = new int[facesV];
+		cellType = new int[cells];
+		pressure = new float[cells];
+		rhs = new float[cells];
+		residual = new float[cells];
+		aux = new float[cells];
+		search = new float[cells];
+		diag = new float[cells];
+		plusX = new float[cells];
+		plusY = new float[cells];
+		precon = new float[cells];
+		AllocateSplat(1);
+		
+		splatTask = new WorkerPool.RangeTask() {
+			public void Run(int begin, int end, int worker)
+			{
+				SplatParticles(begin, end, worker);
+			}
+		};
+		gatherTask = new WorkerPool.RangeTask() {
+			public void Run(int begin, int end, int worker)
+			{
+				Gather(begin, end);
+			}
+		};
+		advectionTask = new WorkerPool.RangeTask() {
+			public void Run(int begin, int end, int worker)
+			{
+				Advection(begin, end);
+			}
+		};
+	}
+	
+	private void AllocateSplat(int threads)
+	{
+		accU = new float[threads][u.length];
+		weightU = new float[threads][u.length];
+		accV = new float[threads][v.length];
+		weightV = new float[threads][v.length];
+	}
+	
+	// init the particles
+	public void InitFluid()
+	{
+		InitFluid(worldSize.x*0.8f, worldSize.y*0.9f);
+	}
+	
+	// fill a block of width x height at the origin with 2x2 particles per cell
+	public void InitFluid(float width, float height)
+	{
+		float spacing = cellSize*0.5f;
+		for(float i=spacing*0.5f; i<=width; i+=spacing)
+		{
+			for(float j=spacing*0.5f; j<=height; j+=spacing)
+			{
+				ps.Add(numParticle, i, j, 0.0f, 0.0f, 0.0f);
+				numParticle++;
+			}
+		}
+	}
+	
+	public Vec2f GetWorldSize()
+	{
+		return worldSize;
+	}
+	
+	public Vec2i GetGridSize()
+	{
+		return gridSize;
+	}
+	
+	public float GetCellSize()
+	{
+		return cellSize;
+	}
+	
+	public int GetNumParticle()
+	{
+		return numParticle;
+	}
+	
+	public ParticleStore GetParticles()
+	{
+		return ps;
+	}
+	
+	public void SetPositionOutput(FloatBuffer out)
+	{
+		positionOutput = out;
+	}
+	
+	public void WritePositions(FloatBuffer out)
+	{
+		float[] posX = ps.posX;
+		float[] posY = ps.posY;
+		for(int i=0; i<numParticle; i++)
+		{
+			out.put(i*2,   posX[i]);
+			out.put(i*2+1, posY[i]);
+		}
+	}
+	
+	public void SetTimeStep(float t)
+	{
+		timeStep = t;
+	}
+	
+	public float GetTimeStep()
+	{
+		return timeStep;
+	}
+	
+	// iteration cap and relative divergence tolerance of the pressure solve
+	public void SetSolverLimits(int maxIter, float tol)
+	{
+		maxIterations = maxIter;
+		tolerance = tol;
+	}
+	
+	// iterations of the last pressure solve
+	public int GetIterations()
+	{
+		return iterations;
+	}
+	
+	// largest divergence of a fluid cell left by the last pressure solve, in velocity units
+	public float GetResidual()
+	{
+		return residualMax;
+	}
+	
+	// bytes held by the grid and the solver
+	public long GetMemoryBytes()
+	{
+		long faces = 2L*u.length + 2L*v.length + validU.length + validV.length;
+		long splat = (long)accU.length*2*(u.length + v.length);
+		return 4L*(faces + splat + 10L*cellType.length);
+	}
+	
+	// one step of the fixed time step
+	public void animation()
+	{
+		boolean profiling = this.profiling;
+		long stepStart = profiling ? System.nanoTime() : 0;
+		long t = stepStart;
+		
+		this.Transfer();                   // particle velocities and fluid cells onto the grid
+		if(profiling) t = EndPhase(PHASE_TRANSFER, t);
+		
+		this.ApplyForces();                // gravity, finger added force and the walls
+		if(profiling) t = EndPhase(PHASE_FORCES, t);
+		
+		this.Project();                    // make the fluid cells divergence free
+		if(profiling) t = EndPhase(PHASE_PRESSURE, t);
+		
+		this.Extrapolate(u, validU, nx+1, ny);
+		this.Extrapolate(v, validV, nx, ny+1);
+		for(int f=0; f<u.length; f++)
+		{
+			oldU[f] = u[f]-oldU[f];
+		}
+		for(int f=0; f<v.length; f++)
+		{
+			oldV[f] = v[f]-oldV[f];
+		}
+		this.RunParticles(advectionTask);  // grid velocity back to the particles, move them
+		if(profiling)
+		{
+			t = EndPhase(PHASE_ADVECTION, t);
+			profiler.Record(PHASE_STEP, t-stepStart);
+			profiler.Tick();
+		}
+	}
+	
+	private void Transfer()
+	{
+		for(int c=0; c<cellType.length; c++)
+		{
+			cellType[c] = AIR;
+		}
+		int threads = GetThreads();
+		if(accU.length != threads)
+		{
+			AllocateSplat(threads);
+		}
+		
+		this.RunParticles(splatTask);      // weighted sums per thread
+		if(pool == null)
+		{
+			gatherTask.Run(0, Math.max(u.length, v.length), 0);
+		}
+		else
+		{
+			pool.Run(gatherTask, Math.max(u.length, v.length));
+		}
+		
+		// the velocity the particles brought, the change of the step is taken against it
+		this.Extrapolate(u, validU, nx+1, ny);
+		this.Extrapolate(v, validV, nx, ny+1);
+		System.arraycopy(u, 0, oldU, 0, u.length);
+		System.arraycopy(v, 0, oldV, 0, v.length);
+	}
+	
+	// bilinear splat of the particle velocities, u sits half a cell higher and v half a cell
+	// further right than the cell corners
+	private void SplatParticles(int begin, int end, int worker)
+	{
+		float[] posX = ps.posX;
+		float[] posY = ps.posY;
+		float[] velX = ps.velX;
+		float[] velY = ps.velY;
+		float[] au = accU[worker];
+		float[] wu = weightU[worker];
+		float[] av = accV[worker];
+		float[] wv = weightV[worker];
+		float inv = 1.0f/cellSize;
+		
+		for(int k=begin; k<end; k++)
+		{
+			float x = posX[k]*inv;
+			float y = posY[k]*inv;
+			
+			int cx = FastMath.Clamp((int)x, 0, nx-1);
+			int cy = FastMath.Clamp((int)y, 0, ny-1);
+			cellType[cx+cy*nx] = FLUID;
+			
+			Splat(au, wu, nx+1, ny, x, y-0.5f, velX[k]);
+			Splat(av, wv, nx, ny+1, x-0.5f, y, velY[k]);
+		}
+	}
+	
+	private static void Splat(float[] acc, float[] weight, int ni, int nj, float x, float y, float value)
+	{
+		int i = FastMath.Clamp(FastMath.Floor(x), 0, ni-2);
+		int j = FastMath.Clamp(FastMath.Floor(y), 0, nj-2);
+		float fx = FastMath.Clamp(x-i, 0.0f, 1.0f);
+		float fy = FastMath.Clamp(y-j, 0.0f, 1.0f);
+		int f = i+j*ni;
+		
+		float w00 = (1.0f-fx)*(1.0f-fy);
+		float w10 = fx*(1.0f-fy);
+		float w01 = (1.0f-fx)*fy;
+		float w11 = fx*fy;
+		acc[f]      += w00*value;  weight[f]      += w00;
+		acc[f+1]    += w10*value;  weight[f+1]    += w10;
+		acc[f+ni]   += w01*value;  weight[f+ni]   += w01;
+		acc[f+ni+1] += w11*value;  weight[f+ni+1] += w11;
+	}
+	
+	// sum the thread splats into the grid velocities and clear them for the next step
+	private void Gather(int begin, int end)
+	{
+		int threads = accU.length;
+		for(int f=begin; f<end; f++)
+		{
+			if(f < u.length)
+			{
+				float s = 0.0f;
+				float w = 0.0f;
+				for(int t=0; t<threads; t++)
+				{
+					s = s + accU[t][f];
+					w = w + weightU[t][f];
+					accU[t][f] = 0.0f;
+					weightU[t][f] = 0.0f;
+				}
+				u[f] = w > 0.0f ? s/w : 0.0f;
+				validU[f] = w > 0.0f ? 1 : 0;
+			}
+			if(f < v.length)
+			{
+				float s = 0.0f;
+				float w = 0.0f;
+				for(int t=0; t<threads; t++)
+				{
+					s = s + accV[t][f];
+					w = w + weightV[t][f];
+					accV[t][f] = 0.0f;
+					weightV[t][f] = 0.0f;
+				}
+				v[f] = w > 0.0f ? s/w : 0.0f;
+				validV[f] = w > 0.0f ? 1 : 0;
+			}
+		}
+	}
+	
+	private void ApplyForces()
+	{
+		float dt = timeStep;
+		for(int f=0; f<u.length; f++)
+		{
+			u[f] = u[f] + gravity.x*dt;
+		}
+		for(int f=0; f<v.length; f++)
+		{
+			v[f] = v[f] + gravity.y*dt;
+		}
+		
+		this.Add_external_force();
+		
+		// no flow through the walls
+		for(int j=0; j<ny; j++)
+		{
+			u[j*(nx+1)] = 0.0f;
+			u[nx+j*(nx+1)] = 0.0f;
+		}
+		for(int i=0; i<nx; i++)
+		{
+			v[i] = 0.0f;
+			v[i+ny*nx] = 0.0f;
+		}
+	}
+	
+	// Pressure projection. With p scaled by dt/(density*cellSize) a face velocity
+	// changes by the pressure difference across it, so the Laplacian of the fluid
+	// cells has the number of non-solid neighbors on the diagonal and -1 for each
+	// fluid neighbor, air has p = 0.
+	private void Project()
+	{
+		int cells = nx*ny;
+		float bMax = 0.0f;
+		for(int c=0; c<cells; c++)
+		{
+			pressure[c] = 0.0f;
+			diag[c] = 0.0f;
+			plusX[c] = 0.0f;
+			plusY[c] = 0.0f;
+			rhs[c] = 0.0f;
+			if(cellType[c] != FLUID) continue;
+			
+			int i = c%nx;
+			int j = c/nx;
+			int fu = i+j*(nx+1);
+			int fv = c;
+			float div = u[fu+1]-u[fu] + v[fv+nx]-v[fv];
+			rhs[c] = -div;
+			if(div > bMax) bMax = div;
+			if(-div > bMax) bMax = -div;
+			
+			if(i > 0)    diag[c] += 1.0f;
+			if(i < nx-1) diag[c] += 1.0f;
+			if(j > 0)    diag[c] += 1.0f;
+			if(j < ny-1) diag[c] += 1.0f;
+			if(i < nx-1 && cellType[c+1] == FLUID)  plusX[c] = -1.0f;
+			if(j < ny-1 && cellType[c+nx] == FLUID) plusY[c] = -1.0f;
+		}
+		
+		BuildPreconditioner();
+		Solve(bMax*tolerance);
+		
+		// subtract the pressure gradient from the faces next to the fluid
+		for(int j=0; j<ny; j++)
+		{
+			for(int i=1; i<nx; i++)
+			{
+				int c = i+j*nx;
+				int f = i+j*(nx+1);
+				if(cellType[c] == FLUID || cellType[c-1] == FLUID)
+				{
+					u[f] = u[f] - (pressure[c]-pressure[c-1]);
+					validU[f] = 1;
+				}
+				else
+				{
+					validU[f] = 0;
+				}
+			}
+			validU[j*(nx+1)] = 1;
+			validU[nx+j*(nx+1)] = 1;
+		}
+		for(int j=1; j<ny; j++)
+		{
+			for(int i=0; i<nx; i++)
+			{
+				int c = i+j*nx;
+				if(cellType[c] == FLUID || cellType[c-nx] == FLUID)
+				{
+					v[c] = v[c] - (pressure[c]-pressure[c-nx]);
+					validV[c] = 1;
+				}
+				else
+				{
+					validV[c] = 0;
+				}
+			}
+		}
+		for(int i=0; i<nx; i++)
+		{
+			validV[i] = 1;
+			validV[i+ny*nx] = 1;
+		}
+	}
+	
+	private void BuildPreconditioner()
+	{
+		for(int j=0; j<ny; j++)
+		{
+			for(int i=0; i<nx; i++)
+			{
+				int c = i+j*nx;
+				if(cellType[c] != FLUID)
+				{
+					precon[c] = 0.0f;
+					continue;
+				}
+				
+				float e = diag[c];
+				if(i > 0)
+				{
+					float a = plusX[c-1]*precon[c-1];
+					e = e - a*a - MIC_TUNING*plusX[c-1]*plusY[c-1]*precon[c-1]*precon[c-1];
+				}
+				if(j > 0)
+				{
+					float a = plusY[c-nx]*precon[c-nx];
+					e = e - a*a - MIC_TUNING*plusY[c-nx]*plusX[c-nx]*precon[c-nx]*precon[c-nx];
+				}
+				if(e < MIC_SAFETY*diag[c])
+				{
+					e = diag[c];
+				}
+				precon[c] = e > 0.0f ? 1.0f/(float) Math.sqrt(e) : 0.0f;
+			}
+		}
+	}
+	
+	// conjugate gradient on the fluid cells until no divergence is above limit
+	private void Solve(float limit)
+	{
+		int cells = nx*ny;
+		System.arraycopy(rhs, 0, residual, 0, cells);
+		iterations = 0;
+		residualMax = MaxAbs(residual);
+		if(residualMax <= limit)
+		{
+			return;
+		}
+		
+		ApplyPreconditioner(residual, aux);
+		System.arraycopy(aux, 0, search, 0, cells);
+		double sigma = Dot(aux, residual);
+		
+		while(iterations < maxIterations)
+		{
+			ApplyLaplacian(search, aux);
+			double alpha = sigma/Dot(search, aux);
+			for(int c=0; c<cells; c++)
+			{
+				pressure[c] += (float)(alpha*search[c]);
+				residual[c] -= (float)(alpha*aux[c]);
+			}
+			iterations++;
+			residualMax = MaxAbs(residual);
+			if(residualMax <= limit)
+			{
+				break;
+			}
+			
+			ApplyPreconditioner(residual, aux);
+			double sigmaNew = Dot(aux, residual);
+			float beta = (float)(sigmaNew/sigma);
+			for(int c=0; c<cells; c++)
+			{
+				search[c] = aux[c] + beta*search[c];
+			}
+			sigma = sigmaNew;
+		}
+	}
+	
+	// out = A s over the fluid cells
+	private void ApplyLaplacian(float[] s, float[] out)
+	{
+		for(int j=0; j<ny; j++)
+		{
+			for(int i=0; i<nx; i++)
+			{
+				int c = i+j*nx;
+				if(cellType[c] != FLUID)
+				{
+					out[c] = 0.0f;
+					continue;
+				}
+				
+				float a = diag[c]*s[c];
+				if(i > 0)    a = a + plusX[c-1]*s[c-1];
+				if(i < nx-1) a = a + plusX[c]*s[c+1];
+				if(j > 0)    a = a + plusY[c-nx]*s[c-nx];
+				if(j < ny-1) a = a + plusY[c]*s[c+nx];
+				out[c] = a;
+			}
+		}
+	}
+	
+	// out = M^-1 r with the MIC(0) factor, a forward and a backward sweep
+	private void ApplyPreconditioner(float[] r, float[] out)
+	{
+		for(int j=0; j<ny; j++)
+		{
+			for(int i=0; i<nx; i++)
+			{
+				int c = i+j*nx;
+				if(cellType[c] != FLUID)
+				{
+					out[c] = 0.0f;
+					continue;
+				}
+				
+				float t = r[c];
+				if(i > 0) t = t - plusX[c-1]*precon[c-1]*out[c-1];
+				if(j > 0) t = t - plusY[c-nx]*precon[c-nx]*out[c-nx];
+				out[c] = t*precon[c];
+			}
+		}
+		for(int j=ny-1; j>=0; j--)
+		{
+			for(int i=nx-1; i>=0; i--)
+			{
+				int c = i+j*nx;
+				if(cellType[c] != FLUID) continue;
+				
+				float t = out[c];
+				if(i < nx-1) t = t - plusX[c]*precon[c]*out[c+1];
+				if(j < ny-1) t = t - plusY[c]*precon[c]*out[c+nx];
+				out[c] = t*precon[c];
+			}
+		}
+	}
+	
+	private double Dot(float[] a, float[] b)
+	{
+		double s = 0.0;
+		for(int c=0; c<a.length; c++)
+		{
+			s += a[c]*b[c];
+		}
+		return s;
+	}
+	
+	private float MaxAbs(float[] a)
+	{
+		float m = 0.0f;
+		for(int c=0; c<a.length; c++)
+		{
+			if(a[c] > m) m = a[c];
+			if(-a[c] > m) m = -a[c];
+		}
+		return m;
+	}
+	
+	// carry the velocities of the valid faces EXTRAPOLATE_LAYERS faces into the air,
+	// each new face takes the mean of its valid neighbors from the layers before
+	private void Extrapolate(float[] f, int[] valid, int ni, int nj)
+	{
+		for(int layer=2; layer<=EXTRAPOLATE_LAYERS+1; layer++)
+		{
+			for(int j=0; j<nj; j++)
+			{
+				for(int i=0; i<ni; i++)
+				{
+					int k = i+j*ni;
+					if(valid[k] != 0) continue;
+					
+					float s = 0.0f;
+					int n = 0;
+					if(i > 0    && valid[k-1] != 0  && valid[k-1] < layer)  { s = s + f[k-1];  n++; }
+					if(i < ni-1 && valid[k+1] != 0  && valid[k+1] < layer)  { s = s + f[k+1];  n++; }
+					if(j > 0    && valid[k-ni] != 0 && valid[k-ni] < layer) { s = s + f[k-ni]; n++; }
+					if(j < nj-1 && valid[k+ni] != 0 && valid[k+ni] < layer) { s = s + f[k+ni]; n++; }
+					if(n > 0)
+					{
+						f[k] = s/n;
+						valid[k] = layer;
+					}
+				}
+			}
+		}
+	}
+	
+	// FLIP update blended with PIC, then a midpoint step through the grid velocity
+	private void Advection(int begin, int end)
+	{
+		float[] posX = ps.posX;
+		float[] posY = ps.posY;
+		float[] velX = ps.velX;
+		float[] velY = ps.velY;
+		FloatBuffer out = positionOutput;
+		float dt = timeStep;
+		float inv = 1.0f/cellSize;
+		float maxX = worldSize.x - 0.0001f;
+		float maxY = worldSize.y - 0.0001f;
+		
+		for(int k=begin; k<end; k++)
+		{
+			float gx = posX[k]*inv;
+			float gy = posY[k]*inv;
+			float picX = Interpolate(u, nx+1, ny, gx, gy-0.5f);
+			float picY = Interpolate(v, nx, ny+1, gx-0.5f, gy);
+			float flipX = velX[k] + Interpolate(oldU, nx+1, ny, gx, gy-0.5f);
+			float flipY = velY[k] + Interpolate(oldV, nx, ny+1, gx-0.5f, gy);
+			float vx = FLIP_RATIO*flipX + (1.0f-FLIP_RATIO)*picX;
+			float vy = FLIP_RATIO*flipY + (1.0f-FLIP_RATIO)*picY;
+			
+			float mx = gx + 0.5f*dt*picX*inv;
+			float my = gy + 0.5f*dt*picY*inv;
+			float x = posX[k] + dt*Interpolate(u, nx+1, ny, mx, my-0.5f);
+			float y = posY[k] + dt*Interpolate(v, nx, ny+1, mx-0.5f, my);
+			
+			// the walls stop the particle like the advection of SPHSystem
+			if(x < 0.0f)
+			{
+				x = 0.0f;
+				vx = 0.0f;
+			}
+			if(x > maxX)
+			{
+				x = maxX;
+				vx = 0.0f;
+			}
+			if(y < 0.0f)
+			{
+				y = 0.0f;
+				vy = 0.0f;
+			}
+			if(y > maxY)
+			{
+				y = maxY;
+				vy = 0.0f;
+			}
+			
+			velX[k] = vx;
+			velY[k] = vy;
+			posX[k] = x;
+			posY[k] = y;
+			
+			// hand the new position straight to the renderer
+			if(out != null)
+			{
+				out.put(k*2,   x);
+				out.put(k*2+1, y);
+			}
+		}
+	}
+	
+	// bilinear interpolation of the face grid f at (x, y) in its own index units
+	private static float Interpolate(float[] f, int ni, int nj, float x, float y)
+	{
+		int i = FastMath.Clamp(FastMath.Floor(x), 0, ni-2);
+		int j = FastMath.Clamp(FastMath.Floor(y), 0, nj-2);
+		float fx = FastMath.Clamp(x-i, 0.0f, 1.0f);
+		float fy = FastMath.Clamp(y-j, 0.0f, 1.0f);
+		int k = i+j*ni;
+		float a = f[k] + (f[k+1]-f[k])*fx;
+		float b = f[k+ni] + (f[k+ni+1]-f[k+ni])*fx;
+		return a + (b-a)*fy;
+	}
+	
+	private void RunParticles(WorkerPool.RangeTask task)
+	{
+		if(pool == null)
+		{
+			task.Run(0, numParticle, 0);
+		}
+		else
+		{
+			pool.Run(task, numParticle);
+		}
+	}
+	
+	// queue a finger at (x, y) in [0, 1] of the world flinging with (fx, fy), any thread
+	public void Add_external_event(float x, float y, float fx, float fy)
+	{
+		input.Offer(x, y, fx, fy, 0.0f);
+	}
+	
+	// as above, reaching the faces within radius in world units instead of touchRadius
+	public void Add_external_event(float x, float y, float fx, float fy, float radius)
+	{
+		input.Offer(x, y, fx, fy, radius);
+	}
+	
+	public InputQueue GetInputQueue()
+	{
+		return input;
+	}
+	
+	// finger added force, the acceleration SPHSystem gives the particles under the finger.
+	// Each touch queued since the last step visits only the faces within its reach.
+	private void Add_external_force()
+	{
+		int events = input.Drain();
+		input.ToWorld(events, worldSize, touchRadius);
+		
+		for(int e=0; e<events; e++)
+		{
+			float px = input.x[e];
+			float py = input.y[e];
+			float r = input.radius[e];
+			float r2 = r*r;
+			float ax = InputQueue.FORCE_SCALE*input.fx[e]*timeStep;
+			float ay = InputQueue.FORCE_SCALE*input.fy[e]*timeStep;
+			
+			// the cells the circle overlaps are [i0, i1) x [j0, j1), already inside the grid;
+			// their u faces are the columns i0 ... i1 of those rows, their v faces the
+			// rows j0 ... j1 of those columns
+			int i0 = Math.max(FastMath.Floor((px-r)/cellSize), 0);
+			int i1 = Math.min(FastMath.Ceil((px+r)/cellSize), nx);
+			int j0 = Math.max(FastMath.Floor((py-r)/cellSize), 0);
+			int j1 = Math.min(FastMath.Ceil((py+r)/cellSize), ny);
+			int uLastColumn = i1;
+			int vLastRow = j1;
+			
+			for(int j=j0; j<j1; j++)
+			{
+				for(int i=i0; i<=uLastColumn; i++)
+				{
+					float dx = i*cellSize - px;
+					float dy = (j+0.5f)*cellSize - py;
+					if(dx*dx+dy*dy < r2) u[i+j*(nx+1)] += ax;
+				}
+			}
+			for(int j=j0; j<=vLastRow; j++)
+			{
+				for(int i=i0; i<i1; i++)
+				{
+					float dx = (i+0.5f)*cellSize - px;
+					float dy = j*cellSize - py;
+					if(dx*dx+dy*dy < r2) v[i+j*nx] += ay;
+				}
+			}
+		}
+	}
+	
+	public void SetThreads(int threads)
+	{
+		Shutdown();
+		if(threads > 1)
+		{
+			pool = new WorkerPool(threads);
+		}
+	}
+	
+	public int GetThreads()
+	{
+		return pool == null ? 1 : pool.GetNumThreads();
+	}
+	
+	public Thread[] GetWorkerThreads()
+	{
+		return pool == null ? new Thread[0] : pool.GetWorkers();
+	}
+	
+	public void Shutdown()
+	{
+		if(pool != null)
+		{
+			pool.Shutdown();
+			pool = null;
+		}
+	}
+	
+	private long EndPhase(int phase, long start)
+	{
+		long now = System.nanoTime();
+		profiler.Record(phase, now-start);
+		return now;
+	}
+	
+	public void SetProfiling(boolean p)
+	{
+		if(p && profiler == null)
+		{
+			profiler = new SPHProfiler("flip", PHASE_NAMES);
+		}
+		profiling = p;
+	}
+	
+	public int GetReorderCount()
+	{
+		// the particles keep their slots
+		return 0;
+	}
+	
+	// histograms of PHASE_TRANSFER ... PHASE_STEP, null until profiling was turned on
+	public SPHProfiler GetProfiler()
+	{
+		return profiler;
+	}
+}
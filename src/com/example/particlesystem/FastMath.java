@@ -0,0 +1,74 @@
+/** File:		FastMath.java
+ ** Author:		Dongli Zhang
+ ** Contact:	dongli.zhang0129@gmail.com
+ **
+ ** Copyright (C) Dongli Zhang 2013
+ **
+ ** This program is free software;  you can redistribute it and/or modify
+ ** it under the terms of the GNU General Public License as published by
+ ** the Free Software Foundation; either version 2 of the License, or
+ ** (at your option) any later version.
+ **
+ ** This program is distributed in the hope that it will be useful,
+ ** but WITHOUT ANY WARRANTY;  without even the implied warranty of
+ ** MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See
+ ** the GNU General Public License for more details.
+ **
+ ** You should have received a copy of the GNU General Public License
+ ** along with this program;  if not, write to the Free Software 
+ ** Foundation, 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA
+ */
+
+package com.example.particlesystem;
+
+/* The few bits of java.lang.Math the stepping code needs, written out so that
+ * a step never calls into the JDK for them. HotSpot links a call site the
+ * first time it interprets it, and that can happen in the middle of a step
+ * after a deoptimization: Math.floor and Math.ceil link to StrictMath,
+ * Math.min and Math.max on floats check for NaN through Float, and
+ * Long.numberOfLeadingZeros calls into Integer. Linking allocates, which the
+ * allocation guard then reports for a step that allocates nothing itself.
+ */
+final class FastMath
+{
+	private FastMath()
+	{
+	}
+	
+	// largest integer not above x, for x within the int range
+	static int Floor(float x)
+	{
+		int i = (int)x;
+		return x < i ? i-1 : i;
+	}
+	
+	// smallest integer not below x, for x within the int range
+	static int Ceil(float x)
+	{
+		int i = (int)x;
+		return x > i ? i+1 : i;
+	}
+	
+	static int Clamp(int x, int lo, int hi)
+	{
+		return x < lo ? lo : (x > hi ? hi : x);
+	}
+	
+	static float Clamp(float x, float lo, float hi)
+	{
+		return x < lo ? lo : (x > hi ? hi : x);
+	}
+	
+	// index of the highest set bit of v > 0, i.e. 63-Long.numberOfLeadingZeros(v)
+	static int HighestBit(long v)
+	{
+		int b = 0;
+		if((v >>> 32) != 0) { v >>>= 32; b += 32; }
+		if((v >>> 16) != 0) { v >>>= 16; b += 16; }
+		if((v >>> 8) != 0)  { v >>>= 8;  b += 8; }
+		if((v >>> 4) != 0)  { v >>>= 4;  b += 4; }
+		if((v >>> 2) != 0)  { v >>>= 2;  b += 2; }
+		if((v >>> 1) != 0)  { b += 1; }
+		return b;
+	}
+}
@@ -0,0 +1,133 @@
+/** File:		FrameInterpolator.java
+ ** Author:		Dongli Zhang
+ ** Contact:	dongli.zhang0129@gmail.com
+ **
+ ** Copyright (C) Dongli Zhang 2013
+ **
+ ** This program is free software;  you can redistribute it and/or modify
+ ** it under the terms of the GNU General Public License as published by
+ ** the Free Software Foundation; either version 2 of the License, or
+ ** (at your option) any later version.
+ **
+ ** This program is distributed in the hope that it will be useful,
+ ** but WITHOUT ANY WARRANTY;  without even the implied warranty of
+ ** MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See
+ ** the GNU General Public License for more details.
+ **
+ ** You should have received a copy of the GNU General Public License
+ ** along with this program;  if not, write to the Free Software 
+ ** Foundation, 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA
+ */
+
+
+package com.example.particlesystem;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+
+/* Consumer side of a TripleBuffer that draws the particles between the last two
+ * published frames instead of jumping to the newest one. The drawn state lags one
+ * step behind the simulation: right after a frame is published the one before it
+ * is drawn, and the new one is reached when the next is due. The simulation can
+ * then step at a lower rate than the display and still move smoothly.
+ * Frames are blended slot by slot, which only matches particles between frames
+ * of the same slot layout; across a reorder the newest frame is drawn unblended.
+ * Update() must be called from the consumer thread of the TripleBuffer only.
+ */
+public class FrameInterpolator
+{
+	private final FloatBuffer prev;      // copy of the frame before the front one
+	private final FloatBuffer out;       // interpolated positions
+	private int prevCount;               // 0 until a frame was copied
+	private double prevTime;
+	private int prevLayout;
+	private int count;                   // particles of the last Update()
+	private float alpha;                 // weight of the front frame in the last Update()
+	private volatile float timeScale;    // simulated seconds per wall second, 0 draws the newest frame
+	
+	public FrameInterpolator(int numParticle)
+	{
+		prev = Allocate(numParticle);
+		out = Allocate(numParticle);
+		timeScale = 1.0f;
+	}
+	
+	private static FloatBuffer Allocate(int numParticle)
+	{
+		ByteBuffer b = ByteBuffer.allocateDirect(numParticle*2*4);
+		b.order(ByteOrder.nativeOrder());
+		return b.asFloatBuffer();
+	}
+	
+	// the rate the producer advances the simulated time at, as SimulationDriver.SetTimeScale()
+	public void SetTimeScale(float scale)
+	{
+		timeScale = scale;
+	}
+	
+	public float GetTimeScale()
+	{
+		return timeScale;
+	}
+	
+	// Pick up the newest frame of frames and return the positions to draw at the wall
+	// time now (System.nanoTime()), positioned at 0. Never waits for the producer.
+	public FloatBuffer Update(TripleBuffer frames, long now)
+	{
+		if(frames.Pending())
+		{
+			// the front frame becomes the start of the interpolation, it must be
+			// copied before Acquire() hands its buffer back to the producer
+			FloatBuffer front = frames.GetFront();
+			prevCount = frames.GetFrontCount();
+			prevTime = frames.GetFrontTime();
+			prevLayout = frames.GetFrontLayout();
+			front.position(0);
+			front.limit(prevCount*2);
+			prev.clear();
+			prev.put(front);
+			front.clear();
+			frames.Acquire();
+		}
+		
+		FloatBuffer front = frames.GetFront();
+		count = frames.GetFrontCount();
+		
+		// how far the wall clock got towards the next frame, in simulated seconds
+		double span = frames.GetFrontTime() - prevTime;
+		float scale = timeScale;
+		alpha = 1.0f;
+		if(prevCount == count && prevLayout == frames.GetFrontLayout() && span > 0.0 && scale > 0.0f)
+		{
+			double elapsed = (now - frames.GetFrontStamp())*1e-9*scale;
+			alpha = (float) Math.max(Math.min(elapsed/span, 1.0), 0.0);
+		}
+		
+		if(alpha >= 1.0f)
+		{
+			front.position(0);
+			return front;
+		}
+		
+		for(int i=0; i<count*2; i++)
+		{
+			float p = prev.get(i);
+			out.put(i, p + (front.get(i)-p)*alpha);
+		}
+		out.position(0);
+		return out;
+	}
+	
+	// particles of the buffer returned by the last Update()
+	public int GetCount()
+	{
+		return count;
+	}
+	
+	// weight of the newest frame in the last Update(), 1 draws it unchanged
+	public float GetAlpha()
+	{
+		return alpha;
+	}
+}
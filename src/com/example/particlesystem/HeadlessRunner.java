@@ -0,0 +1,440 @@
+/** File:		HeadlessRunner.java
+ ** Author:		Dongli Zhang
+ ** Contact:	dongli.zhang0129@gmail.com
+ **
+ ** Copyright (C) Dongli Zhang 2013
+ **
+ ** This program is free software;  you can redistribute it and/or modify
+ ** it under the terms of the GNU General Public License as published by
+ ** the Free Software Foundation; either version 2 of the License, or
+ ** (at your option) any later version.
+ **
+ ** This program is distributed in the hope that it will be useful,
+ ** but WITHOUT ANY WARRANTY;  without even the implied warranty of
+ ** MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See
+ ** the GNU General Public License for more details.
+ **
+ ** You should have received a copy of the GNU General Public License
+ ** along with this program;  if not, write to the Free Software 
+ ** Foundation, 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA
+ */
+
+
+package com.example.particlesystem;
+
+/* Runs the dam break scene without Android, e.g. on a build machine:
+ *
+ *   java -cp bin/classes com.example.particlesystem.HeadlessRunner -world 1.28 -steps 2000 -threads 8
+ *
+ * and prints the time of each phase of SPHSystem.animation() and the
+ * throughput in particle-steps per second. -flip runs FLIPSystem instead.
+ * AllocationCheck and InterpolationCheck take the same options and build the
+ * same scene through ParseArgs() and CreateSimulation().
+ */
+public class HeadlessRunner 
+{
+	private float world = 0.64f;  // width and height of the world
+	private int steps = 1000;     // measured steps
+	private int warmup = 100;     // steps before measuring, lets the JIT and the fluid settle
+	private int threads = 1;
+	private int kernelMode = SPHKernel.EXACT;
+	private float kernelError = 1e-4f;
+	private boolean symmetric = false;
+	private boolean vectorized = false;
+	private boolean pairCache = false;
+	private float skin = 0.0f;    // neighbor list skin, 0 scans the grid
+	private float reorder = 0.0f; // Z-order reorder threshold, 0 is off
+	private int searchMode = SPHSystem.SEARCH_GRID;
+	private boolean open = false; // only the floor collides
+	private float fluid = 0.0f;   // side of the initial fluid block, 0 fills the default dam
+	private int fling = 0;        // inject a finger fling every fling steps, 0 never
+	private float sleep = 0.0f;   // sleeping speed, 0 keeps every particle awake
+	private float adaptive = 0.0f; // largest adaptive time step, 0 keeps the fixed one
+	private float frame = 0.0f;   // simulated time of each measured step via Advance(), 0 steps once
+	private float timeStep = 0.0f; // fixed time step, 0 keeps the default of SPHSystem
+	private int solver = SPHSystem.SOLVER_WCSPH;
+	private int maxIterations = 0; // iteration cap of the incompressible solve, 0 keeps its default
+	private float tolerance = 0.0f; // its density error tolerance, 0 keeps its default
+	private boolean flip = false; // run the hybrid FLIP engine instead of SPH
+	private float cell = 0.0f;    // its cell size, 0 keeps its default
+	private double simTime;       // simulated seconds of the measured steps
+	private long iterationSum;    // pressure solve iterations summed over the measured steps
+	private long substeps;        // steps taken by the measured frames
+	private long activeSum;       // awake particles summed over the measured steps
+	private int activeMin;        // fewest awake particles in a measured step
+	private float budget = 0.0f;  // governor budget in ms per 1/60 s of simulated time, 0 runs without
+	private QualityGovernor governor;
+	
+	public static void main(String[] args)
+	{
+		HeadlessRunner r = new HeadlessRunner();
+		if(!r.ParseArgs(args))
+		{
+			PrintUsage();
+			System.exit(2);
+		}
+		r.Run();
+	}
+	
+	// the configured engine with its particles, FLIPSystem with -flip
+	public ParticleSimulation CreateSimulation()
+	{
+		return flip ? CreateFlip() : CreateSystem();
+	}
+	
+	// build the configured system with its particles
+	public SPHSystem CreateSystem()
+	{
+		SPHSystem sph = new SPHSystem(new Vec2f(world, world));
+		sph.SetThreads(threads);
+		sph.SetKernelMode(kernelMode, kernelError);
+		sph.SetSymmetric(symmetric);
+		sph.SetVectorized(vectorized);
+		sph.SetPairCache(pairCache);
+		sph.SetNeighborList(skin);
+		sph.SetReorder(reorder);
+		sph.SetSearchMode(searchMode);
+		sph.SetOpenBoundary(open);
+		sph.SetSleeping(sleep);
+		sph.SetAdaptiveTimeStep(adaptive);
+		if(timeStep > 0.0f)
+		{
+			sph.SetTimeStep(timeStep);
+		}
+		sph.SetSolver(solver);
+		sph.SetSolverLimits(maxIterations, tolerance);
+		if(fluid > 0.0f)
+		{
+			sph.InitFluid(fluid, fluid);
+		}
+		else
+		{
+			sph.InitFluid();
+		}
+		return sph;
+	}
+	
+	public void Run()
+	{
+		if(flip)
+		{
+			RunFlip();
+			return;
+		}
+		SPHSystem sph = CreateSystem();
+		int numParticle = sph.GetNumParticle();
+		if(budget > 0.0f)
+		{
+			governor = new QualityGovernor(sph, budget, 1.0f/60.0f);
+		}
+		
+		// profile the warmup too, so the measured steps run code that is already warm
+		sph.SetProfiling(true);
+		for(int i=0; i<warmup; i++)
+		{
+			Step(sph, i);
+		}
+		
+		sph.ResetProfile();
+		activeSum = 0;
+		substeps = 0;
+		simTime = 0.0;
+		iterationSum = 0;
+		activeMin = numParticle;
+		long start = System.nanoTime();
+		RunSteps(sph, warmup, steps);
+		long total = System.nanoTime()-start;
+		long stepsTaken = substeps;
+		double simulated = simTime;
+		long iterationTotal = iterationSum;
+		long activeTotal = activeSum;
+		int activeLeast = activeMin;
+		
+		long[] phaseNanos = new long[SPHSystem.NUM_PHASES];
+		for(int p=0; p<SPHSystem.NUM_PHASES; p++)
+		{
+			phaseNanos[p] = sph.GetPhaseNanos(p);
+		}
+		String profile = sph.GetProfiler().Report();
+		sph.SetProfiling(false);
+		sph.Shutdown();
+		
+		System.out.println("particles: "+numParticle+"  steps: "+steps+"  threads: "+sph.GetThreads());
+		long phaseTotal = 0;
+		for(int p=0; p<SPHSystem.NUM_PHASES; p++)
+		{
+			phaseTotal += phaseNanos[p];
+		}
+		for(int p=0; p<SPHSystem.NUM_PHASES; p++)
+		{
+			long ns = phaseNanos[p];
+			System.out.println(String.format("  %-10s %9.4f ms/step  %5.1f%%",
+					SPHSystem.PHASE_NAMES[p], ns/1e6/steps, phaseTotal == 0 ? 0.0 : 100.0*ns/phaseTotal));
+		}
+		System.out.println(String.format("  %-10s %9.4f ms/step", "step", total/1e6/steps));
+		System.out.println(profile);
+		System.out.println(String.format("particle-steps/s: %.4g", (double)numParticle*steps/(total/1e9)));
+		System.out.println(String.format("simulated s per wall s: %.3f", simulated/(total/1e9)));
+		
+		System.out.println(String.format("search: %s  memory: %.1f KB",
+				SPHSystem.SEARCH_NAMES[searchMode], sph.GetSearchMemory()/1024.0));
+		if(vectorized)
+		{
+			int lanes = sph.GetVectorLanes();
+			System.out.println(lanes > 0 ? "vectorized: "+lanes+" lanes" : "vectorized: not available, scalar");
+		}
+		if(pairCache)
+		{
+			System.out.println(String.format("pair cache: %d pairs  memory: %.1f KB",
+					sph.GetNumCachedPairs(), sph.GetPairCacheMemory()/1024.0));
+		}
+		if(solver != SPHSystem.SOLVER_WCSPH)
+		{
+			PressureSolver pressureSolver = sph.GetPressureSolver();
+			System.out.println(String.format("solver: %s  %.2f iterations/step  density error %.4f  memory: %.1f KB",
+					SPHSystem.SOLVER_NAMES[solver], (double)iterationTotal/steps, pressureSolver.GetDensityError(),
+					pressureSolver.GetMemoryBytes()/1024.0));
+		}
+		if(frame > 0.0f)
+		{
+			System.out.println(String.format("frames of %.4f s: %.2f steps each, last time step %.5f",
+					frame, (double)stepsTaken/steps, sph.GetTimeStep()));
+			System.out.println(String.format("frames cut short at %d steps: %d, %.4f s dropped",
+					SPHSystem.MAX_SUBSTEPS, sph.GetShortFrames(), sph.GetDroppedTime()));
+		}
+		if(sleep > 0.0f)
+		{
+			System.out.println(String.format("active particles: %.1f mean  %d min  of %d",
+					(double)activeTotal/steps, activeLeast, numParticle));
+		}
+		NeighborList nl = sph.GetNeighborList();
+		if(nl != null)
+		{
+			System.out.println(String.format("neighbor list rebuild rate: %.3f", nl.GetRebuildRate()));
+		}
+		if(reorder > 0.0f)
+		{
+			System.out.println("reorders: "+sph.GetReorderCount()+"  locality: "+sph.GetLocality());
+		}
+		if(governor != null)
+		{
+			System.out.println(String.format("governor: level %s  %d changes  %.3f ms/frame of %.3f",
+					governor.GetLevelName(), governor.GetChanges(), governor.GetCost(), governor.GetBudget()));
+			System.out.println(String.format("  skin %.4f  iterations %d  sleep speed %.3f",
+					governor.GetSkin(), governor.GetIterations(), governor.GetSleepSpeed()));
+			for(int l=QualityGovernor.LEVEL_LISTS; l<QualityGovernor.NUM_LEVELS; l++)
+			{
+				if(governor.IsSkipped(l))
+				{
+					System.out.println("  left out: "+QualityGovernor.LEVEL_NAMES[l]);
+				}
+			}
+		}
+	}
+	
+	// build the FLIP engine on the same dam
+	public FLIPSystem CreateFlip()
+	{
+		Vec2f w = new Vec2f(world, world);
+		FLIPSystem sim = cell > 0.0f ? new FLIPSystem(w, cell) : new FLIPSystem(w);
+		sim.SetThreads(threads);
+		if(timeStep > 0.0f)
+		{
+			sim.SetTimeStep(timeStep);
+		}
+		if(maxIterations > 0 || tolerance > 0.0f)
+		{
+			sim.SetSolverLimits(maxIterations > 0 ? maxIterations : FLIPSystem.DEFAULT_ITERATIONS,
+					tolerance > 0.0f ? tolerance : FLIPSystem.DEFAULT_TOLERANCE);
+		}
+		if(fluid > 0.0f)
+		{
+			sim.InitFluid(fluid, fluid);
+		}
+		else
+		{
+			sim.InitFluid();
+		}
+		return sim;
+	}
+	
+	// the FLIP engine with its own phases
+	private void RunFlip()
+	{
+		FLIPSystem sim = CreateFlip();
+		int numParticle = sim.GetNumParticle();
+		
+		sim.SetProfiling(true);
+		for(int i=0; i<warmup; i++)
+		{
+			Step(sim, i);
+		}
+		
+		sim.GetProfiler().Reset();
+		simTime = 0.0;
+		iterationSum = 0;
+		long start = System.nanoTime();
+		RunSteps(sim, warmup, steps);
+		long total = System.nanoTime()-start;
+		double simulated = simTime;
+		long iterationTotal = iterationSum;
+		String profile = sim.GetProfiler().Report();
+		sim.SetProfiling(false);
+		sim.Shutdown();
+		
+		System.out.println("particles: "+numParticle+"  steps: "+steps+"  threads: "+sim.GetThreads());
+		System.out.println(String.format("  %-10s %9.4f ms/step", "step", total/1e6/steps));
+		System.out.println(profile);
+		System.out.println(String.format("particle-steps/s: %.4g", (double)numParticle*steps/(total/1e9)));
+		System.out.println(String.format("simulated s per wall s: %.3f", simulated/(total/1e9)));
+		System.out.println(String.format("grid: %dx%d cells of %.4f  %.2f pressure iterations/step  memory: %.1f KB",
+				sim.GetGridSize().x, sim.GetGridSize().y, sim.GetCellSize(), (double)iterationTotal/steps,
+				sim.GetMemoryBytes()/1024.0));
+	}
+	
+	// run count steps from step first
+	private void RunSteps(ParticleSimulation sim, int first, int count)
+	{
+		for(int i=0; i<count; i++)
+		{
+			Step(sim, first+i);
+		}
+	}
+	
+	// step i of a simulation built by CreateSimulation(), with the fling and the
+	// frame, governor and counters the options ask for
+	void Step(ParticleSimulation sim, int i)
+	{
+		if(fling > 0 && i%fling == 0)
+		{
+			// alternate the fling direction so the fluid keeps splashing
+			float f = (i/fling)%2 == 0 ? 0.3f : -0.3f;
+			sim.Add_external_event(0.2f, 0.2f, f, 0.3f);
+		}
+		if(flip)
+		{
+			FLIPSystem f = (FLIPSystem) sim;
+			f.animation();
+			simTime += f.GetTimeStep();
+			iterationSum += f.GetIterations();
+			return;
+		}
+		
+		SPHSystem sph = (SPHSystem) sim;
+		long start = governor != null ? System.nanoTime() : 0;
+		float dt;
+		if(frame > 0.0f)
+		{
+			// the part of a frame cut short was not simulated
+			double dropped = sph.GetDroppedTime();
+			substeps += sph.Advance(frame);
+			dt = frame - (float)(sph.GetDroppedTime()-dropped);
+		}
+		else
+		{
+			sph.animation();
+			dt = sph.GetTimeStep();
+		}
+		simTime += dt;
+		if(governor != null)
+		{
+			governor.Observe(System.nanoTime()-start, dt);
+		}
+		
+		// the last solve of the step, one per step unless frames take several
+		PressureSolver pressureSolver = sph.GetPressureSolver();
+		if(pressureSolver != null)
+		{
+			iterationSum += pressureSolver.GetIterations();
+		}
+		
+		int active = sph.GetNumActive();
+		activeSum += active;
+		if(active < activeMin)
+		{
+			activeMin = active;
+		}
+	}
+	
+	public int GetSteps()
+	{
+		return steps;
+	}
+	
+	public int GetWarmup()
+	{
+		return warmup;
+	}
+	
+	// the Z-order reorder threshold, 0 if -reorder was not given
+	public float GetReorder()
+	{
+		return reorder;
+	}
+	
+	public boolean ParseArgs(String[] args)
+	{
+		try
+		{
+			for(int i=0; i<args.length; i++)
+			{
+				String a = args[i];
+				if(a.equals("-world"))          world = Float.parseFloat(args[++i]);
+				else if(a.equals("-steps"))     steps = Integer.parseInt(args[++i]);
+				else if(a.equals("-warmup"))    warmup = Integer.parseInt(args[++i]);
+				else if(a.equals("-threads"))   threads = Integer.parseInt(args[++i]);
+				else if(a.equals("-kernel"))    kernelMode = args[++i].equals("table") ? SPHKernel.TABLE : SPHKernel.EXACT;
+				else if(a.equals("-error"))     kernelError = Float.parseFloat(args[++i]);
+				else if(a.equals("-symmetric")) symmetric = true;
+				else if(a.equals("-vectorized")) vectorized = true;
+				else if(a.equals("-paircache")) pairCache = true;
+				else if(a.equals("-skin"))      skin = Float.parseFloat(args[++i]);
+				else if(a.equals("-reorder"))   reorder = Float.parseFloat(args[++i]);
+				else if(a.equals("-search"))    searchMode = SPHSystem.SearchMode(args[++i]);
+				else if(a.equals("-open"))      open = true;
+				else if(a.equals("-fluid"))     fluid = Float.parseFloat(args[++i]);
+				else if(a.equals("-fling"))     fling = Integer.parseInt(args[++i]);
+				else if(a.equals("-sleep"))     sleep = Float.parseFloat(args[++i]);
+				else if(a.equals("-adaptive"))  adaptive = Float.parseFloat(args[++i]);
+				else if(a.equals("-frame"))     frame = Float.parseFloat(args[++i]);
+				else if(a.equals("-dt"))        timeStep = Float.parseFloat(args[++i]);
+				else if(a.equals("-solver"))    solver = SPHSystem.SolverMode(args[++i]);
+				else if(a.equals("-iterations")) maxIterations = Integer.parseInt(args[++i]);
+				else if(a.equals("-tolerance")) tolerance = Float.parseFloat(args[++i]);
+				else if(a.equals("-flip"))      flip = true;
+				else if(a.equals("-cell"))      cell = Float.parseFloat(args[++i]);
+				else if(a.equals("-budget"))    budget = Float.parseFloat(args[++i]);
+				else return false;
+			}
+		}
+		catch(RuntimeException e)
+		{
+			// missing value or not a number
+			return false;
+		}
+		// the uniform grid has no cells outside the world
+		if(open && searchMode == SPHSystem.SEARCH_GRID)
+		{
+			return false;
+		}
+		// sleeping works on cells, the quadtree has none
+		if(sleep > 0.0f && searchMode == SPHSystem.SEARCH_QUADTREE)
+		{
+			return false;
+		}
+		return steps > 0 && warmup >= 0 && world > 0.0f && searchMode >= 0 && solver >= 0;
+	}
+	
+	static void PrintUsage()
+	{
+		System.err.println("usage: HeadlessRunner [-world size] [-steps n] [-warmup n] [-threads n]");
+		System.err.println("                      [-kernel exact|table] [-error bound] [-symmetric] [-vectorized] [-paircache]");
+		System.err.println("                      [-skin s] [-reorder threshold] [-search grid|hash|quadtree]");
+		System.err.println("                      [-open] [-fluid size] [-fling every] [-sleep speed]");
+		System.err.println("                      [-adaptive maxstep] [-frame seconds] [-dt step]");
+		System.err.println("                      [-solver wcsph|pcisph|pbf] [-iterations n] [-tolerance error]");
+		System.err.println("                      [-flip] [-cell size] [-budget ms]");
+		System.err.println("-open needs -search hash or quadtree");
+		System.err.println("-sleep needs -search grid or hash");
+	}
+}
@@ -0,0 +1,192 @@
+/** File:		InputQueue.java
+ ** Author:		Dongli Zhang
+ ** Contact:	dongli.zhang0129@gmail.com
+ **
+ ** Copyright (C) Dongli Zhang 2013
+ **
+ ** This program is free software;  you can redistribute it and/or modify
+ ** it under the terms of the GNU General Public License as published by
+ ** the Free Software Foundation; either version 2 of the License, or
+ ** (at your option) any later version.
+ **
+ ** This program is distributed in the hope that it will be useful,
+ ** but WITHOUT ANY WARRANTY;  without even the implied warranty of
+ ** MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See
+ ** the GNU General Public License for more details.
+ **
+ ** You should have received a copy of the GNU General Public License
+ ** along with this program;  if not, write to the Free Software 
+ ** Foundation, 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA
+ */
+
+
+package com.example.particlesystem;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/* Bounded lock-free queue of touch events, any number of producer threads and
+ * one consumer thread. Each slot of the ring carries a sequence number: a
+ * producer claims the slot at the tail with one compare-and-set, writes the
+ * event into the primitive columns and then publishes it by advancing the
+ * sequence, the consumer frees the slot the same way. A full ring drops the
+ * event instead of waiting. Neither side allocates.
+ *
+ * The consumer takes all queued events at once with Drain(), they are then in
+ * the batch columns x, y, fx, fy, radius and time until the next Drain().
+ */
+public class InputQueue
+{
+	public static final float FORCE_SCALE = 300.0f; // acceleration of a touched particle per unit of force
+	
+	private final int mask;                // capacity-1, the capacity is a power of two
+	private final AtomicLongArray sequence; // per slot: ready to claim at pos, readable at pos+1
+	private final AtomicLong tail;         // next position to claim by a producer
+	private long head;                     // next position to read, owned by the consumer
+	private final AtomicLong dropped;      // events lost to a full ring
+	
+	// the ring, written by the producer that claimed a slot
+	private final float[] ringX;
+	private final float[] ringY;
+	private final float[] ringFX;
+	private final float[] ringFY;
+	private final float[] ringRadius;
+	private final long[] ringTime;
+	
+	// the events of the last Drain(), owned by the consumer
+	public final float[] x;                // touched position in [0, 1] of the world
+	public final float[] y;
+	public final float[] fx;               // finger added force
+	public final float[] fy;
+	public final float[] radius;           // reach in world units, 0 for the default of the engine
+	public final long[] time;              // System.nanoTime() when the event was queued
+	
+	// capacity is rounded up to a power of two
+	public InputQueue(int capacity)
+	{
+		int c = 1;
+		while(c < capacity)
+		{
+			c <<= 1;
+		}
+		mask = c-1;
+		
+		sequence = new AtomicLongArray(c);
+		for(int i=0; i<c; i++)
+		{
+			sequence.set(i, i);
+		}
+		tail = new AtomicLong(0);
+		head = 0;
+		dropped = new AtomicLong(0);
+		
+		ringX = new float[c];
+		ringY = new float[c];
+		ringFX = new float[c];
+		ringFY = new float[c];
+		ringRadius = new float[c];
+		ringTime = new long[c];
+		
+		x = new float[c];
+		y = new float[c];
+		fx = new float[c];
+		fy = new float[c];
+		radius = new float[c];
+		time = new long[c];
+	}
+	
+	// producer side, any thread: queue an event, false if the ring is full
+	public boolean Offer(float px, float py, float forceX, float forceY, float r)
+	{
+		long pos;
+		int slot;
+		while(true)
+		{
+			pos = tail.get();
+			slot = (int)pos & mask;
+			long seq = sequence.get(slot);
+			if(seq == pos)
+			{
+				// the slot is free, claim it unless another producer was faster
+				if(tail.compareAndSet(pos, pos+1))
+				{
+					break;
+				}
+			}
+			else if(seq < pos)
+			{
+				// the consumer has not freed the slot of the previous lap yet
+				dropped.incrementAndGet();
+				return false;
+			}
+			// else another producer claimed pos, try the next one
+		}
+		
+		ringX[slot] = px;
+		ringY[slot] = py;
+		ringFX[slot] = forceX;
+		ringFY[slot] = forceY;
+		ringRadius[slot] = r;
+		ringTime[slot] = System.nanoTime();
+		
+		// publish, the writes above become visible before the sequence. set() and not
+		// lazySet(), which needs API 9
+		sequence.set(slot, pos+1);
+		return true;
+	}
+	
+	// consumer side: move every published event into the batch columns and return
+	// their number. An event still being written by its producer stays for the next call.
+	public int Drain()
+	{
+		int n = 0;
+		while(n <= mask)
+		{
+			int slot = (int)head & mask;
+			if(sequence.get(slot) != head+1)
+			{
+				break;
+			}
+			
+			x[n] = ringX[slot];
+			y[n] = ringY[slot];
+			fx[n] = ringFX[slot];
+			fy[n] = ringFY[slot];
+			radius[n] = ringRadius[slot];
+			time[n] = ringTime[slot];
+			n++;
+			
+			// free the slot for the producers of the next lap
+			sequence.set(slot, head+mask+1);
+			head++;
+		}
+		return n;
+	}
+	
+	// consumer side: turn the first n events of the batch into world coordinates of a
+	// world of size world, clamped into it, and give those without a radius defaultRadius.
+	// Both engines go through here, so a touch reaches the same place in either.
+	public void ToWorld(int n, Vec2f world, float defaultRadius)
+	{
+		for(int e=0; e<n; e++)
+		{
+			x[e] = FastMath.Clamp(x[e], 0.0f, 1.0f) * world.x;
+			y[e] = FastMath.Clamp(y[e], 0.0f, 1.0f) * world.y;
+			if(radius[e] <= 0.0f)
+			{
+				radius[e] = defaultRadius;
+			}
+		}
+	}
+	
+	public int GetCapacity()
+	{
+		return mask+1;
+	}
+	
+	// events dropped because the ring was full
+	public long GetDropped()
+	{
+		return dropped.get();
+	}
+}
@@ -0,0 +1,181 @@
+/** File:		InterpolationCheck.java
+ ** Author:		Dongli Zhang
+ ** Contact:	dongli.zhang0129@gmail.com
+ **
+ ** Copyright (C) Dongli Zhang 2013
+ **
+ ** This program is free software;  you can redistribute it and/or modify
+ ** it under the terms of the GNU General Public License as published by
+ ** the Free Software Foundation; either version 2 of the License, or
+ ** (at your option) any later version.
+ **
+ ** This program is distributed in the hope that it will be useful,
+ ** but WITHOUT ANY WARRANTY;  without even the implied warranty of
+ ** MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See
+ ** the GNU General Public License for more details.
+ **
+ ** You should have received a copy of the GNU General Public License
+ ** along with this program;  if not, write to the Free Software 
+ ** Foundation, 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA
+ */
+
+package com.example.particlesystem;
+
+import java.nio.FloatBuffer;
+
+/* Checks the frames a FrameInterpolator draws:
+ *
+ *   java -cp bin/classes com.example.particlesystem.InterpolationCheck -steps 400 -fling 3
+ *
+ * takes the options of HeadlessRunner and builds the same scene, SPH with a
+ * Z-order reorder of REORDER unless -reorder is given, so that reorders happen.
+ * The steps are published into a TripleBuffer and drawn as the renderer does,
+ * RENDERS_PER_STEP times per step spread over the step. Particles are matched
+ * by id: between two drawings none may move further than it moved in the two
+ * steps the drawings lie in. Blending two frames of which the slots were
+ * reordered in between would move it across the fluid. Exits with 1 if a
+ * particle jumped.
+ */
+public class InterpolationCheck
+{
+	private static final int RENDERS_PER_STEP = 4;
+	private static final float REORDER = 0.3f;         // reorder often unless -reorder is given
+	private static final float JUMP_TOLERANCE = 1e-5f; // float rounding of the blend
+	
+	private final HeadlessRunner runner;
+	
+	public InterpolationCheck(HeadlessRunner r)
+	{
+		runner = r;
+	}
+	
+	public static void main(String[] args)
+	{
+		HeadlessRunner r = new HeadlessRunner();
+		if(!r.ParseArgs(args))
+		{
+			System.err.println("usage: InterpolationCheck [options of HeadlessRunner]");
+			HeadlessRunner.PrintUsage();
+			System.exit(2);
+		}
+		if(!new InterpolationCheck(r).Run())
+		{
+			System.exit(1);
+		}
+	}
+	
+	// false if a particle was drawn further than it moved
+	public boolean Run()
+	{
+		ParticleSimulation sim = runner.CreateSimulation();
+		if(sim instanceof SPHSystem && runner.GetReorder() <= 0.0f)
+		{
+			((SPHSystem) sim).SetReorder(REORDER);
+		}
+		int warmup = runner.GetWarmup();
+		int steps = runner.GetSteps();
+		for(int i=0; i<warmup; i++)
+		{
+			runner.Step(sim, i);
+		}
+		
+		int numParticle = sim.GetNumParticle();
+		ParticleStore ps = sim.GetParticles();
+		TripleBuffer frames = new TripleBuffer(numParticle);
+		FrameInterpolator interpolator = new FrameInterpolator(numParticle);
+		interpolator.SetTimeScale(1.0f);
+		
+		// by particle id: the last frame, the last drawing and the distance moved
+		// in the last step and in the step before it
+		float[] lastX = new float[numParticle];
+		float[] lastY = new float[numParticle];
+		float[] drawnX = new float[numParticle];
+		float[] drawnY = new float[numParticle];
+		float[] travel = new float[numParticle];
+		float[] travelBefore = new float[numParticle];
+		for(int k=0; k<numParticle; k++)
+		{
+			lastX[ps.id[k]] = ps.posX[k];
+			lastY[ps.id[k]] = ps.posY[k];
+		}
+		
+		sim.WritePositions(frames.GetBack());
+		frames.Publish(numParticle, 0, 0.0, sim.GetReorderCount());
+		Draw(interpolator.Update(frames, System.nanoTime()), ps, numParticle, drawnX, drawnY);
+		
+		int firstReorder = sim.GetReorderCount();
+		double time = 0.0;
+		int jumps = 0;
+		int blended = 0;
+		float worst = 0.0f;
+		for(int s=0; s<steps; s++)
+		{
+			sim.SetPositionOutput(frames.GetBack());
+			runner.Step(sim, warmup+s);
+			time += sim.GetTimeStep();
+			frames.Publish(numParticle, s+1, time, sim.GetReorderCount());
+			
+			float[] t = travelBefore;
+			travelBefore = travel;
+			travel = t;
+			for(int k=0; k<numParticle; k++)
+			{
+				int id = ps.id[k];
+				float dx = ps.posX[k]-lastX[id];
+				float dy = ps.posY[k]-lastY[id];
+				travel[id] = (float) Math.sqrt(dx*dx + dy*dy);
+				lastX[id] = ps.posX[k];
+				lastY[id] = ps.posY[k];
+			}
+			
+			// the first drawing right after the publication, the others spread over the step
+			long now = System.nanoTime();
+			for(int r=0; r<RENDERS_PER_STEP; r++)
+			{
+				FloatBuffer b = interpolator.Update(frames, now);
+				for(int k=0; k<numParticle; k++)
+				{
+					int id = ps.id[k];
+					float dx = b.get(2*k)-drawnX[id];
+					float dy = b.get(2*k+1)-drawnY[id];
+					float jump = (float) Math.sqrt(dx*dx + dy*dy) - (travel[id] + travelBefore[id]);
+					if(jump > JUMP_TOLERANCE)
+					{
+						jumps++;
+					}
+					worst = Math.max(worst, jump);
+				}
+				Draw(b, ps, numParticle, drawnX, drawnY);
+				if(interpolator.GetAlpha() < 1.0f)
+				{
+					blended++;
+				}
+				now = frames.GetFrontStamp() + (long)((r+1)*sim.GetTimeStep()*1e9/RENDERS_PER_STEP);
+			}
+		}
+		sim.SetPositionOutput(null);
+		sim.Shutdown();
+		
+		System.out.println("particles: "+numParticle+"  steps: "+steps+"  renders/step: "+RENDERS_PER_STEP
+				+"  reorders: "+(sim.GetReorderCount()-firstReorder));
+		System.out.println(String.format("blended drawings: %d of %d  largest jump beyond the travel of a particle: %.6f",
+				blended, steps*RENDERS_PER_STEP, worst));
+		if(jumps > 0)
+		{
+			System.out.println("interpolation: FAILED, "+jumps+" times a particle was drawn further than it moved");
+			return false;
+		}
+		System.out.println("interpolation: passed");
+		return true;
+	}
+	
+	// keep the drawn positions of buffer b by particle id
+	private static void Draw(FloatBuffer b, ParticleStore ps, int numParticle, float[] x, float[] y)
+	{
+		for(int k=0; k<numParticle; k++)
+		{
+			x[ps.id[k]] = b.get(2*k);
+			y[ps.id[k]] = b.get(2*k+1);
+		}
+	}
+}
@@ -0,0 +1,163 @@
+/** File:		LatencyHistogram.java
+ ** Author:		Dongli Zhang
+ ** Contact:	dongli.zhang0129@gmail.com
+ **
+ ** Copyright (C) Dongli Zhang 2013
+ **
+ ** This program is free software;  you can redistribute it and/or modify
+ ** it under the terms of the GNU General Public License as published by
+ ** the Free Software Foundation; either version 2 of the License, or
+ ** (at your option) any later version.
+ **
+ ** This program is distributed in the hope that it will be useful,
+ ** but WITHOUT ANY WARRANTY;  without even the implied warranty of
+ ** MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See
+ ** the GNU General Public License for more details.
+ **
+ ** You should have received a copy of the GNU General Public License
+ ** along with this program;  if not, write to the Free Software 
+ ** Foundation, 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA
+ */
+
+package com.example.particlesystem;
+
+/* Histogram of durations in nanoseconds with log-linear buckets, in the
+ * spirit of HdrHistogram: values below 128 are counted exactly, above that
+ * every power of two is split into 64 buckets, so any recorded value is
+ * reported within 1/64 (about 1.6%) of itself. Recording is a few integer
+ * operations and never allocates. One thread records, others should only
+ * read through a copy made on that thread, see SPHProfiler.Snapshot().
+ */
+public class LatencyHistogram
+{
+	private static final int SUB_BITS  = 6;
+	private static final int HALF      = 1<<SUB_BITS;   // buckets per power of two
+	private static final int LINEAR    = HALF*2;        // values counted exactly
+	private static final int MAX_SHIFT = 34;            // up to 2^41 ns, about 36 minutes
+	private static final int NUM_BUCKETS = LINEAR + MAX_SHIFT*HALF;
+	
+	private final long[] counts = new long[NUM_BUCKETS];
+	private long total;     // number of recorded values
+	private long sum;       // sum of recorded values
+	private long min;
+	private long max;
+	
+	public LatencyHistogram()
+	{
+		Reset();
+	}
+	
+	public void Record(long nanos)
+	{
+		if(nanos < 0)
+		{
+			nanos = 0;
+		}
+		counts[Index(nanos)]++;
+		total++;
+		sum += nanos;
+		if(nanos < min) min = nanos;
+		if(nanos > max) max = nanos;
+	}
+	
+	public void Reset()
+	{
+		for(int i=0; i<NUM_BUCKETS; i++)
+		{
+			counts[i] = 0;
+		}
+		total = 0;
+		sum = 0;
+		min = Long.MAX_VALUE;
+		max = 0;
+	}
+	
+	// copy all counts into h, e.g. to hand a consistent snapshot to another thread
+	public void CopyTo(LatencyHistogram h)
+	{
+		System.arraycopy(counts, 0, h.counts, 0, NUM_BUCKETS);
+		h.total = total;
+		h.sum = sum;
+		h.min = min;
+		h.max = max;
+	}
+	
+	public long GetCount()
+	{
+		return total;
+	}
+	
+	// sum of all recorded values
+	public long GetTotal()
+	{
+		return sum;
+	}
+	
+	public long GetMin()
+	{
+		return total == 0 ? 0 : min;
+	}
+	
+	public long GetMax()
+	{
+		return max;
+	}
+	
+	public double GetMean()
+	{
+		return total == 0 ? 0.0 : (double)sum/total;
+	}
+	
+	// smallest value that at least p percent of the recorded values do not exceed
+	public long GetPercentile(double p)
+	{
+		if(total == 0)
+		{
+			return 0;
+		}
+		
+		long rank = (long)Math.ceil(p/100.0*total);
+		if(rank < 1) rank = 1;
+		
+		long seen = 0;
+		for(int i=0; i<NUM_BUCKETS; i++)
+		{
+			seen += counts[i];
+			if(seen >= rank)
+			{
+				long v = HighestEquivalent(i);
+				return v < max ? v : max;
+			}
+		}
+		return max;
+	}
+	
+	private static int Index(long v)
+	{
+		if(v < LINEAR)
+		{
+			return (int)v;
+		}
+		
+		int shift = FastMath.HighestBit(v) - SUB_BITS;              // keeps SUB_BITS+1 significant bits
+		if(shift > MAX_SHIFT)
+		{
+			return NUM_BUCKETS-1;
+		}
+		int sub = (int)(v >>> shift);                               // in [HALF, 2*HALF)
+		return LINEAR + (shift-1)*HALF + (sub-HALF);
+	}
+	
+	// largest value that falls into bucket i
+	private static long HighestEquivalent(int i)
+	{
+		if(i < LINEAR)
+		{
+			return i;
+		}
+		
+		int shift = (i-LINEAR)/HALF + 1;
+		long sub = (i-LINEAR)%HALF + HALF;
+		return ((sub+1) << shift) - 1;
+	}
+}
@@ -0,0 +1,166 @@
+/** File:		LatticeWalls.java
+ ** Author:		Dongli Zhang
+ ** Contact:	dongli.zhang0129@gmail.com
+ **
+ ** Copyright (C) Dongli Zhang 2013
+ **
+ ** This program is free software;  you can redistribute it and/or modify
+ ** it under the terms of the GNU General Public License as published by
+ ** the Free Software Foundation; either version 2 of the License, or
+ ** (at your option) any later version.
+ **
+ ** This program is distributed in the hope that it will be useful,
+ ** but WITHOUT ANY WARRANTY;  without even the implied warranty of
+ ** MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See
+ ** the GNU General Public License for more details.
+ **
+ ** You should have received a copy of the GNU General Public License
+ ** along with this program;  if not, write to the Free Software 
+ ** Foundation, 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA
+ */
+
+package com.example.particlesystem;
+
+/* Walls of the world box seen as layers of the rest lattice behind them, for the
+ * incompressible solvers. The particles clamped onto a wall are the first layer
+ * of the lattice, the next ones lie behind the wall at multiples of the spacing.
+ * Their poly6 sum, their spiky kernel sum and their spiky gradient sum along the
+ * wall normal are tabulated by the distance of a particle from the wall.
+ */
+public class LatticeWalls
+{
+	public static final int SAMPLES = 32; // distances of the tables over the kernel
+	
+	private float scale;      // table samples per unit of distance from a wall
+	private float[] density;  // poly6 sum of the lattice behind a wall by distance from it
+	private float[] push;     // its spiky gradient sum along the wall normal, away from the wall
+	private float[] spiky;    // its spiky kernel sum, whose gradient is -push
+	
+	private float worldX;
+	private float worldY;
+	private boolean walls;    // false if only the floor holds the fluid
+	
+	// tables of the kernel kf of length kernel over a lattice of spacing
+	public LatticeWalls(SPHKernel kf, float kernel, float spacing)
+	{
+		float kernel2 = kernel*kernel;
+		int n = (int) Math.ceil(kernel/spacing);
+		scale = SAMPLES/kernel;
+		density = new float[SAMPLES+1];
+		push = new float[SAMPLES+1];
+		spiky = new float[SAMPLES+1];
+		
+		for(int t=0; t<SAMPLES; t++)
+		{
+			float v = t/scale;
+			for(int l=1; v+l*spacing<kernel; l++)
+			{
+				for(int i=-n; i<=n; i++)
+				{
+					float rx = i*spacing;
+					float ry = v+l*spacing;
+					float r2 = rx*rx+ry*ry;
+					if(r2 >= kernel2)
+					{
+						continue;
+					}
+					
+					float r = (float) Math.sqrt(r2);
+					density[t] = density[t] + kf.poly6(r2);
+					push[t] = push[t] - kf.spiky(r)/r * ry;
+					spiky[t] = spiky[t] - kf.spiky(r)*(kernel-r)/3.0f;
+				}
+			}
+		}
+	}
+	
+	// the box of the next solve, w is false if only the floor holds the fluid
+	public void Set(Vec2f world, boolean w)
+	{
+		worldX = world.x;
+		worldY = world.y;
+		walls = w;
+	}
+	
+	// poly6 sum of the walls within the kernel of (x, y), without the mass
+	public float Density(float x, float y)
+	{
+		float s = Table(density, y);
+		if(walls)
+		{
+			s = s + Table(density, x) + Table(density, worldX-x) + Table(density, worldY-y);
+		}
+		return s;
+	}
+	
+	// spiky kernel sum of the walls within the kernel of (x, y), the kernel whose
+	// gradient kf.spiky() is, without the mass
+	public float SpikyDensity(float x, float y)
+	{
+		float s = Table(spiky, y);
+		if(walls)
+		{
+			s = s + Table(spiky, x) + Table(spiky, worldX-x) + Table(spiky, worldY-y);
+		}
+		return s;
+	}
+	
+	// spiky gradient sum of the side walls at x, positive pushes towards +x
+	public float PushX(float x)
+	{
+		if(!walls)
+		{
+			return 0.0f;
+		}
+		return Table(push, x) - Table(push, worldX-x);
+	}
+	
+	// spiky gradient sum of the floor and the ceiling at y, positive pushes towards +y
+	public float PushY(float y)
+	{
+		float s = Table(push, y);
+		if(walls)
+		{
+			s = s - Table(push, worldY-y);
+		}
+		return s;
+	}
+	
+	// x held inside the side walls, as the advection of SPHSystem clamps it
+	public float ClampX(float x)
+	{
+		if(walls && x < 0.0f) x = 0.0f;
+		if(walls && x >= worldX) x = worldX - 0.0001f;
+		return x;
+	}
+	
+	// y held above the floor and below the ceiling
+	public float ClampY(float y)
+	{
+		if(y < 0.0f) y = 0.0f;
+		if(walls && y >= worldY) y = worldY - 0.0001f;
+		return y;
+	}
+	
+	public long GetMemoryBytes()
+	{
+		return 4L*(density.length + push.length + spiky.length);
+	}
+	
+	// the table t at distance v from a wall, 0 beyond the kernel
+	private float Table(float[] t, float v)
+	{
+		float x = v*scale;
+		if(x >= SAMPLES)
+		{
+			return 0.0f;
+		}
+		if(x < 0.0f)
+		{
+			x = 0.0f;
+		}
+		int i = (int)x;
+		float f = x-i;
+		return t[i] + (t[i+1]-t[i])*f;
+	}
+}
@@ -41,6 +41,9 @@ public class MainActivity extends ActionBarActivity implements OnGestureListener
 	protected void onCreate(Bundle savedInstanceState) {
 		super.onCreate(savedInstanceState);
 		
+		// messages of the simulation core go to logcat
+		SPHLog.SetSink(new AndroidLogSink());
+		
 		render = new MyGLRender();
 		view = new GLSurfaceView(this);
 		view.setRenderer(render);
@@ -50,6 +53,20 @@ public class MainActivity extends ActionBarActivity implements OnGestureListener
 		mGestureDetector = new GestureDetector(this);
 	}
 
+	@Override
+	protected void onPause() {
+		super.onPause();
+		view.onPause();
+		render.Pause();
+	}
+	
+	@Override
+	protected void onResume() {
+		super.onResume();
+		view.onResume();
+		render.Resume();
+	}
+
 	@Override
 	public boolean onCreateOptionsMenu(Menu menu) {
 		getMenuInflater().inflate(R.menu.main, menu);
@@ -115,7 +132,7 @@ public class MainActivity extends ActionBarActivity implements OnGestureListener
 		float forceY = ((height-e2.getY())-(height-py))/height;
 		
 		// inject external force from finger to SPH System
-		render.GetSPH().Add_external_event(perX, perY, forceX, forceY);
+		render.GetSimulation().Add_external_event(perX, perY, forceX, forceY);
 		
 		return false;
 	}
@@ -21,8 +21,6 @@
 
 package com.example.particlesystem;
 
-import java.nio.ByteBuffer;
-import java.nio.ByteOrder;
 import java.nio.FloatBuffer;
 import javax.microedition.khronos.egl.EGLConfig;
 import javax.microedition.khronos.opengles.GL10;
@@ -31,34 +29,80 @@ import android.opengl.GLU;
 
 public class MyGLRender implements GLSurfaceView.Renderer
 {	
-	private float vert[];
-	private FloatBuffer vertexBuffer;
-	SPHSystem sph;
+	private SimulationDriver driver;   // steps the SPH System on its own thread
+	private FrameInterpolator interpolator; // draws between the last two simulated frames
+	private float timeScale = 1.0f;    // simulated seconds per wall second, 0 steps by the step rate
+	private QualityGovernor governor;  // keeps the SPH steps within the frame budget, null for FLIP
+	
+	// milliseconds of stepping per 60 Hz frame of simulated time, the simulation thread
+	// shares the cores with the renderer and the worker threads
+	private static final float STEP_BUDGET = 10.0f;
+	private long framePeriod;          // nanoseconds per frame, 0 draws at the display rate
+	private long lastFrame;
+	private volatile SPHProfiler profiler; // acquire/draw/frame histograms, null when off
+	private long lastFrameStart;
+	
+	// phases of a rendered frame, for profiling
+	public static final int RENDER_ACQUIRE = 0; // pick up the newest positions
+	public static final int RENDER_DRAW    = 1; // vertex upload and draw calls
+	public static final int RENDER_FRAME   = 2; // time between the starts of two frames
+	private static final String[] RENDER_PHASES = {"acquire", "draw", "frame"};
+	
+	// fluid engines, see SetEngine
+	public static final int ENGINE_SPH  = 0;
+	public static final int ENGINE_FLIP = 1; // hybrid PIC/FLIP, about ten times the particles
+	private int engine = ENGINE_SPH;
+	
+	ParticleSimulation sim;
 	int window_width;
 	int window_height;
 	
 	@Override
 	public void onSurfaceCreated(GL10 gl, EGLConfig config) 
 	{
-		// init SPH System
-		sph = new SPHSystem(new Vec2f(0.64f, 0.64f));
-		// init all particles
-		sph.InitFluid();
-		// create the vertex buffer for particles
-		vert = new float[sph.GetNumParticle()*2];
+		// the surface can be recreated, stop the old simulation
+		if(driver != null)
+		{
+			driver.Stop();
+			sim.Shutdown();
+		}
 		
-		int numParticle = sph.GetNumParticle();
-		for(int i=0; i<numParticle; i++)
+		governor = null;
+		if(engine == ENGINE_FLIP)
+		{
+			// init the hybrid engine over the same world, its cells are half the SPH kernel
+			FLIPSystem flip = new FLIPSystem(new Vec2f(0.64f, 0.64f));
+			flip.SetThreads(Runtime.getRuntime().availableProcessors());
+			flip.InitFluid();
+			sim = flip;
+		}
+		else
 		{
-			vert[i*2]   = sph.GetList().get(i).pos.x;
-			vert[i*2+1] = sph.GetList().get(i).pos.y;
+			// init SPH System
+			SPHSystem sph = new SPHSystem(new Vec2f(0.64f, 0.64f));
+			// split the per particle phases across all cores
+			sph.SetThreads(Runtime.getRuntime().availableProcessors());
+			// keep spatial neighbors close in memory as the fluid mixes
+			sph.SetReorder(0.3f);
+			// stop computing the fluid once it has settled, a touch wakes it
+			sph.SetSleeping(0.01f);
+			// init all particles
+			sph.InitFluid();
+			sim = sph;
+			// slower devices give up some quality instead of falling behind real time
+			governor = new QualityGovernor(sph, STEP_BUDGET, 1.0f/60.0f);
 		}
 		
-		ByteBuffer vertexByteBuffer = ByteBuffer.allocateDirect(vert.length*4);
-		vertexByteBuffer.order(ByteOrder.nativeOrder());
-		vertexBuffer = vertexByteBuffer.asFloatBuffer();
-		vertexBuffer.put(vert);
-		vertexBuffer.position(0);
+		// run the simulation next to the renderer, frames are picked up from a triple buffer
+		// the fluid advances in real time whatever the display rate, the frames in between
+		// are interpolated
+		driver = new SimulationDriver(sim);
+		driver.SetStepRate(60.0f);
+		driver.SetTimeScale(timeScale);
+		driver.SetGovernor(governor);
+		interpolator = new FrameInterpolator(sim.GetNumParticle());
+		interpolator.SetTimeScale(timeScale);
+		driver.Start();
 	}
 
 	@Override
@@ -67,7 +111,7 @@ public class MyGLRender implements GLSurfaceView.Renderer
 		gl.glViewport(0, 0, width, height);
 		gl.glMatrixMode(GL10.GL_PROJECTION);
 		gl.glLoadIdentity();
-		GLU.gluOrtho2D(gl, 0.0f, sph.GetWorldSize().x, 0.0f, sph.GetWorldSize().y);
+		GLU.gluOrtho2D(gl, 0.0f, sim.GetWorldSize().x, 0.0f, sim.GetWorldSize().y);
 		
 		gl.glMatrixMode(GL10.GL_MODELVIEW);
 		gl.glLoadIdentity();
@@ -79,19 +123,27 @@ public class MyGLRender implements GLSurfaceView.Renderer
 	@Override
 	public void onDrawFrame(GL10 gl) 
 	{
-		// for each iteration, animate the system and generate one frame
-		sph.animation();
-		int numParticle = sph.GetNumParticle();
+		ThrottleFrame();
 		
-		// copy the particle position to vertex buffer
-		for(int i=0; i<numParticle; i++)
+		SPHProfiler prof = profiler;
+		long t = prof != null ? System.nanoTime() : 0;
+		if(prof != null)
 		{
-			vert[i*2]   = sph.GetList().get(i).pos.x;
-			vert[i*2+1] = sph.GetList().get(i).pos.y;
+			if(lastFrameStart != 0)
+			{
+				prof.Record(RENDER_FRAME, t-lastFrameStart);
+			}
+			lastFrameStart = t;
 		}
 		
-		vertexBuffer.put(vert);
-		vertexBuffer.position(0);
+		// positions between the last two simulated frames, never waits for the simulation
+		FloatBuffer vertexBuffer = interpolator.Update(driver.GetFrames(), System.nanoTime());
+		if(prof != null)
+		{
+			long now = System.nanoTime();
+			prof.Record(RENDER_ACQUIRE, now-t);
+			t = now;
+		}
 		
 		// smooth point (particle)
 		gl.glEnable(GL10.GL_POINT_SMOOTH);
@@ -103,16 +155,147 @@ public class MyGLRender implements GLSurfaceView.Renderer
 		
 		gl.glEnableClientState(GL10.GL_VERTEX_ARRAY);
 		gl.glColor4f(1.0f, 0.0f, 0.0f, 1.0f);
-		gl.glPointSize(20.0f);
+		// the FLIP particles are a third of the SPH spacing apart
+		gl.glPointSize(engine == ENGINE_FLIP ? 7.0f : 20.0f);
 		gl.glVertexPointer(2, GL10.GL_FLOAT, 0, vertexBuffer);
 		// main function to draw points
-		gl.glDrawArrays(GL10.GL_POINTS, 0, sph.GetNumParticle());
+		gl.glDrawArrays(GL10.GL_POINTS, 0, interpolator.GetCount());
 		gl.glDisableClientState(GL10.GL_VERTEX_ARRAY);
+		
+		if(prof != null)
+		{
+			prof.Record(RENDER_DRAW, System.nanoTime()-t);
+			prof.Tick();
+		}
+	}
+	
+	// Record frame and simulation phase histograms and dump them to the log every
+	// dumpMillis milliseconds (0 never). Off by default, then it costs one branch per phase.
+	public void SetProfiling(boolean on, long dumpMillis)
+	{
+		if(on)
+		{
+			SPHProfiler p = new SPHProfiler("render", RENDER_PHASES);
+			p.SetDumpInterval(dumpMillis);
+			lastFrameStart = 0;
+			profiler = p;
+		}
+		else
+		{
+			profiler = null;
+		}
+		
+		if(sim != null)
+		{
+			sim.SetProfiling(on);
+			if(on)
+			{
+				sim.GetProfiler().SetDumpInterval(dumpMillis);
+			}
+		}
+	}
+	
+	// frame histograms, null when profiling is off
+	public SPHProfiler GetProfiler()
+	{
+		return profiler;
+	}
+	
+	// sleep off the rest of the frame period if a frame rate below the display rate is set
+	private void ThrottleFrame()
+	{
+		long period = framePeriod;
+		if(period > 0)
+		{
+			long wait = lastFrame + period - System.nanoTime();
+			if(wait > 0)
+			{
+				try
+				{
+					Thread.sleep(wait/1000000, (int)(wait%1000000));
+				}
+				catch(InterruptedException e)
+				{
+					Thread.currentThread().interrupt();
+				}
+			}
+		}
+		lastFrame = System.nanoTime();
+	}
+	
+	// frames per second to draw, 0 for the display rate
+	public void SetFrameRate(float fps)
+	{
+		framePeriod = fps > 0.0f ? (long)(1e9/fps) : 0;
+	}
+	
+	// simulation steps per second, 0 for as fast as possible, while the time scale is 0
+	public void SetStepRate(float stepsPerSecond)
+	{
+		if(driver != null)
+		{
+			driver.SetStepRate(stepsPerSecond);
+		}
+	}
+	
+	// simulated seconds per wall second, 1 is real time, 0 steps by the step rate and
+	// draws the newest frame without interpolation
+	public void SetTimeScale(float scale)
+	{
+		timeScale = scale;
+		if(driver != null)
+		{
+			driver.SetTimeScale(scale);
+		}
+		if(interpolator != null)
+		{
+			interpolator.SetTimeScale(scale);
+		}
+	}
+	
+	public float GetTimeScale()
+	{
+		return timeScale;
+	}
+	
+	// stop simulating while the activity is in the background
+	public void Pause()
+	{
+		if(driver != null)
+		{
+			driver.Stop();
+		}
+	}
+	
+	public void Resume()
+	{
+		if(driver != null)
+		{
+			driver.Start();
+		}
+	}
+	
+	// ENGINE_SPH or ENGINE_FLIP, takes effect when the surface is created next
+	public void SetEngine(int e)
+	{
+		engine = e;
+	}
+	
+	public int GetEngine()
+	{
+		return engine;
+	}
+	
+	// what the SPH engine currently gives up for speed, null for FLIP
+	public QualityGovernor GetGovernor()
+	{
+		return governor;
 	}
 	
-	public SPHSystem GetSPH()
+	// the running engine, the touch input goes to it
+	public ParticleSimulation GetSimulation()
 	{
-		return sph;
+		return sim;
 	}
 	
 	public int GetWindowWidth()
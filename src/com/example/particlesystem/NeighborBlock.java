@@ -0,0 +1,103 @@
+/** File:		NeighborBlock.java
+ ** Author:		Dongli Zhang
+ ** Contact:	dongli.zhang0129@gmail.com
+ **
+ ** Copyright (C) Dongli Zhang 2013
+ **
+ ** This program is free software;  you can redistribute it and/or modify
+ ** it under the terms of the GNU General Public License as published by
+ ** the Free Software Foundation; either version 2 of the License, or
+ ** (at your option) any later version.
+ **
+ ** This program is distributed in the hope that it will be useful,
+ ** but WITHOUT ANY WARRANTY;  without even the implied warranty of
+ ** MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See
+ ** the GNU General Public License for more details.
+ **
+ ** You should have received a copy of the GNU General Public License
+ ** along with this program;  if not, write to the Free Software 
+ ** Foundation, 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA
+ */
+
+package com.example.particlesystem;
+
+/* The candidates of one NeighborSearch query for NeighborKernels, their
+ * columns copied out of the ParticleStore into contiguous arrays so that the
+ * kernels load whole vectors instead of gathering through the slots. Padded
+ * with the particle itself up to a whole number of lanes, see NeighborKernels.
+ * One per thread, the columns grow with the densest neighborhood.
+ */
+public class NeighborBlock
+{
+	// position of the candidates
+	public float[] posX = new float[0];
+	public float[] posY = new float[0];
+	
+	// pressure and accumulative velocity of the candidates, only for the force pass
+	public float[] pres = new float[0];
+	public float[] evX = new float[0];
+	public float[] evY = new float[0];
+	
+	public int count;       // number of candidates with the padding
+	
+	// copy the candidates in the numRanges ranges of index around particle k, with their
+	// pressure and velocity if force is set
+	public void Gather(ParticleStore ps, int[] index, int[] ranges, int numRanges, int k,
+			int lanes, boolean force)
+	{
+		int n = 0;
+		for(int r=0; r<numRanges; r++)
+		{
+			n += ranges[2*r+1]-ranges[2*r];
+		}
+		count = (n+lanes-1)/lanes*lanes;
+		if(posX.length < count)
+		{
+			// a few times at the start
+			Grow(2*count);
+		}
+		
+		float[] psX = ps.posX;
+		float[] psY = ps.posY;
+		float[] psPres = ps.pres;
+		float[] psEvX = ps.evX;
+		float[] psEvY = ps.evY;
+		n = 0;
+		for(int r=0; r<numRanges; r++)
+		{
+			int rangeEnd = ranges[2*r+1];
+			for(int m=ranges[2*r]; m<rangeEnd; m++, n++)
+			{
+				int s = index[m];
+				posX[n] = psX[s];
+				posY[n] = psY[s];
+				if(force)
+				{
+					pres[n] = psPres[s];
+					evX[n] = psEvX[s];
+					evY[n] = psEvY[s];
+				}
+			}
+		}
+		for(; n<count; n++)
+		{
+			posX[n] = psX[k];
+			posY[n] = psY[k];
+			if(force)
+			{
+				pres[n] = psPres[k];
+				evX[n] = psEvX[k];
+				evY[n] = psEvY[k];
+			}
+		}
+	}
+	
+	private void Grow(int size)
+	{
+		posX = new float[size];
+		posY = new float[size];
+		pres = new float[size];
+		evX = new float[size];
+		evY = new float[size];
+	}
+}
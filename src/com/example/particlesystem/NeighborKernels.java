@@ -0,0 +1,52 @@
+/** File:		NeighborKernels.java
+ ** Author:		Dongli Zhang
+ ** Contact:	dongli.zhang0129@gmail.com
+ **
+ ** Copyright (C) Dongli Zhang 2013
+ **
+ ** This program is free software;  you can redistribute it and/or modify
+ ** it under the terms of the GNU General Public License as published by
+ ** the Free Software Foundation; either version 2 of the License, or
+ ** (at your option) any later version.
+ **
+ ** This program is distributed in the hope that it will be useful,
+ ** but WITHOUT ANY WARRANTY;  without even the implied warranty of
+ ** MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See
+ ** the GNU General Public License for more details.
+ **
+ ** You should have received a copy of the GNU General Public License
+ ** along with this program;  if not, write to the Free Software 
+ ** Foundation, 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA
+ */
+
+package com.example.particlesystem;
+
+/* The inner loops of the density and force passes of SPHSystem, over the
+ * neighbors of one particle. The scalar loops stay in SPHSystem; an
+ * implementation does several neighbors at once. FloatVectorKernels in the jvm
+ * source root does them in vector lanes with jdk.incubator.vector,
+ * SPHSystem.SetVectorized() loads it by name so that this tree builds without
+ * it, e.g. for Android.
+ * The candidates of a NeighborSearch query come in a NeighborBlock, padded
+ * with the particle itself up to a whole number of lanes so that every load is
+ * full. Pairs closer than MIN_DIST2, which includes the padding, or at or beyond
+ * the kernel length are left out, as in the scalar loops.
+ * The calls do not allocate once compiled and may run on several threads at once.
+ */
+public interface NeighborKernels
+{
+	public static final float MIN_DIST2 = 0.000001f; // coincident pairs have no direction
+	
+	// the kernel length, particle mass and viscosity of the system and its EXACT kernels
+	void SetConstants(float kernel, float mass, float viscosity, SPHKernel kf);
+	
+	// density of particle k from the candidates in block, without k itself
+	float Density(NeighborBlock block, ParticleStore ps, int k);
+	
+	// pressure and viscosity acceleration of particle k times its density, from the
+	// candidates in block, into acc[0] and acc[1]
+	void Force(NeighborBlock block, ParticleStore ps, int k, float[] acc);
+	
+	// neighbors done at once, the padding of the candidates
+	int GetLanes();
+}
@@ -0,0 +1,185 @@
+/** File:		NeighborList.java
+ ** Author:		Dongli Zhang
+ ** Contact:	dongli.zhang0129@gmail.com
+ **
+ ** Copyright (C) Dongli Zhang 2013
+ **
+ ** This program is free software;  you can redistribute it and/or modify
+ ** it under the terms of the GNU General Public License as published by
+ ** the Free Software Foundation; either version 2 of the License, or
+ ** (at your option) any later version.
+ **
+ ** This program is distributed in the hope that it will be useful,
+ ** but WITHOUT ANY WARRANTY;  without even the implied warranty of
+ ** MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See
+ ** the GNU General Public License for more details.
+ **
+ ** You should have received a copy of the GNU General Public License
+ ** along with this program;  if not, write to the Free Software 
+ ** Foundation, 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA
+ */
+
+
+package com.example.particlesystem;
+
+/* Verlet neighbor lists.
+ * The neighbors of particle k within kernel+skin are stored in
+ * list[start[k]] ... list[start[k+1]-1]. The lists stay valid as long as no
+ * particle has moved more than skin/2 since they were built, so they are
+ * rebuilt only when the largest displacement exceeds that.
+ */
+public class NeighborList 
+{
+	private float skin;        // extra radius beyond the kernel
+	private float cutoff;      // kernel + skin
+	
+	public int[] start;        // first entry of each particle in list, numParticle+1 entries
+	public int[] list;         // neighbor slots of all particles
+	
+	private float[] refX;      // positions at the last build
+	private float[] refY;
+	private int[] ranges;      // index ranges of one query
+	private int num;           // number of particles at the last build, 0 if invalid
+	
+	private long steps;        // number of steps that used the lists
+	private long rebuilds;     // number of builds
+	
+	public NeighborList(float s)
+	{
+		skin = s;
+		start = new int[1];
+		list  = new int[0];
+		refX  = new float[0];
+		refY  = new float[0];
+		ranges = new int[0];
+		num = 0;
+	}
+	
+	public float GetSkin()
+	{
+		return skin;
+	}
+	
+	// force a rebuild at the next step, e.g. after particles were added or moved between slots
+	public void Invalidate()
+	{
+		num = 0;
+	}
+	
+	// rebuild the lists if needed, returns true if they were rebuilt
+	public boolean Update(ParticleStore ps, int n, NeighborSearch search, float kernel)
+	{
+		steps++;
+		if(n == num && MaxDisplacement2(ps) <= skin*skin*0.25f)
+		{
+			return false;
+		}
+		
+		Build(ps, n, search, kernel);
+		rebuilds++;
+		return true;
+	}
+	
+	public long GetStepCount()
+	{
+		return steps;
+	}
+	
+	public long GetRebuildCount()
+	{
+		return rebuilds;
+	}
+	
+	// fraction of steps that rebuilt the lists
+	public float GetRebuildRate()
+	{
+		return steps == 0 ? 0.0f : (float)rebuilds/steps;
+	}
+	
+	public void ResetStats()
+	{
+		steps = 0;
+		rebuilds = 0;
+	}
+	
+	private float MaxDisplacement2(ParticleStore ps)
+	{
+		float[] posX = ps.posX;
+		float[] posY = ps.posY;
+		float max = 0.0f;
+		
+		for(int i=0; i<num; i++)
+		{
+			float dx = posX[i]-refX[i];
+			float dy = posY[i]-refY[i];
+			float d2 = dx*dx+dy*dy;
+			if(d2 > max)
+			{
+				max = d2;
+			}
+		}
+		
+		return max;
+	}
+	
+	private void Build(ParticleStore ps, int n, NeighborSearch search, float kernel)
+	{
+		if(start.length < n+1)
+		{
+			start = new int[n+1];
+			refX  = new float[n];
+			refY  = new float[n];
+		}
+		
+		float[] posX = ps.posX;
+		float[] posY = ps.posY;
+		int[] index = search.GetIndex();
+		
+		cutoff = kernel+skin;
+		float cutoff2 = cutoff*cutoff;
+		// the index ranges that can hold a particle within the cutoff
+		if(ranges.length < 2*search.GetMaxRanges(cutoff))
+		{
+			ranges = new int[2*search.GetMaxRanges(cutoff)];
+		}
+		int total = 0;
+		
+		for(int k=0; k<n; k++)
+		{
+			float px = posX[k];
+			float py = posY[k];
+			refX[k] = px;
+			refY[k] = py;
+			start[k] = total;
+			
+			int numRanges = search.Query(px, py, cutoff, ranges);
+			for(int r=0; r<numRanges; r++)
+			{
+				int rangeEnd = ranges[2*r+1];
+				for(int s=ranges[2*r]; s<rangeEnd; s++)
+				{
+					int np = index[s];
+					if(np == k) continue;
+					
+					float distVecX = posX[np] - px;
+					float distVecY = posY[np] - py;
+					if(distVecX*distVecX+distVecY*distVecY >= cutoff2)
+					{
+						continue;
+					}
+					
+					if(total == list.length)
+					{
+						int[] l = new int[total < 1024 ? 1024 : total*2];
+						System.arraycopy(list, 0, l, 0, total);
+						list = l;
+					}
+					list[total++] = np;
+				}
+			}
+		}
+		
+		start[n] = total;
+		num = n;
+	}
+}
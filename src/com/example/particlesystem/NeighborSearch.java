@@ -0,0 +1,53 @@
+/** File:		NeighborSearch.java
+ ** Author:		Dongli Zhang
+ ** Contact:	dongli.zhang0129@gmail.com
+ **
+ ** Copyright (C) Dongli Zhang 2013
+ **
+ ** This program is free software;  you can redistribute it and/or modify
+ ** it under the terms of the GNU General Public License as published by
+ ** the Free Software Foundation; either version 2 of the License, or
+ ** (at your option) any later version.
+ **
+ ** This program is distributed in the hope that it will be useful,
+ ** but WITHOUT ANY WARRANTY;  without even the implied warranty of
+ ** MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See
+ ** the GNU General Public License for more details.
+ **
+ ** You should have received a copy of the GNU General Public License
+ ** along with this program;  if not, write to the Free Software 
+ ** Foundation, 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA
+ */
+
+package com.example.particlesystem;
+
+/* Spatial index of the particle slots, rebuilt every step.
+ * Build() sorts the slots into GetIndex(). Query() then writes [begin, end)
+ * pairs of index entries into ranges, which together hold every particle within
+ * r of (x, y) and possibly some farther ones, so callers still test the distance.
+ * Queries do not allocate and may run on several threads at once, each with its
+ * own ranges array of at least 2*GetMaxRanges(r) entries.
+ */
+public interface NeighborSearch
+{
+	// sort the first num particles of ps
+	void Build(ParticleStore ps, int num);
+	
+	// particle slots in search order, valid until the next Build()
+	int[] GetIndex();
+	
+	// fill ranges with begin, end pairs into GetIndex(), returns the number of pairs
+	int Query(float x, float y, float r, int[] ranges);
+	
+	// upper bound of the pairs one query of radius r returns
+	int GetMaxRanges(float r);
+	
+	// fraction of the particles far in memory from the one visited before them in Z-order
+	float Scatter(int num);
+	
+	// fill order with the particle slots in Z-order, for ParticleStore.Permute
+	void MortonOrder(int[] order);
+	
+	// bytes held by the arrays of the search structure
+	long GetMemoryBytes();
+}
@@ -0,0 +1,477 @@
+/** File:		PBFSolver.java
+ ** Author:		Dongli Zhang
+ ** Contact:	dongli.zhang0129@gmail.com
+ **
+ ** Copyright (C) Dongli Zhang 2013
+ **
+ ** This program is free software;  you can redistribute it and/or modify
+ ** it under the terms of the GNU General Public License as published by
+ ** the Free Software Foundation; either version 2 of the License, or
+ ** (at your option) any later version.
+ **
+ ** This program is distributed in the hope that it will be useful,
+ ** but WITHOUT ANY WARRANTY;  without even the implied warranty of
+ ** MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See
+ ** the GNU General Public License for more details.
+ **
+ ** You should have received a copy of the GNU General Public License
+ ** along with this program;  if not, write to the Free Software 
+ ** Foundation, 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA
+ */
+
+package com.example.particlesystem;
+
+/* Position-based fluids (PBF).
+ * Called after the non-pressure accelerations are in accX, accY. The positions
+ * at the end of the step are predicted from them, then each Jacobi iteration
+ * computes the multiplier of the density constraint rho/rest-1 <= 0 of every
+ * particle and moves all of them at once along the constraint gradients. The
+ * change of the predicted positions is added to accX, accY as an acceleration,
+ * so the advection of SPHSystem lands the particles on them with the matching
+ * velocity. Only compression is corrected, which keeps the free surface from
+ * clumping without an artificial tension term.
+ * The solve smooths over SUPPORT particle spacings like PCISPHSolver, the walls
+ * count as lattice layers behind them. The search is built on the positions of
+ * the step start, so a query reaches as far as the largest predicted move
+ * further, up to MAX_SKIN kernels. Nothing is allocated per step unless the
+ * particle count or the thread count grows.
+ */
+public class PBFSolver implements PressureSolver
+{
+	public static final int MIN_ITERATIONS      = 2;
+	public static final int DEFAULT_ITERATIONS  = 4;
+	public static final float DEFAULT_TOLERANCE = 0.01f; // mean density error relative to the rest density
+	public static final float RELAXATION        = 0.1f;  // of the lattice gradient sum, softens the constraints
+	public static final float SUPPORT           = 2.0f;  // kernel length of the solve in particle spacings
+	public static final float MAX_SHIFT         = 0.2f;  // largest move by one iteration, of the kernel
+	public static final float MAX_SKIN          = 1.0f;  // largest query reach beyond the kernel, of the kernel
+	
+	private int maxIterations = DEFAULT_ITERATIONS; // iteration cap of one solve
+	private float tolerance = DEFAULT_TOLERANCE;
+	
+	private SPHKernel kf;
+	private float kernel;
+	private float mass;
+	private float restDensity;        // density inside the lattice of the initial spacing
+	private float softness;           // constraint mixing added to the gradient sums
+	private LatticeWalls wall;        // the lattice layers behind the walls
+	
+	private float[] predX;            // predicted positions
+	private float[] predY;
+	private float[] nextX;            // predicted positions after the running iteration
+	private float[] nextY;
+	private float[] lambda;           // constraint multiplier of each particle, 0 or negative
+	private float[] sumError;         // per thread sum of the density errors of an iteration
+	private float[] maxMove2;         // per thread largest squared move from the step start
+	private int[][] ranges;           // per thread query buffers of the kernel plus the skin
+	
+	// state of the solve in progress, read by the tasks
+	private ParticleStore ps;
+	private NeighborSearch search;
+	private float dt;
+	private float reach;              // query radius of the iteration
+	private int sleepAfter;
+	
+	private int iterations;           // iterations of the last solve
+	private float densityError;       // mean density error left by the last solve
+	
+	private WorkerPool.RangeTask predictTask;
+	private WorkerPool.RangeTask lambdaTask;
+	private WorkerPool.RangeTask shiftTask;
+	private WorkerPool.RangeTask velocityTask;
+	
+	// spacing of the particle lattice at rest, m the particle mass
+	public PBFSolver(float spacing, float m)
+	{
+		kernel = SUPPORT*spacing;
+		kf = new SPHKernel(kernel);
+		mass = m;
+		predX = new float[0];
+		predY = new float[0];
+		nextX = new float[0];
+		nextY = new float[0];
+		lambda = new float[0];
+		sumError = new float[1];
+		maxMove2 = new float[1];
+		Prototype(spacing);
+		wall = new LatticeWalls(kf, kernel, spacing);
+		
+		predictTask = new WorkerPool.RangeTask() {
+			public void Run(int begin, int end, int worker)
+			{
+				Predict(begin, end, worker);
+			}
+		};
+		lambdaTask = new WorkerPool.RangeTask() {
+			public void Run(int begin, int end, int worker)
+			{
+				CompLambda(begin, end, worker);
+			}
+		};
+		shiftTask = new WorkerPool.RangeTask() {
+			public void Run(int begin, int end, int worker)
+			{
+				CompShift(begin, end, worker);
+			}
+		};
+		velocityTask = new WorkerPool.RangeTask() {
+			public void Run(int begin, int end, int worker)
+			{
+				Acceleration(begin, end);
+			}
+		};
+	}
+	
+	// rest density and constraint gradient sum of a particle inside a full lattice
+	private void Prototype(float spacing)
+	{
+		float kernel2 = kernel*kernel;
+		float dens = mass*kf.poly6(0.0f);
+		float grad = 0.0f;
+		int n = (int) Math.ceil(kernel/spacing);
+		
+		for(int i=-n; i<=n; i++)
+		{
+			for(int j=-n; j<=n; j++)
+			{
+				float rx = i*spacing;
+				float ry = j*spacing;
+				float r2 = rx*rx+ry*ry;
+				if(r2 == 0.0f || r2 >= kernel2)
+				{
+					continue;
+				}
+				
+				float g = kf.spiky((float) Math.sqrt(r2));
+				dens = dens + mass*kf.poly6(r2);
+				grad = grad + g*g;
+			}
+		}
+		restDensity = dens;
+		
+		// the gradients of the neighbors cancel inside the lattice, their squares remain
+		float s = mass/restDensity;
+		softness = RELAXATION*s*s*grad;
+	}
+	
+	public void SetLimits(int maxIter, float tol)
+	{
+		maxIterations = maxIter < MIN_ITERATIONS ? MIN_ITERATIONS : maxIter;
+		tolerance = tol;
+	}
+	
+	public int GetMaxIterations()
+	{
+		return maxIterations;
+	}
+	
+	public float GetTolerance()
+	{
+		return tolerance;
+	}
+	
+	public float GetRestDensity()
+	{
+		return restDensity;
+	}
+	
+	public float GetKernel()
+	{
+		return kernel;
+	}
+	
+	public int GetIterations()
+	{
+		return iterations;
+	}
+	
+	public float GetDensityError()
+	{
+		return densityError;
+	}
+	
+	public long GetMemoryBytes()
+	{
+		long buffers = ranges == null ? 0 : (long)ranges.length*ranges[0].length;
+		return 4L*(predX.length + predY.length + nextX.length + nextY.length + lambda.length
+				+ sumError.length + maxMove2.length + buffers) + wall.GetMemoryBytes();
+	}
+	
+	public void Solve(ParticleStore p, int num, NeighborSearch s, WorkerPool pool,
+			float t, Vec2f world, boolean w, int sleep)
+	{
+		if(predX.length < num)
+		{
+			predX = new float[num];
+			predY = new float[num];
+			nextX = new float[num];
+			nextY = new float[num];
+			lambda = new float[num];
+		}
+		int threads = pool == null ? 1 : pool.GetNumThreads();
+		if(sumError.length != threads)
+		{
+			sumError = new float[threads];
+			maxMove2 = new float[threads];
+		}
+		int size = 2*s.GetMaxRanges(kernel*(1.0f+MAX_SKIN));
+		if(ranges == null || ranges.length != threads || ranges[0].length < size)
+		{
+			ranges = new int[threads][size];
+		}
+		
+		ps = p;
+		search = s;
+		dt = t;
+		sleepAfter = sleep;
+		wall.Set(world, w);
+		
+		Run(pool, predictTask, num);
+		
+		iterations = 0;
+		do
+		{
+			// the farthest any particle got from where the search sorted it
+			float move2 = 0.0f;
+			for(int k=0; k<threads; k++)
+			{
+				if(maxMove2[k] > move2) move2 = maxMove2[k];
+				maxMove2[k] = 0.0f;
+			}
+			float skin = (float) Math.sqrt(move2);
+			reach = kernel + (skin < MAX_SKIN*kernel ? skin : MAX_SKIN*kernel);
+			
+			Run(pool, lambdaTask, num);
+			float sum = 0.0f;
+			for(int k=0; k<threads; k++)
+			{
+				sum = sum + sumError[k];
+				sumError[k] = 0.0f;
+			}
+			densityError = num == 0 ? 0.0f : sum/num;
+			
+			// Jacobi, every particle moves from the positions of the last iteration
+			Run(pool, shiftTask, num);
+			float[] f = predX; predX = nextX; nextX = f;
+			f = predY; predY = nextY; nextY = f;
+			iterations++;
+		}
+		while(iterations < maxIterations && (iterations < MIN_ITERATIONS || densityError > tolerance));
+		
+		Run(pool, velocityTask, num);
+		
+		// do not keep the store alive through the solver
+		ps = null;
+		search = null;
+	}
+	
+	private static void Run(WorkerPool pool, WorkerPool.RangeTask task, int num)
+	{
+		if(pool == null)
+		{
+			task.Run(0, num, 0);
+		}
+		else
+		{
+			pool.Run(task, num);
+		}
+	}
+	
+	// positions at the end of the step without the constraints, held by the walls
+	private void Predict(int begin, int end, int worker)
+	{
+		float[] posX = ps.posX;
+		float[] posY = ps.posY;
+		float[] velX = ps.velX;
+		float[] velY = ps.velY;
+		float[] accX = ps.accX;
+		float[] accY = ps.accY;
+		int[] calm = ps.calm;
+		float move2 = 0.0f;
+		
+		for(int i=begin; i<end; i++)
+		{
+			if(calm[i] >= sleepAfter)
+			{
+				predX[i] = posX[i];
+				predY[i] = posY[i];
+				continue;
+			}
+			
+			float vx = velX[i]+accX[i]*dt;
+			float vy = velY[i]+accY[i]*dt;
+			float x = wall.ClampX(posX[i]+vx*dt);
+			float y = wall.ClampY(posY[i]+vy*dt);
+			predX[i] = x;
+			predY[i] = y;
+			
+			float dx = x-posX[i];
+			float dy = y-posY[i];
+			if(dx*dx+dy*dy > move2) move2 = dx*dx+dy*dy;
+		}
+		
+		if(move2 > maxMove2[worker]) maxMove2[worker] = move2;
+	}
+	
+	// density at the predicted positions and the multiplier of its constraint
+	private void CompLambda(int begin, int end, int worker)
+	{
+		int[] calm = ps.calm;
+		NeighborSearch ns = search;
+		int[] index = ns.GetIndex();
+		int[] r = ranges[worker];
+		float kernel2 = kernel*kernel;
+		float selfDens = mass*kf.poly6(0.0f);
+		float invRest = 1.0f/restDensity;
+		float scale = mass*invRest;
+		float err = 0.0f;
+		
+		for(int k=begin; k<end; k++)
+		{
+			lambda[k] = 0.0f;
+			if(calm[k] >= sleepAfter) continue;
+			
+			float px = predX[k];
+			float py = predY[k];
+			float d = selfDens + mass*wall.Density(px, py);
+			float gradX = -wall.PushX(px);  // gradient of the density of k by its position
+			float gradY = -wall.PushY(py);
+			float grad2 = 0.0f;             // squared gradients by the positions of the neighbors
+			
+			int numRanges = ns.Query(px, py, reach, r);
+			for(int q=0; q<numRanges; q++)
+			{
+				int rangeEnd = r[2*q+1];
+				for(int n=r[2*q]; n<rangeEnd; n++)
+				{
+					int np = index[n];
+					float dx = predX[np] - px;
+					float dy = predY[np] - py;
+					float dist2 = dx*dx+dy*dy;
+					if(dist2<0.000001f || dist2>=kernel2)
+					{
+						continue;
+					}
+					
+					float dist = (float) Math.sqrt(dist2);
+					float g = kf.spiky(dist);
+					d = d + mass * kf.poly6(dist2);
+					gradX = gradX - g*dx/dist;
+					gradY = gradY - g*dy/dist;
+					grad2 = grad2 + g*g;
+				}
+			}
+			
+			float c = (d-restDensity)*invRest;
+			if(c <= 0.0f)
+			{
+				continue;
+			}
+			float sum = scale*scale*(gradX*gradX + gradY*gradY + grad2);
+			lambda[k] = -c/(sum + softness);
+			err = err + c;
+		}
+		
+		sumError[worker] += err;
+	}
+	
+	// move each particle by the multipliers of its own and of its neighbors' constraints
+	private void CompShift(int begin, int end, int worker)
+	{
+		float[] posX = ps.posX;
+		float[] posY = ps.posY;
+		int[] calm = ps.calm;
+		NeighborSearch ns = search;
+		int[] index = ns.GetIndex();
+		int[] r = ranges[worker];
+		float kernel2 = kernel*kernel;
+		float scale = mass/restDensity;
+		float maxShift = MAX_SHIFT*kernel;
+		float maxShift2 = maxShift*maxShift;
+		float move2 = 0.0f;
+		
+		for(int k=begin; k<end; k++)
+		{
+			float px = predX[k];
+			float py = predY[k];
+			if(calm[k] >= sleepAfter)
+			{
+				nextX[k] = px;
+				nextY[k] = py;
+				continue;
+			}
+			
+			float lk = lambda[k];
+			float sx = 0.0f;
+			float sy = 0.0f;
+			
+			int numRanges = ns.Query(px, py, reach, r);
+			for(int q=0; q<numRanges; q++)
+			{
+				int rangeEnd = r[2*q+1];
+				for(int n=r[2*q]; n<rangeEnd; n++)
+				{
+					int np = index[n];
+					float dx = predX[np] - px;
+					float dy = predY[np] - py;
+					float dist2 = dx*dx+dy*dy;
+					if(dist2<0.000001f || dist2>=kernel2)
+					{
+						continue;
+					}
+					
+					// the multipliers and the spiky gradient are negative, so this moves away from the neighbor
+					float dist = (float) Math.sqrt(dist2);
+					float f = (lk+lambda[np]) * kf.spiky(dist) / dist;
+					sx = sx - dx*f;
+					sy = sy - dy*f;
+				}
+			}
+			
+			// the lattice behind a wall has the multiplier of the particle
+			sx = (sx - 2.0f*lk*wall.PushX(px))*scale;
+			sy = (sy - 2.0f*lk*wall.PushY(py))*scale;
+			
+			// a particle squeezed against a wall or a crowd must not jump across the kernel
+			float s2 = sx*sx+sy*sy;
+			if(s2 > maxShift2)
+			{
+				float f = (float) Math.sqrt(maxShift2/s2);
+				sx = sx*f;
+				sy = sy*f;
+			}
+			
+			float x = wall.ClampX(px+sx);
+			float y = wall.ClampY(py+sy);
+			nextX[k] = x;
+			nextY[k] = y;
+			
+			float dx = x-posX[k];
+			float dy = y-posY[k];
+			if(dx*dx+dy*dy > move2) move2 = dx*dx+dy*dy;
+		}
+		
+		if(move2 > maxMove2[worker]) maxMove2[worker] = move2;
+	}
+	
+	// the acceleration that carries each particle from its position to the solved one
+	private void Acceleration(int begin, int end)
+	{
+		float[] posX = ps.posX;
+		float[] posY = ps.posY;
+		float[] velX = ps.velX;
+		float[] velY = ps.velY;
+		float[] accX = ps.accX;
+		float[] accY = ps.accY;
+		int[] calm = ps.calm;
+		float invDt = 1.0f/dt;
+		
+		for(int i=begin; i<end; i++)
+		{
+			if(calm[i] >= sleepAfter) continue;
+			
+			accX[i] = ((predX[i]-posX[i])*invDt - velX[i])*invDt;
+			accY[i] = ((predY[i]-posY[i])*invDt - velY[i])*invDt;
+		}
+	}
+}
@@ -0,0 +1,532 @@
+/** File:		PCISPHSolver.java
+ ** Author:		Dongli Zhang
+ ** Contact:	dongli.zhang0129@gmail.com
+ **
+ ** Copyright (C) Dongli Zhang 2013
+ **
+ ** This program is free software;  you can redistribute it and/or modify
+ ** it under the terms of the GNU General Public License as published by
+ ** the Free Software Foundation; either version 2 of the License, or
+ ** (at your option) any later version.
+ **
+ ** This program is distributed in the hope that it will be useful,
+ ** but WITHOUT ANY WARRANTY;  without even the implied warranty of
+ ** MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See
+ ** the GNU General Public License for more details.
+ **
+ ** You should have received a copy of the GNU General Public License
+ ** along with this program;  if not, write to the Free Software 
+ ** Foundation, 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA
+ */
+
+package com.example.particlesystem;
+
+/* Predictive-corrective incompressible pressure solve (PCISPH).
+ * Called after the non-pressure accelerations are in accX, accY. Each iteration
+ * predicts the velocities at the end of the step, the density they lead to
+ * through the continuity equation, and raises the pressure of the compressed
+ * particles by their density error over how much their own pressure lowers it,
+ * then recomputes the pressure acceleration. It stops once the mean density
+ * error is below the tolerance, after at least MIN_ITERATIONS, adds the pressure
+ * acceleration to accX, accY and leaves the pressures in ps.pres.
+ * Predicting the density from the velocities instead of moving the particles
+ * keeps it linear in the pressures, and the pairs with their kernel gradients are
+ * found once a step and kept for the iterations.
+ * The scene kernel only reaches the four nearest particles of the lattice, too few
+ * for the density to follow small moves, so the solve smooths over SUPPORT particle
+ * spacings, queried from the same search structure. Density and pressure both use
+ * the spiky kernel: with the same gradient for both, a pressure lowers the density
+ * of a pair as much on either side and the Jacobi iteration converges at twice the
+ * time steps SOLVER_WCSPH stays stable at, with a poly6 density it rang and
+ * diverged there. The walls count as lattice layers behind them, see
+ * LatticeWalls. Nothing is allocated per step unless the particle count, the
+ * thread count or the number of pairs grows.
+ */
+public class PCISPHSolver implements PressureSolver
+{
+	public static final int MIN_ITERATIONS      = 2;
+	public static final int DEFAULT_ITERATIONS  = 50;
+	public static final float DEFAULT_TOLERANCE = 0.01f; // mean density error relative to the rest density
+	public static final float RELAXATION        = 0.5f;  // of the pressure step, a Jacobi iteration overshoots at full weight
+	public static final float SUPPORT           = 2.0f;  // kernel length of the solve in particle spacings
+	
+	private int maxIterations = DEFAULT_ITERATIONS; // iteration cap of one solve
+	private float tolerance = DEFAULT_TOLERANCE;
+	
+	private SPHKernel kf;
+	private float kernel;
+	private float mass;
+	private float restDensity;        // density inside the lattice of the initial spacing
+	private float latticeGrad;        // sum of the squared spiky gradients over a particle inside the lattice
+	private LatticeWalls wall;        // the lattice layers behind the walls
+	
+	private float[] density;          // density at the step start
+	private float[] predVelX;         // predicted velocities
+	private float[] predVelY;
+	private float[] presAccX;         // pressure acceleration
+	private float[] presAccY;
+	private float[] diag;             // density lowered by a unit pressure of the particle itself
+	private float[] sumError;         // per thread sum of the density errors of an iteration
+	private int[][] ranges;           // per thread query buffers for the kernel of the solve
+	
+	private int[] pairWorker;         // thread whose buffers hold the pairs of each particle
+	private int[] pairStart;          // first of the pairs of each particle in those buffers
+	private int[] pairCount;          // number of the pairs of each particle
+	private int[] pairUsed;           // pairs written by each thread in this step
+	private int[][] pairIndex;        // per thread pairs: neighbor slot and mass times the
+	private float[][] pairGradX;      // spiky gradient, towards the neighbor
+	private float[][] pairGradY;
+	
+	// state of the solve in progress, read by the tasks
+	private ParticleStore ps;
+	private NeighborSearch search;
+	private float dt;
+	private int sleepAfter;
+	
+	private int iterations;           // iterations of the last solve
+	private float densityError;       // mean density error left by the last solve
+	
+	private WorkerPool.RangeTask factorTask;
+	private WorkerPool.RangeTask predictTask;
+	private WorkerPool.RangeTask densityTask;
+	private WorkerPool.RangeTask pressureTask;
+	
+	// spacing of the particle lattice at rest, m the particle mass
+	public PCISPHSolver(float spacing, float m)
+	{
+		kernel = SUPPORT*spacing;
+		kf = new SPHKernel(kernel);
+		mass = m;
+		density = new float[0];
+		predVelX = new float[0];
+		predVelY = new float[0];
+		presAccX = new float[0];
+		presAccY = new float[0];
+		diag = new float[0];
+		sumError = new float[1];
+		Prototype(spacing);
+		wall = new LatticeWalls(kf, kernel, spacing);
+		
+		factorTask = new WorkerPool.RangeTask() {
+			public void Run(int begin, int end, int worker)
+			{
+				CompFactor(begin, end, worker);
+			}
+		};
+		predictTask = new WorkerPool.RangeTask() {
+			public void Run(int begin, int end, int worker)
+			{
+				Predict(begin, end);
+			}
+		};
+		densityTask = new WorkerPool.RangeTask() {
+			public void Run(int begin, int end, int worker)
+			{
+				CorrectPressure(begin, end, worker);
+			}
+		};
+		pressureTask = new WorkerPool.RangeTask() {
+			public void Run(int begin, int end, int worker)
+			{
+				PressureAcceleration(begin, end);
+			}
+		};
+	}
+	
+	// rest density and gradient sums of a particle inside a full lattice
+	private void Prototype(float spacing)
+	{
+		float kernel2 = kernel*kernel;
+		float dens = mass*Spiky(0.0f);
+		float grad = 0.0f;
+		int n = (int) Math.ceil(kernel/spacing);
+		
+		for(int i=-n; i<=n; i++)
+		{
+			for(int j=-n; j<=n; j++)
+			{
+				float rx = i*spacing;
+				float ry = j*spacing;
+				float r2 = rx*rx+ry*ry;
+				if(r2 == 0.0f || r2 >= kernel2)
+				{
+					continue;
+				}
+				
+				float r = (float) Math.sqrt(r2);
+				float g = kf.spiky(r);
+				dens = dens + mass*Spiky(r);
+				grad = grad + g*g;
+			}
+		}
+		restDensity = dens;
+		latticeGrad = grad;
+	}
+	
+	public void SetLimits(int maxIter, float tol)
+	{
+		maxIterations = maxIter < MIN_ITERATIONS ? MIN_ITERATIONS : maxIter;
+		tolerance = tol;
+	}
+	
+	public int GetMaxIterations()
+	{
+		return maxIterations;
+	}
+	
+	public float GetTolerance()
+	{
+		return tolerance;
+	}
+	
+	public float GetRestDensity()
+	{
+		return restDensity;
+	}
+	
+	public float GetKernel()
+	{
+		return kernel;
+	}
+	
+	public int GetIterations()
+	{
+		return iterations;
+	}
+	
+	public float GetDensityError()
+	{
+		return densityError;
+	}
+	
+	public long GetMemoryBytes()
+	{
+		long buffers = ranges == null ? 0 : (long)ranges.length*ranges[0].length;
+		long pairs = 0;
+		if(pairIndex != null)
+		{
+			pairs = 12L*pairStart.length + 4L*pairUsed.length;
+			for(int i=0; i<pairIndex.length; i++)
+			{
+				pairs += 12L*pairIndex[i].length;
+			}
+		}
+		return 4L*(density.length + predVelX.length + predVelY.length + presAccX.length
+				+ presAccY.length + diag.length + sumError.length + buffers) + pairs
+				+ wall.GetMemoryBytes();
+	}
+	
+	public void Solve(ParticleStore p, int num, NeighborSearch s, WorkerPool pool,
+			float t, Vec2f world, boolean w, int sleep)
+	{
+		if(density.length < num)
+		{
+			density = new float[num];
+			predVelX = new float[num];
+			predVelY = new float[num];
+			presAccX = new float[num];
+			presAccY = new float[num];
+			diag = new float[num];
+			pairWorker = new int[num];
+			pairStart = new int[num];
+			pairCount = new int[num];
+		}
+		int threads = pool == null ? 1 : pool.GetNumThreads();
+		if(sumError.length != threads)
+		{
+			sumError = new float[threads];
+		}
+		if(pairIndex == null || pairIndex.length != threads)
+		{
+			pairUsed = new int[threads];
+			
+			// 16 pairs a particle, grown by the workers when a step needs more
+			int size = Math.max(64, 16*num/threads);
+			pairIndex = new int[threads][size];
+			pairGradX = new float[threads][size];
+			pairGradY = new float[threads][size];
+		}
+		int size = 2*s.GetMaxRanges(kernel);
+		if(ranges == null || ranges.length != threads || ranges[0].length < size)
+		{
+			ranges = new int[threads][size];
+		}
+		for(int i=0; i<threads; i++)
+		{
+			pairUsed[i] = 0;
+		}
+		
+		ps = p;
+		search = s;
+		dt = t;
+		sleepAfter = sleep;
+		wall.Set(world, w);
+		
+		// every step starts from zero pressure, a pressure kept from the last
+		// step winds up where the particles are held by a wall
+		Run(pool, factorTask, num);
+		
+		iterations = 0;
+		do
+		{
+			Run(pool, predictTask, num);
+			Run(pool, densityTask, num);
+			float sum = 0.0f;
+			for(int k=0; k<threads; k++)
+			{
+				sum = sum + sumError[k];
+				sumError[k] = 0.0f;
+			}
+			densityError = num == 0 ? 0.0f : sum/num;
+			Run(pool, pressureTask, num);
+			iterations++;
+		}
+		while(iterations < maxIterations && (iterations < MIN_ITERATIONS || densityError > tolerance));
+		
+		float[] accX = p.accX;
+		float[] accY = p.accY;
+		for(int i=0; i<num; i++)
+		{
+			accX[i] = accX[i] + presAccX[i];
+			accY[i] = accY[i] + presAccY[i];
+		}
+		
+		// do not keep the store alive through the solver
+		ps = null;
+		search = null;
+	}
+	
+	private static void Run(WorkerPool pool, WorkerPool.RangeTask task, int num)
+	{
+		if(pool == null)
+		{
+			task.Run(0, num, 0);
+		}
+		else
+		{
+			pool.Run(task, num);
+		}
+	}
+	
+	// the pairs of each particle with their kernel gradients, its density at the
+	// step start and how much its own pressure lowers its predicted density
+	private void CompFactor(int begin, int end, int worker)
+	{
+		float[] posX = ps.posX;
+		float[] posY = ps.posY;
+		float[] pres = ps.pres;
+		int[] calm = ps.calm;
+		NeighborSearch ns = search;
+		int[] index = ns.GetIndex();
+		int[] r = ranges[worker];
+		float kernel2 = kernel*kernel;
+		float selfDens = mass*Spiky(0.0f);
+		float scale = dt*dt/(restDensity*restDensity);
+		float minDiag = scale*mass*mass*latticeGrad;
+		int used = pairUsed[worker];
+		int[] pi = pairIndex[worker];
+		float[] pgx = pairGradX[worker];
+		float[] pgy = pairGradY[worker];
+		
+		for(int k=begin; k<end; k++)
+		{
+			pres[k] = 0.0f;
+			presAccX[k] = 0.0f;
+			presAccY[k] = 0.0f;
+			pairWorker[k] = worker;
+			pairStart[k] = used;
+			pairCount[k] = 0;
+			if(calm[k] >= sleepAfter) continue;
+			
+			float px = posX[k];
+			float py = posY[k];
+			float pushX = mass*wall.PushX(px);
+			float pushY = mass*wall.PushY(py);
+			float d = selfDens + mass*wall.SpikyDensity(px, py);
+			float gradX = 0.0f; // sum of the gradients by the position of k
+			float gradY = 0.0f;
+			float grad2 = 0.0f; // sum of their squares
+			int first = used;
+			
+			int numRanges = ns.Query(px, py, kernel, r);
+			for(int q=0; q<numRanges; q++)
+			{
+				int rangeEnd = r[2*q+1];
+				
+				// room for every candidate of this range
+				if(used + rangeEnd-r[2*q] > pi.length)
+				{
+					GrowPairs(worker, used + rangeEnd-r[2*q], used);
+					pi = pairIndex[worker];
+					pgx = pairGradX[worker];
+					pgy = pairGradY[worker];
+				}
+				
+				for(int n=r[2*q]; n<rangeEnd; n++)
+				{
+					int np = index[n];
+					float dx = posX[np] - px;
+					float dy = posY[np] - py;
+					float dist2 = dx*dx+dy*dy;
+					if(dist2<0.000001f || dist2>=kernel2)
+					{
+						continue;
+					}
+					
+					// the spiky gradient is negative, the gradient by the position of k
+					// points towards the neighbor
+					float dist = (float) Math.sqrt(dist2);
+					float g = -mass*kf.spiky(dist)/dist;
+					d = d + mass*Spiky(dist);
+					gradX = gradX + g*dx;
+					gradY = gradY + g*dy;
+					grad2 = grad2 + g*g*dist2;
+					
+					pi[used] = np;
+					pgx[used] = g*dx;
+					pgy[used] = g*dy;
+					used++;
+				}
+			}
+			
+			pairCount[k] = used-first;
+			density[k] = d;
+			
+			// the pressure of k pushes it away from its neighbors and from the walls,
+			// which lowers its density through its own move and through theirs. The
+			// walls, whose density gradient is -push, take the pressure of k, so
+			// they push twice as hard as they weigh
+			float a = scale*(grad2 + (gradX-2.0f*pushX)*(gradX-pushX) + (gradY-2.0f*pushY)*(gradY-pushY));
+			
+			// a particle with few or far neighbors barely moves its density, its pressure
+			// would explode, so it gets at most the pressure of a full neighborhood
+			diag[k] = a > minDiag ? a : minDiag;
+		}
+		
+		pairUsed[worker] = used;
+	}
+	
+	// the first used pairs written by worker in this step are kept
+	private void GrowPairs(int worker, int size, int used)
+	{
+		int n = Math.max(size, pairIndex[worker].length*2);
+		
+		int[] index = new int[n];
+		float[] gradX = new float[n];
+		float[] gradY = new float[n];
+		System.arraycopy(pairIndex[worker], 0, index, 0, used);
+		System.arraycopy(pairGradX[worker], 0, gradX, 0, used);
+		System.arraycopy(pairGradY[worker], 0, gradY, 0, used);
+		pairIndex[worker] = index;
+		pairGradX[worker] = gradX;
+		pairGradY[worker] = gradY;
+	}
+	
+	// the spiky kernel, whose gradient kf.spiky() is
+	private float Spiky(float r)
+	{
+		return -kf.spiky(r)*(kernel-r)/3.0f;
+	}
+	
+	// velocities at the end of the step with the current pressure
+	private void Predict(int begin, int end)
+	{
+		float[] velX = ps.velX;
+		float[] velY = ps.velY;
+		float[] accX = ps.accX;
+		float[] accY = ps.accY;
+		int[] calm = ps.calm;
+		
+		for(int i=begin; i<end; i++)
+		{
+			if(calm[i] >= sleepAfter)
+			{
+				predVelX[i] = 0.0f;
+				predVelY[i] = 0.0f;
+				continue;
+			}
+			
+			predVelX[i] = velX[i]+(accX[i]+presAccX[i])*dt;
+			predVelY[i] = velY[i]+(accY[i]+presAccY[i])*dt;
+		}
+	}
+	
+	// density the predicted velocities lead to, raise the pressure of the compressed particles
+	private void CorrectPressure(int begin, int end, int worker)
+	{
+		float[] posX = ps.posX;
+		float[] posY = ps.posY;
+		float[] pres = ps.pres;
+		int[] calm = ps.calm;
+		float invRest = 1.0f/restDensity;
+		float err = 0.0f;
+		
+		for(int k=begin; k<end; k++)
+		{
+			if(calm[k] >= sleepAfter) continue;
+			
+			float vx = predVelX[k];
+			float vy = predVelY[k];
+			
+			// the walls stand still, their density gradient points away from the push
+			float rate = -mass*(vx*wall.PushX(posX[k]) + vy*wall.PushY(posY[k]));
+			
+			int w = pairWorker[k];
+			int[] pi = pairIndex[w];
+			float[] pgx = pairGradX[w];
+			float[] pgy = pairGradY[w];
+			int pairEnd = pairStart[k]+pairCount[k];
+			for(int n=pairStart[k]; n<pairEnd; n++)
+			{
+				int np = pi[n];
+				rate = rate + (vx-predVelX[np])*pgx[n] + (vy-predVelY[np])*pgy[n];
+			}
+			
+			float d = density[k] + rate*dt;
+			
+			// only compression is corrected, the free surface keeps no negative pressure
+			float p = pres[k] + RELAXATION*(d-restDensity)/diag[k];
+			pres[k] = p > 0.0f ? p : 0.0f;
+			if(d > restDensity) err = err + (d-restDensity)*invRest;
+		}
+		
+		sumError[worker] += err;
+	}
+	
+	// symmetric pressure acceleration over the pairs of the step start
+	private void PressureAcceleration(int begin, int end)
+	{
+		float[] posX = ps.posX;
+		float[] posY = ps.posY;
+		float[] pres = ps.pres;
+		int[] calm = ps.calm;
+		float scale = 1.0f/(restDensity*restDensity);
+		
+		for(int k=begin; k<end; k++)
+		{
+			if(calm[k] >= sleepAfter) continue;
+			
+			float pp = pres[k];
+			
+			// the lattice behind a wall has the pressure of the particle and pushes it back
+			float ax = 2.0f*pp*mass*wall.PushX(posX[k]);
+			float ay = 2.0f*pp*mass*wall.PushY(posY[k]);
+			
+			int w = pairWorker[k];
+			int[] pi = pairIndex[w];
+			float[] pgx = pairGradX[w];
+			float[] pgy = pairGradY[w];
+			int pairEnd = pairStart[k]+pairCount[k];
+			for(int n=pairStart[k]; n<pairEnd; n++)
+			{
+				// the gradient points towards the neighbor, the pressure pushes away from it
+				float f = pp+pres[pi[n]];
+				ax = ax - f*pgx[n];
+				ay = ay - f*pgy[n];
+			}
+			
+			presAccX[k] = ax*scale;
+			presAccY[k] = ay*scale;
+		}
+	}
+}
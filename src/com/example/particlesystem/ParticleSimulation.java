@@ -0,0 +1,77 @@
+/** File:		ParticleSimulation.java
+ ** Author:		Dongli Zhang
+ ** Contact:	dongli.zhang0129@gmail.com
+ **
+ ** Copyright (C) Dongli Zhang 2013
+ **
+ ** This program is free software;  you can redistribute it and/or modify
+ ** it under the terms of the GNU General Public License as published by
+ ** the Free Software Foundation; either version 2 of the License, or
+ ** (at your option) any later version.
+ **
+ ** This program is distributed in the hope that it will be useful,
+ ** but WITHOUT ANY WARRANTY;  without even the implied warranty of
+ ** MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See
+ ** the GNU General Public License for more details.
+ **
+ ** You should have received a copy of the GNU General Public License
+ ** along with this program;  if not, write to the Free Software 
+ ** Foundation, 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA
+ */
+
+package com.example.particlesystem;
+
+import java.nio.FloatBuffer;
+
+/* What the renderer, the simulation thread and the touch input need from a
+ * fluid engine, so SPHSystem and FLIPSystem can be swapped under them.
+ */
+public interface ParticleSimulation
+{
+	// advance the simulation by one step
+	void animation();
+	
+	// simulated seconds of the last step
+	float GetTimeStep();
+	
+	int GetNumParticle();
+	
+	Vec2f GetWorldSize();
+	
+	// column view of all particles, read posX/posY etc. by slot
+	ParticleStore GetParticles();
+	
+	// receive x, y of every slot during the step, null stops writing
+	void SetPositionOutput(FloatBuffer out);
+	
+	// write the current positions into out, e.g. for the frame before the first step
+	void WritePositions(FloatBuffer out);
+	
+	// number of times the particles were moved to other slots, positions written
+	// under different counts must not be matched slot by slot
+	int GetReorderCount();
+	
+	// queue a finger at (x, y) in [0, 1] of the world flinging with (fx, fy) for the
+	// next step, safe from any thread and without allocation
+	void Add_external_event(float x, float y, float fx, float fy);
+	
+	// as above, reaching radius in world units instead of the default of the engine
+	void Add_external_event(float x, float y, float fx, float fy, float radius);
+	
+	// number of threads of the step, 1 is serial
+	void SetThreads(int threads);
+	
+	int GetThreads();
+	
+	// the pool threads besides the caller of animation(), empty when serial
+	Thread[] GetWorkerThreads();
+	
+	// record the duration of each phase of animation() into latency histograms
+	void SetProfiling(boolean p);
+	
+	// null until profiling was turned on
+	SPHProfiler GetProfiler();
+	
+	// stop the worker threads
+	void Shutdown();
+}
@@ -0,0 +1,244 @@
+/** File:		ParticleStore.java
+ ** Author:		Dongli Zhang
+ ** Contact:	dongli.zhang0129@gmail.com
+ **
+ ** Copyright (C) Dongli Zhang 2013
+ **
+ ** This program is free software;  you can redistribute it and/or modify
+ ** it under the terms of the GNU General Public License as published by
+ ** the Free Software Foundation; either version 2 of the License, or
+ ** (at your option) any later version.
+ **
+ ** This program is distributed in the hope that it will be useful,
+ ** but WITHOUT ANY WARRANTY;  without even the implied warranty of
+ ** MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See
+ ** the GNU General Public License for more details.
+ **
+ ** You should have received a copy of the GNU General Public License
+ ** along with this program;  if not, write to the Free Software 
+ ** Foundation, 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA
+ */
+
+
+package com.example.particlesystem;
+
+/* Structure-of-arrays storage of all particles.
+ * Each attribute lives in its own primitive column indexed by particle slot,
+ * so the neighbor loops read contiguous floats instead of chasing Vec2f objects.
+ */
+public class ParticleStore 
+{
+	public int[] id;        // id of the particle stored in each slot
+	private int[] slotOfId; // slot of each particle id, kept in sync when slots are permuted
+	
+	// position of particle
+	public float[] posX;
+	public float[] posY;
+	
+	// velocity of particle
+	public float[] velX;
+	public float[] velY;
+	
+	// acceleration of particle
+	public float[] accX;
+	public float[] accY;
+	
+	// accumulative velocity of particle
+	public float[] evX;
+	public float[] evY;
+	
+	public float[] dens;    // density of particle
+	public float[] pres;    // pressure of particle
+	
+	public int[] calm;      // steps the neighborhood of the particle has been calm, see SPHSystem.SetSleeping
+	
+	private ParticleStore scratch; // second set of columns for Permute(), swapped with this one
+	
+	private int num;        // number of used slots
+	private int capacity;   // number of allocated slots
+	
+	public ParticleStore(int initCapacity)
+	{
+		num = 0;
+		capacity = 0;
+		slotOfId = new int[0];
+		Resize(initCapacity < 16 ? 16 : initCapacity);
+	}
+	
+	// append a particle and return its slot
+	public int Add(int pid, float x, float y, float vx, float vy, float d)
+	{
+		if(num == capacity)
+		{
+			Resize(capacity*2);
+		}
+		if(pid >= slotOfId.length)
+		{
+			int[] s = new int[Math.max(pid+1, slotOfId.length*2)];
+			System.arraycopy(slotOfId, 0, s, 0, slotOfId.length);
+			slotOfId = s;
+		}
+		slotOfId[pid] = num;
+		
+		int i = num;
+		id[i]   = pid;
+		posX[i] = x;
+		posY[i] = y;
+		velX[i] = vx;
+		velY[i] = vy;
+		accX[i] = 0.0f;
+		accY[i] = 0.0f;
+		evX[i]  = vx;
+		evY[i]  = vy;
+		dens[i] = d;
+		pres[i] = 0.0f;
+		calm[i] = 0;
+		num++;
+		
+		return i;
+	}
+	
+	public int Size()
+	{
+		return num;
+	}
+	
+	public int GetId(int i)
+	{
+		return id[i];
+	}
+	
+	// current slot of the particle with the given id, slots change when the store is reordered
+	public int GetSlot(int pid)
+	{
+		return slotOfId[pid];
+	}
+	
+	// move the particle in slot order[s] to slot s for all s < num
+	public void Permute(int[] order)
+	{
+		if(scratch == null || scratch.capacity < capacity)
+		{
+			scratch = new ParticleStore(capacity);
+		}
+		
+		ParticleStore t = scratch;
+		for(int s=0; s<num; s++)
+		{
+			int o = order[s];
+			t.id[s]   = id[o];
+			t.posX[s] = posX[o];
+			t.posY[s] = posY[o];
+			t.velX[s] = velX[o];
+			t.velY[s] = velY[o];
+			t.accX[s] = accX[o];
+			t.accY[s] = accY[o];
+			t.evX[s]  = evX[o];
+			t.evY[s]  = evY[o];
+			t.dens[s] = dens[o];
+			t.pres[s] = pres[o];
+			t.calm[s] = calm[o];
+			slotOfId[t.id[s]] = s;
+		}
+		
+		// swap the columns instead of copying back
+		int[] ti = id; id = t.id; t.id = ti;
+		float[] f;
+		f = posX; posX = t.posX; t.posX = f;
+		f = posY; posY = t.posY; t.posY = f;
+		f = velX; velX = t.velX; t.velX = f;
+		f = velY; velY = t.velY; t.velY = f;
+		f = accX; accX = t.accX; t.accX = f;
+		f = accY; accY = t.accY; t.accY = f;
+		f = evX;  evX  = t.evX;  t.evX  = f;
+		f = evY;  evY  = t.evY;  t.evY  = f;
+		f = dens; dens = t.dens; t.dens = f;
+		f = pres; pres = t.pres; t.pres = f;
+		ti = calm; calm = t.calm; t.calm = ti;
+	}
+	
+	public float GetPosX(int i)
+	{
+		return posX[i];
+	}
+	
+	public float GetPosY(int i)
+	{
+		return posY[i];
+	}
+	
+	public float GetVelX(int i)
+	{
+		return velX[i];
+	}
+	
+	public float GetVelY(int i)
+	{
+		return velY[i];
+	}
+	
+	public float GetDens(int i)
+	{
+		return dens[i];
+	}
+	
+	public float GetPres(int i)
+	{
+		return pres[i];
+	}
+	
+	// copy the particle in slot i into an object, only for debugging and tools
+	public Particle Get(int i, Particle p)
+	{
+		p.id    = id[i];
+		p.pos.x = posX[i];
+		p.pos.y = posY[i];
+		p.vel.x = velX[i];
+		p.vel.y = velY[i];
+		p.acc.x = accX[i];
+		p.acc.y = accY[i];
+		p.ev.x  = evX[i];
+		p.ev.y  = evY[i];
+		p.dens  = dens[i];
+		p.pres  = pres[i];
+		
+		return p;
+	}
+	
+	private void Resize(int newCapacity)
+	{
+		id   = Grow(id, newCapacity);
+		posX = Grow(posX, newCapacity);
+		posY = Grow(posY, newCapacity);
+		velX = Grow(velX, newCapacity);
+		velY = Grow(velY, newCapacity);
+		accX = Grow(accX, newCapacity);
+		accY = Grow(accY, newCapacity);
+		evX  = Grow(evX, newCapacity);
+		evY  = Grow(evY, newCapacity);
+		dens = Grow(dens, newCapacity);
+		pres = Grow(pres, newCapacity);
+		calm = Grow(calm, newCapacity);
+		capacity = newCapacity;
+	}
+	
+	private float[] Grow(float[] a, int n)
+	{
+		float[] b = new float[n];
+		if(a != null)
+		{
+			System.arraycopy(a, 0, b, 0, num);
+		}
+		return b;
+	}
+	
+	private int[] Grow(int[] a, int n)
+	{
+		int[] b = new int[n];
+		if(a != null)
+		{
+			System.arraycopy(a, 0, b, 0, num);
+		}
+		return b;
+	}
+}
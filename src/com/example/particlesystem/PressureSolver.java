@@ -0,0 +1,53 @@
+/** File:		PressureSolver.java
+ ** Author:		Dongli Zhang
+ ** Contact:	dongli.zhang0129@gmail.com
+ **
+ ** Copyright (C) Dongli Zhang 2013
+ **
+ ** This program is free software;  you can redistribute it and/or modify
+ ** it under the terms of the GNU General Public License as published by
+ ** the Free Software Foundation; either version 2 of the License, or
+ ** (at your option) any later version.
+ **
+ ** This program is distributed in the hope that it will be useful,
+ ** but WITHOUT ANY WARRANTY;  without even the implied warranty of
+ ** MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See
+ ** the GNU General Public License for more details.
+ **
+ ** You should have received a copy of the GNU General Public License
+ ** along with this program;  if not, write to the Free Software 
+ ** Foundation, 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA
+ */
+
+package com.example.particlesystem;
+
+/* Incompressible solve of SPHSystem, between the non-pressure forces and advection.
+ * Solve() is called with the gravity, viscosity and external accelerations in
+ * accX, accY and adds the acceleration that keeps the fluid near its rest density,
+ * so the advection of SPHSystem moves the particles as the solver decided.
+ * It iterates until the mean density error is below the tolerance or the
+ * iteration cap is reached.
+ */
+public interface PressureSolver
+{
+	// add the incompressible acceleration of a step of t to the num particles of p,
+	// w is false if only the floor holds the fluid, sleep as in SPHSystem
+	void Solve(ParticleStore p, int num, NeighborSearch s, WorkerPool pool,
+			float t, Vec2f world, boolean w, int sleep);
+	
+	// maxIter caps the iterations of one step, tol is the mean density error to reach
+	void SetLimits(int maxIter, float tol);
+	
+	int GetMaxIterations();
+	
+	float GetTolerance();
+	
+	// iterations of the last solve
+	int GetIterations();
+	
+	// mean density error relative to the rest density in the last iteration of the last solve
+	float GetDensityError();
+	
+	// bytes held by the arrays of the solver
+	long GetMemoryBytes();
+}
@@ -0,0 +1,350 @@
+/** File:		QuadTree.java
+ ** Author:		Dongli Zhang
+ ** Contact:	dongli.zhang0129@gmail.com
+ **
+ ** Copyright (C) Dongli Zhang 2013
+ **
+ ** This program is free software;  you can redistribute it and/or modify
+ ** it under the terms of the GNU General Public License as published by
+ ** the Free Software Foundation; either version 2 of the License, or
+ ** (at your option) any later version.
+ **
+ ** This program is distributed in the hope that it will be useful,
+ ** but WITHOUT ANY WARRANTY;  without even the implied warranty of
+ ** MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See
+ ** the GNU General Public License for more details.
+ **
+ ** You should have received a copy of the GNU General Public License
+ ** along with this program;  if not, write to the Free Software 
+ ** Foundation, 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA
+ */
+
+package com.example.particlesystem;
+
+/* Adaptive quadtree over the bounding square of the particles, for very
+ * non-uniform scenes such as a thin splash over a big empty domain, where a
+ * grid spends its time on empty or overfull cells.
+ * Build() radix sorts the slots by the Morton code of their finest cell, so
+ * every node covers a contiguous run of index. Nodes are split while they hold
+ * more than LEAF_SIZE particles and their children stay at least minSide wide.
+ * A query returns the runs of the leaves it touches and of the nodes that lie
+ * inside it, merging runs that follow each other. Nothing is allocated per frame
+ * unless the particle count grows or the tree gets more nodes than particles.
+ */
+public class QuadTree implements NeighborSearch
+{
+	private static final int LEAF_SIZE  = 8;   // split nodes holding more particles
+	private static final int MAX_LEVEL  = 15;  // Morton codes of 30 bits
+	private static final int RADIX_BITS = 10;  // bits per pass of the radix sort
+	
+	private float minSide;      // smallest node side
+	
+	private int levels;         // depth of the finest level at the last build
+	private float[] levelSide = new float[MAX_LEVEL+1]; // node side of each level
+	
+	// nodes, the four children of a node are stored next to each other
+	private int numNodes;
+	private int[] nodeStart;    // first index entry of the node
+	private int[] nodeEnd;      // one past the last index entry
+	private int[] nodeChild;    // first child, -1 for a leaf
+	private int[] nodeLevel;
+	private float[] nodeX;      // lower corner of the node
+	private float[] nodeY;
+	
+	private int[] index;        // particle slots in Morton order
+	private int[] codes;        // Morton code of each entry of index
+	private int[] scratchIndex; // radix sort buffers
+	private int[] scratchCodes;
+	private int[] buckets = new int[1<<RADIX_BITS];
+	
+	// s is the smallest node side, half the kernel keeps a query to a few dozen runs
+	public QuadTree(float s)
+	{
+		minSide = s;
+		index = new int[0];
+		codes = new int[0];
+		scratchIndex = new int[0];
+		scratchCodes = new int[0];
+		Allocate(64);
+	}
+	
+	private void Allocate(int size)
+	{
+		int[] start = new int[size];
+		int[] end   = new int[size];
+		int[] child = new int[size];
+		int[] level = new int[size];
+		float[] x = new float[size];
+		float[] y = new float[size];
+		if(numNodes > 0)
+		{
+			System.arraycopy(nodeStart, 0, start, 0, numNodes);
+			System.arraycopy(nodeEnd,   0, end,   0, numNodes);
+			System.arraycopy(nodeChild, 0, child, 0, numNodes);
+			System.arraycopy(nodeLevel, 0, level, 0, numNodes);
+			System.arraycopy(nodeX,     0, x,     0, numNodes);
+			System.arraycopy(nodeY,     0, y,     0, numNodes);
+		}
+		nodeStart = start;
+		nodeEnd   = end;
+		nodeChild = child;
+		nodeLevel = level;
+		nodeX = x;
+		nodeY = y;
+	}
+	
+	public int[] GetIndex()
+	{
+		return index;
+	}
+	
+	public int GetNumNodes()
+	{
+		return numNodes;
+	}
+	
+	public void Build(ParticleStore ps, int num)
+	{
+		if(index.length < num)
+		{
+			index = new int[num];
+			codes = new int[num];
+			scratchIndex = new int[num];
+			scratchCodes = new int[num];
+			// a typical tree has fewer nodes than particles, deeper ones grow the arrays
+			if(nodeStart.length < num)
+			{
+				Allocate(num);
+			}
+		}
+		
+		float[] posX = ps.posX;
+		float[] posY = ps.posY;
+		
+		// bounding square of the particles
+		float x0 = Float.MAX_VALUE;
+		float y0 = Float.MAX_VALUE;
+		float x1 = -Float.MAX_VALUE;
+		float y1 = -Float.MAX_VALUE;
+		for(int i=0; i<num; i++)
+		{
+			float x = posX[i];
+			float y = posY[i];
+			if(x < x0) x0 = x;
+			if(x > x1) x1 = x;
+			if(y < y0) y0 = y;
+			if(y > y1) y1 = y;
+		}
+		float side = x1-x0 > y1-y0 ? x1-x0 : y1-y0;
+		if(!(side > minSide))
+		{
+			side = minSide;
+		}
+		
+		// finest level whose nodes are still minSide wide
+		levels = 0;
+		levelSide[0] = side;
+		while(levels < MAX_LEVEL && levelSide[levels]*0.5f >= minSide)
+		{
+			levelSide[levels+1] = levelSide[levels]*0.5f;
+			levels++;
+		}
+		
+		// Morton code of the finest cell of each particle
+		int cells = 1<<levels;
+		float scale = cells/side;
+		for(int i=0; i<num; i++)
+		{
+			int cx = (int)((posX[i]-x0)*scale);
+			int cy = (int)((posY[i]-y0)*scale);
+			if(cx >= cells) cx = cells-1;
+			if(cy >= cells) cy = cells-1;
+			index[i] = i;
+			codes[i] = CellGrid.Spread(cx) | (CellGrid.Spread(cy) << 1);
+		}
+		RadixSort(num, 2*levels);
+		
+		// split the root top down
+		numNodes = 1;
+		SetNode(0, 0, num, 0, x0, y0);
+		Split(0);
+	}
+	
+	private void SetNode(int node, int start, int end, int level, float x, float y)
+	{
+		nodeStart[node] = start;
+		nodeEnd[node]   = end;
+		nodeChild[node] = -1;
+		nodeLevel[node] = level;
+		nodeX[node] = x;
+		nodeY[node] = y;
+	}
+	
+	private void Split(int node)
+	{
+		int start = nodeStart[node];
+		int end   = nodeEnd[node];
+		int level = nodeLevel[node];
+		if(end-start <= LEAF_SIZE || level == levels)
+		{
+			return;
+		}
+		
+		if(numNodes+4 > nodeStart.length)
+		{
+			Allocate(nodeStart.length*2);
+		}
+		int child = numNodes;
+		numNodes += 4;
+		nodeChild[node] = child;
+		
+		// the sorted codes are grouped by the two bits of this level, quadrant q has x = q&1, y = q>>1
+		int shift = 2*(levels-level-1);
+		float half = levelSide[level+1];
+		int s = start;
+		for(int q=0; q<4; q++)
+		{
+			int e = s;
+			while(e < end && ((codes[e] >>> shift) & 3) == q)
+			{
+				e++;
+			}
+			SetNode(child+q, s, e, level+1, nodeX[node] + (q & 1)*half, nodeY[node] + (q >> 1)*half);
+			s = e;
+		}
+		
+		for(int q=0; q<4; q++)
+		{
+			Split(child+q);
+		}
+	}
+	
+	// stable LSD radix sort of index by codes, slots stay ascending inside a code
+	private void RadixSort(int num, int bits)
+	{
+		int[] srcIndex = index;
+		int[] srcCodes = codes;
+		int[] dstIndex = scratchIndex;
+		int[] dstCodes = scratchCodes;
+		int mask = (1<<RADIX_BITS)-1;
+		
+		for(int shift=0; shift<bits; shift+=RADIX_BITS)
+		{
+			for(int b=0; b<=mask; b++)
+			{
+				buckets[b] = 0;
+			}
+			for(int i=0; i<num; i++)
+			{
+				buckets[(srcCodes[i] >>> shift) & mask]++;
+			}
+			int sum = 0;
+			for(int b=0; b<=mask; b++)
+			{
+				int c = buckets[b];
+				buckets[b] = sum;
+				sum += c;
+			}
+			for(int i=0; i<num; i++)
+			{
+				int d = buckets[(srcCodes[i] >>> shift) & mask]++;
+				dstIndex[d] = srcIndex[i];
+				dstCodes[d] = srcCodes[i];
+			}
+			
+			int[] t = srcIndex; srcIndex = dstIndex; dstIndex = t;
+			t = srcCodes; srcCodes = dstCodes; dstCodes = t;
+		}
+		
+		// keep the sorted arrays as index and codes
+		index = srcIndex;
+		codes = srcCodes;
+		scratchIndex = dstIndex;
+		scratchCodes = dstCodes;
+	}
+	
+	public int Query(float x, float y, float r, int[] ranges)
+	{
+		if(numNodes == 0)
+		{
+			return 0;
+		}
+		return Visit(0, x-r, y-r, x+r, y+r, ranges, 0);
+	}
+	
+	private int Visit(int node, float x0, float y0, float x1, float y1, int[] ranges, int n)
+	{
+		int start = nodeStart[node];
+		int end   = nodeEnd[node];
+		if(start == end)
+		{
+			return n;
+		}
+		
+		float nx = nodeX[node];
+		float ny = nodeY[node];
+		float side = levelSide[nodeLevel[node]];
+		if(nx > x1 || ny > y1 || nx+side < x0 || ny+side < y0)
+		{
+			return n;
+		}
+		
+		int child = nodeChild[node];
+		if(child == -1 || (nx >= x0 && ny >= y0 && nx+side <= x1 && ny+side <= y1))
+		{
+			// children are visited in index order, so a run often continues the last one
+			if(n > 0 && ranges[2*n-1] == start)
+			{
+				ranges[2*n-1] = end;
+				return n;
+			}
+			ranges[2*n]   = start;
+			ranges[2*n+1] = end;
+			return n+1;
+		}
+		
+		for(int q=0; q<4; q++)
+		{
+			n = Visit(child+q, x0, y0, x1, y1, ranges, n);
+		}
+		return n;
+	}
+	
+	// the runs are disjoint nodes at least minSide wide on a grid of minSide,
+	// unless the root itself is smaller, then there is only one
+	public int GetMaxRanges(float r)
+	{
+		int side = (int)(2*r/minSide) + 2;
+		return side*side;
+	}
+	
+	// index is already in Z-order, count its jumps
+	public float Scatter(int num)
+	{
+		int far = 0;
+		int prev = 0;
+		for(int s=0; s<num; s++)
+		{
+			int jump = index[s]-prev;
+			if(jump > CellGrid.LOCALITY_WINDOW || jump < -CellGrid.LOCALITY_WINDOW)
+			{
+				far++;
+			}
+			prev = index[s];
+		}
+		
+		return num == 0 ? 0.0f : (float)far/num;
+	}
+	
+	public void MortonOrder(int[] order)
+	{
+		System.arraycopy(index, 0, order, 0, nodeEnd[0]);
+	}
+	
+	public long GetMemoryBytes()
+	{
+		long nodes = 6L*nodeStart.length;
+		long ints = index.length + codes.length + scratchIndex.length + scratchCodes.length + buckets.length;
+		return 4L*(nodes + ints + levelSide.length);
+	}
+}
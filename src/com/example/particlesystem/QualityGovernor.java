@@ -0,0 +1,332 @@
+/** File:		QualityGovernor.java
+ ** Author:		Dongli Zhang
+ ** Contact:	dongli.zhang0129@gmail.com
+ **
+ ** Copyright (C) Dongli Zhang 2013
+ **
+ ** This program is free software;  you can redistribute it and/or modify
+ ** it under the terms of the GNU General Public License as published by
+ ** the Free Software Foundation; either version 2 of the License, or
+ ** (at your option) any later version.
+ **
+ ** This program is distributed in the hope that it will be useful,
+ ** but WITHOUT ANY WARRANTY;  without even the implied warranty of
+ ** MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See
+ ** the GNU General Public License for more details.
+ **
+ ** You should have received a copy of the GNU General Public License
+ ** along with this program;  if not, write to the Free Software 
+ ** Foundation, 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA
+ */
+
+
+package com.example.particlesystem;
+
+/* Keeps the cost of simulating a frame of an SPHSystem within a budget by
+ * trading quality for speed at runtime. Observe() is called after every step
+ * with its duration; the cost of one frame of simulated time is smoothed and
+ * compared against the budget. Above the budget for a while the governor goes
+ * one level down, below LOW_LOAD of it for a longer while one level up again.
+ * A level that was left again soon after being entered needs twice as long
+ * before it is tried next, so the quality does not oscillate.
+ *
+ * The levels add up, each keeps the settings of the ones above it:
+ *   LEVEL_LISTS       Verlet neighbor lists with a skin of SKIN_FACTOR kernels
+ *   LEVEL_ITERATIONS  half the pressure iterations of PCISPH or PBF
+ *   LEVEL_SLEEP       calm cells below SLEEP_SPEED sleep, fewer active particles,
+ *                     not on a system that cannot sleep, see SPHSystem.CanSleep()
+ * LEVEL_FULL restores the settings the system had when the governor was created.
+ * Whether a level pays depends on the scene: neighbor lists rebuild every step
+ * while flings keep the fluid moving and then cost more than they save, fewer
+ * iterations change nothing for WCSPH. So a level entered from above is measured
+ * and kept only if its frames cost at least MIN_GAIN less than those of the level
+ * it came from; otherwise it is left out and the next one is tried at once. The
+ * left out levels are tried again after the governor got back to LEVEL_FULL.
+ * There is no level with fewer particles: SPHSystem gives every particle the
+ * same mass and kernel length, merging or splitting them would need both per
+ * particle.
+ * The adaptive time step is not a level: its CFL bound is below the fixed 0.01 s
+ * step of the dam, so it would take more steps per simulated second, not fewer.
+ * It must be called from the thread that steps the system.
+ */
+public class QualityGovernor
+{
+	public static final int LEVEL_FULL       = 0;
+	public static final int LEVEL_LISTS      = 1;
+	public static final int LEVEL_ITERATIONS = 2;
+	public static final int LEVEL_SLEEP      = 3;
+	public static final int NUM_LEVELS       = 4;
+	public static final String[] LEVEL_NAMES = {"full", "lists", "iterations", "sleep"};
+	
+	public static final float SKIN_FACTOR = 0.2f;  // of the kernel length
+	public static final float SLEEP_SPEED = 0.05f;
+	
+	private static final float SMOOTHING  = 0.05f; // weight of a new step in the smoothed cost
+	private static final float LOW_LOAD   = 0.6f;  // of the budget, below it a level up is considered
+	private static final int SETTLE_STEPS = 30;    // steps after a change that are not measured
+	private static final int DOWN_STEPS   = 30;    // steps over the budget before a level down
+	private static final int UP_STEPS     = 240;   // steps under LOW_LOAD before a level up
+	private static final int MEASURE_STEPS = 60;   // steps after settling that measure a level entered from above
+	private static final float MIN_GAIN   = 0.05f; // of the cost of the level above, a level must save it
+	private static final int MAX_UP_STEPS = 7680;  // cap of the doubled wait
+	
+	private final SPHSystem sph;
+	private long budget;              // nanoseconds of stepping per frame
+	private float frameTime;          // simulated seconds of a frame
+	
+	// the settings of LEVEL_FULL
+	private final float baseSkin;
+	private final int baseIterations;
+	private final float baseTolerance;
+	private final float baseSleep;
+	private int fullIterations;       // iteration cap of the solver at LEVEL_FULL, read once it exists
+	
+	private volatile int level;       // read by other threads
+	private double cost;              // smoothed nanoseconds per frame at this level, 0 until measured
+	private int stepsAbove;           // consecutive steps over the budget
+	private int stepsBelow;           // consecutive steps under LOW_LOAD of it
+	private int upSteps;              // steps under LOW_LOAD needed before the next level up
+	private long stepsAtLevel;        // steps since the last change
+	private boolean raised;           // the level was entered from below and has not held yet
+	private double aboveCost;         // smoothed cost of the level this one was entered from, 0 if not from above
+	private final boolean[] skipped;  // levels that did not pay, left out until back at LEVEL_FULL
+	private int changes;
+	
+	// budgetMillis of stepping for every frameSeconds of simulated time, e.g. 10 ms
+	// for each 1/60 s when the fluid runs in real time at 60 fps
+	public QualityGovernor(SPHSystem s, float budgetMillis, float frameSeconds)
+	{
+		sph = s;
+		SetBudget(budgetMillis, frameSeconds);
+		
+		NeighborList nl = s.GetNeighborList();
+		baseSkin = nl == null ? 0.0f : nl.GetSkin();
+		baseIterations = s.GetSolverIterations();
+		baseTolerance = s.GetSolverTolerance();
+		baseSleep = s.GetSleeping();
+		level = LEVEL_FULL;
+		upSteps = UP_STEPS;
+		skipped = new boolean[NUM_LEVELS];
+	}
+	
+	public void SetBudget(float budgetMillis, float frameSeconds)
+	{
+		budget = (long)(budgetMillis*1e6f);
+		frameTime = frameSeconds;
+	}
+	
+	public float GetBudget()
+	{
+		return budget/1e6f;
+	}
+	
+	// one step of the system took nanos and advanced it by dt simulated seconds
+	public void Observe(long nanos, float dt)
+	{
+		if(dt <= 0.0f)
+		{
+			return;
+		}
+		
+		// the first steps of a level rebuild lists and warm up code, they say little
+		// about what the level costs
+		if(++stepsAtLevel <= SETTLE_STEPS)
+		{
+			return;
+		}
+		
+		// what a whole frame costs at this rate
+		double frameCost = (double)nanos*frameTime/dt;
+		cost = cost == 0.0 ? frameCost : cost + SMOOTHING*(frameCost-cost);
+		if(raised && stepsAtLevel >= upSteps)
+		{
+			// the level held, the next one up is tried at the normal pace
+			raised = false;
+			upSteps = UP_STEPS;
+		}
+		
+		if(aboveCost > 0.0 && stepsAtLevel == SETTLE_STEPS+MEASURE_STEPS)
+		{
+			if(cost > (1.0f-MIN_GAIN)*aboveCost)
+			{
+				// no cheaper than the level above, leave it out and go on with the next
+				// one measured against the same cost, or just undo it at the bottom
+				skipped[level] = true;
+				int next = NextDown(level);
+				Change(next != -1 ? next : level, next != -1 ? aboveCost : 0.0);
+				return;
+			}
+			aboveCost = 0.0;
+		}
+		
+		if(cost > budget)
+		{
+			stepsBelow = 0;
+			// a level still being measured is not left before it is judged
+			int next = NextDown(level);
+			if(++stepsAbove >= DOWN_STEPS && next != -1 && aboveCost == 0.0)
+			{
+				// a level entered from below that could not hold waits longer next time
+				if(raised)
+				{
+					upSteps = Math.min(2*upSteps, MAX_UP_STEPS);
+				}
+				Change(next, cost);
+			}
+		}
+		else if(cost < LOW_LOAD*budget)
+		{
+			stepsAbove = 0;
+			if(++stepsBelow >= upSteps && level > LEVEL_FULL)
+			{
+				Change(NextUp(level), 0.0);
+				raised = true;
+			}
+		}
+		else
+		{
+			stepsAbove = 0;
+			stepsBelow = 0;
+		}
+	}
+	
+	// switch to level l now, the next changes follow from the measured cost again
+	public void SetLevel(int l)
+	{
+		if(l < LEVEL_FULL || l > GetLowestLevel())
+		{
+			return;
+		}
+		Change(l, 0.0);
+	}
+	
+	// the next level down that is not left out, -1 at the bottom
+	private int NextDown(int l)
+	{
+		for(int m=l+1; m<=GetLowestLevel(); m++)
+		{
+			if(!skipped[m])
+			{
+				return m;
+			}
+		}
+		return -1;
+	}
+	
+	// the next level up that is not left out
+	private int NextUp(int l)
+	{
+		int m = l-1;
+		while(m > LEVEL_FULL && skipped[m])
+		{
+			m--;
+		}
+		return m;
+	}
+	
+	// whether level l uses the setting of level setting
+	private boolean Uses(int l, int setting)
+	{
+		return l >= setting && !skipped[setting];
+	}
+	
+	// go to level l, entered from a level of cost from if that is above it
+	private void Change(int l, double from)
+	{
+		if(l != level)
+		{
+			changes++;
+		}
+		if(l == LEVEL_FULL)
+		{
+			// the scene may have changed, the left out levels get another chance
+			for(int m=0; m<NUM_LEVELS; m++)
+			{
+				skipped[m] = false;
+			}
+		}
+		level = l;
+		raised = false;
+		aboveCost = from;
+		cost = 0.0;
+		stepsAbove = 0;
+		stepsBelow = 0;
+		stepsAtLevel = 0;
+		
+		float skin = Uses(l, LEVEL_LISTS) && baseSkin == 0.0f ? SKIN_FACTOR*sph.GetKernel() : baseSkin;
+		NeighborList nl = sph.GetNeighborList();
+		if((nl == null ? 0.0f : nl.GetSkin()) != skin)
+		{
+			sph.SetNeighborList(skin);
+		}
+		
+		PressureSolver solver = sph.GetPressureSolver();
+		if(fullIterations == 0 && solver != null)
+		{
+			fullIterations = solver.GetMaxIterations();
+		}
+		if(Uses(l, LEVEL_ITERATIONS) && fullIterations > 0)
+		{
+			sph.SetSolverLimits(Math.max(1, fullIterations/2), baseTolerance);
+		}
+		else
+		{
+			sph.SetSolverLimits(baseIterations, baseTolerance);
+		}
+		
+		sph.SetSleeping(Uses(l, LEVEL_SLEEP) ? Math.max(baseSleep, SLEEP_SPEED) : baseSleep);
+	}
+	
+	// the last level the system supports, LEVEL_SLEEP or LEVEL_ITERATIONS without sleeping
+	public int GetLowestLevel()
+	{
+		return sph.CanSleep() ? LEVEL_SLEEP : LEVEL_ITERATIONS;
+	}
+	
+	// the current level, LEVEL_FULL ... GetLowestLevel()
+	public int GetLevel()
+	{
+		return level;
+	}
+	
+	public String GetLevelName()
+	{
+		return LEVEL_NAMES[level];
+	}
+	
+	// smoothed milliseconds of stepping per frame at the current level
+	public float GetCost()
+	{
+		return (float)(cost/1e6);
+	}
+	
+	// whether level l was left out because it did not make frames cheaper
+	public boolean IsSkipped(int l)
+	{
+		return skipped[l];
+	}
+	
+	// number of level changes so far
+	public int GetChanges()
+	{
+		return changes;
+	}
+	
+	// the settings the current level put on the system
+	public float GetSkin()
+	{
+		NeighborList nl = sph.GetNeighborList();
+		return nl == null ? 0.0f : nl.GetSkin();
+	}
+	
+	public int GetIterations()
+	{
+		PressureSolver solver = sph.GetPressureSolver();
+		return solver == null ? 0 : solver.GetMaxIterations();
+	}
+	
+	public float GetSleepSpeed()
+	{
+		return sph.GetSleeping();
+	}
+}
@@ -0,0 +1,286 @@
+/** File:		SPHBenchmark.java
+ ** Author:		Dongli Zhang
+ ** Contact:	dongli.zhang0129@gmail.com
+ **
+ ** Copyright (C) Dongli Zhang 2013
+ **
+ ** This program is free software;  you can redistribute it and/or modify
+ ** it under the terms of the GNU General Public License as published by
+ ** the Free Software Foundation; either version 2 of the License, or
+ ** (at your option) any later version.
+ **
+ ** This program is distributed in the hope that it will be useful,
+ ** but WITHOUT ANY WARRANTY;  without even the implied warranty of
+ ** MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See
+ ** the GNU General Public License for more details.
+ **
+ ** You should have received a copy of the GNU General Public License
+ ** along with this program;  if not, write to the Free Software 
+ ** Foundation, 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA
+ */
+
+package com.example.particlesystem;
+
+/* Repeatable benchmark of SPHSystem.animation() and its phases.
+ *
+ *   java -cp bin/classes com.example.particlesystem.SPHBenchmark
+ *        -particles 1000,10000,100000,1000000 -threads 1,8 -state settled,splash
+ *        -search grid,hash,quadtree
+ *
+ * Every combination of the parameters is one trial: a fresh system is built,
+ * brought into the requested state, then measured for a number of iterations
+ * of several steps each after warmup iterations. Each phase and the full step
+ * are reported as mean ms per step with the 99.9% confidence half-width over
+ * the iterations, like a JMH average-time benchmark.
+ */
+public class SPHBenchmark
+{
+	private static final String STATE_SETTLED = "settled"; // the dam has collapsed and come to rest
+	private static final String STATE_SPLASH  = "splash";  // flings keep the fluid moving during measurement
+	
+	// parameter axes, each trial picks one value of every axis
+	private int[] particles = {1000, 10000, 100000};
+	private float[] worlds = null;          // world sizes, replace particles if given
+	private float[] kernels = {0.04f};
+	private int[] threads = {1};
+	private String[] states = {STATE_SETTLED, STATE_SPLASH};
+	private String[] searches = {"grid"};   // SPHSystem.SEARCH_NAMES
+	
+	// solver options applied to every trial
+	private int kernelMode = SPHKernel.EXACT;
+	private boolean symmetric = false;
+	private boolean vectorized = false;
+	private boolean pairCache = false;
+	private float skin = 0.0f;
+	private float reorder = 0.0f;
+	
+	private int settleSteps = 300;          // steps to reach the settled state
+	private int warmupIterations = 3;
+	private int iterations = 5;
+	private int stepsPerIteration = 20;
+	
+	public static void main(String[] args)
+	{
+		SPHBenchmark b = new SPHBenchmark();
+		if(!b.ParseArgs(args))
+		{
+			PrintUsage();
+			System.exit(2);
+		}
+		b.Run();
+	}
+	
+	public void Run()
+	{
+		System.out.println(String.format("%-8s %-8s %9s %7s %7s %4s  %-10s %12s %10s",
+				"state", "search", "particles", "world", "kernel", "thr", "phase", "ms/step", "+-99.9%"));
+		
+		int count = worlds != null ? worlds.length : particles.length;
+		for(int s=0; s<states.length; s++)
+		{
+			for(int c=0; c<count; c++)
+			{
+				for(int k=0; k<kernels.length; k++)
+				{
+					for(int t=0; t<threads.length; t++)
+					{
+						for(int g=0; g<searches.length; g++)
+						{
+							float kernel = kernels[k];
+							float world = worlds != null ? worlds[c] : WorldFor(particles[c], kernel);
+							Trial(states[s], searches[g], world, kernel, threads[t]);
+						}
+					}
+				}
+			}
+		}
+	}
+	
+	// InitFluid() fills 0.8 x 0.9 of the world at kernel*0.8 spacing, about 1.125*(world/kernel)^2 particles
+	private static float WorldFor(int numParticle, float kernel)
+	{
+		return (float)(kernel*Math.sqrt(numParticle/1.125));
+	}
+	
+	private void Trial(String state, String search, float world, float kernel, int numThreads)
+	{
+		SPHSystem sph = new SPHSystem(new Vec2f(world, world), kernel);
+		sph.SetThreads(numThreads);
+		sph.SetKernelMode(kernelMode, 1e-4f);
+		sph.SetSymmetric(symmetric);
+		sph.SetVectorized(vectorized);
+		sph.SetPairCache(pairCache);
+		sph.SetNeighborList(skin);
+		sph.SetReorder(reorder);
+		sph.SetSearchMode(SPHSystem.SearchMode(search));
+		sph.InitFluid();
+		
+		boolean splash = state.equals(STATE_SPLASH);
+		int step = 0;
+		if(!splash)
+		{
+			for(; step<settleSteps; step++)
+			{
+				sph.animation();
+			}
+		}
+		
+		for(int i=0; i<warmupIterations; i++)
+		{
+			step = Iteration(sph, splash, step);
+		}
+		
+		// one sample per iteration for each phase and the full step
+		double[][] samples = new double[SPHSystem.NUM_PHASES+1][iterations];
+		for(int i=0; i<iterations; i++)
+		{
+			sph.ResetProfile();
+			sph.SetProfiling(true);
+			long start = System.nanoTime();
+			step = Iteration(sph, splash, step);
+			long total = System.nanoTime()-start;
+			sph.SetProfiling(false);
+			
+			for(int p=0; p<SPHSystem.NUM_PHASES; p++)
+			{
+				samples[p][i] = sph.GetPhaseNanos(p)/1e6/stepsPerIteration;
+			}
+			samples[SPHSystem.NUM_PHASES][i] = total/1e6/stepsPerIteration;
+		}
+		sph.Shutdown();
+		
+		int numParticle = sph.GetNumParticle();
+		for(int p=0; p<=SPHSystem.NUM_PHASES; p++)
+		{
+			String name = p < SPHSystem.NUM_PHASES ? SPHSystem.PHASE_NAMES[p] : "step";
+			System.out.println(String.format("%-8s %-8s %9d %7.3f %7.4f %4d  %-10s %12.4f %10.4f",
+					state, search, numParticle, world, kernel, numThreads, name, Mean(samples[p]), Error(samples[p])));
+		}
+		System.out.println(String.format("%-8s %-8s %9d %7.3f %7.4f %4d  %-10s %12.4g",
+				state, search, numParticle, world, kernel, numThreads, "p-steps/s",
+				numParticle/(Mean(samples[SPHSystem.NUM_PHASES])/1e3)));
+	}
+	
+	private int Iteration(SPHSystem sph, boolean splash, int step)
+	{
+		for(int i=0; i<stepsPerIteration; i++, step++)
+		{
+			if(splash && step%10 == 0)
+			{
+				// sweep the fling across the bottom of the tank
+				float x = 0.1f + 0.7f*((step/10)%8)/8.0f;
+				float f = (step/10)%2 == 0 ? 0.4f : -0.4f;
+				sph.Add_external_event(x, 0.1f, f, 0.5f);
+			}
+			sph.animation();
+		}
+		return step;
+	}
+	
+	private static double Mean(double[] v)
+	{
+		double sum = 0.0;
+		for(int i=0; i<v.length; i++)
+		{
+			sum += v[i];
+		}
+		return sum/v.length;
+	}
+	
+	// half-width of the 99.9% confidence interval of the mean, normal approximation
+	private static double Error(double[] v)
+	{
+		if(v.length < 2)
+		{
+			return 0.0;
+		}
+		double m = Mean(v);
+		double sum = 0.0;
+		for(int i=0; i<v.length; i++)
+		{
+			sum += (v[i]-m)*(v[i]-m);
+		}
+		return 3.29*Math.sqrt(sum/(v.length-1))/Math.sqrt(v.length);
+	}
+	
+	public boolean ParseArgs(String[] args)
+	{
+		try
+		{
+			for(int i=0; i<args.length; i++)
+			{
+				String a = args[i];
+				if(a.equals("-particles"))       particles = ParseInts(args[++i]);
+				else if(a.equals("-world"))      worlds = ParseFloats(args[++i]);
+				else if(a.equals("-radius"))     kernels = ParseFloats(args[++i]);
+				else if(a.equals("-threads"))    threads = ParseInts(args[++i]);
+				else if(a.equals("-state"))      states = args[++i].split(",");
+				else if(a.equals("-kernel"))     kernelMode = args[++i].equals("table") ? SPHKernel.TABLE : SPHKernel.EXACT;
+				else if(a.equals("-symmetric"))  symmetric = true;
+				else if(a.equals("-vectorized")) vectorized = true;
+				else if(a.equals("-paircache"))  pairCache = true;
+				else if(a.equals("-skin"))       skin = Float.parseFloat(args[++i]);
+				else if(a.equals("-reorder"))    reorder = Float.parseFloat(args[++i]);
+				else if(a.equals("-search"))     searches = args[++i].split(",");
+				else if(a.equals("-settle"))     settleSteps = Integer.parseInt(args[++i]);
+				else if(a.equals("-warmup"))     warmupIterations = Integer.parseInt(args[++i]);
+				else if(a.equals("-iterations")) iterations = Integer.parseInt(args[++i]);
+				else if(a.equals("-steps"))      stepsPerIteration = Integer.parseInt(args[++i]);
+				else return false;
+			}
+		}
+		catch(RuntimeException e)
+		{
+			// missing value or not a number
+			return false;
+		}
+		
+		for(int i=0; i<states.length; i++)
+		{
+			if(!states[i].equals(STATE_SETTLED) && !states[i].equals(STATE_SPLASH))
+			{
+				return false;
+			}
+		}
+		for(int i=0; i<searches.length; i++)
+		{
+			if(SPHSystem.SearchMode(searches[i]) < 0)
+			{
+				return false;
+			}
+		}
+		return iterations > 0 && stepsPerIteration > 0;
+	}
+	
+	private static int[] ParseInts(String list)
+	{
+		String[] parts = list.split(",");
+		int[] v = new int[parts.length];
+		for(int i=0; i<parts.length; i++)
+		{
+			v[i] = Integer.parseInt(parts[i].trim());
+		}
+		return v;
+	}
+	
+	private static float[] ParseFloats(String list)
+	{
+		String[] parts = list.split(",");
+		float[] v = new float[parts.length];
+		for(int i=0; i<parts.length; i++)
+		{
+			v[i] = Float.parseFloat(parts[i].trim());
+		}
+		return v;
+	}
+	
+	private static void PrintUsage()
+	{
+		System.err.println("usage: SPHBenchmark [-particles n,n,..] [-world size,..] [-radius kernel,..]");
+		System.err.println("                    [-threads n,..] [-state settled,splash]");
+		System.err.println("                    [-kernel exact|table] [-symmetric] [-vectorized] [-paircache]");
+		System.err.println("                    [-skin s] [-reorder threshold]");
+		System.err.println("                    [-search grid,hash,quadtree]");
+		System.err.println("                    [-settle steps] [-warmup n] [-iterations n] [-steps n]");
+	}
+}
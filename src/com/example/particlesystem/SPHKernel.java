@@ -0,0 +1,201 @@
+/** File:		SPHKernel.java
+ ** Author:		Dongli Zhang
+ ** Contact:	dongli.zhang0129@gmail.com
+ **
+ ** Copyright (C) Dongli Zhang 2013
+ **
+ ** This program is free software;  you can redistribute it and/or modify
+ ** it under the terms of the GNU General Public License as published by
+ ** the Free Software Foundation; either version 2 of the License, or
+ ** (at your option) any later version.
+ **
+ ** This program is distributed in the hope that it will be useful,
+ ** but WITHOUT ANY WARRANTY;  without even the implied warranty of
+ ** MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See
+ ** the GNU General Public License for more details.
+ **
+ ** You should have received a copy of the GNU General Public License
+ ** along with this program;  if not, write to the Free Software 
+ ** Foundation, 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA
+ */
+
+
+package com.example.particlesystem;
+
+/* Smoothing kernels of the SPH system.
+ * The normalization constants are computed once per kernel length, so a
+ * kernel evaluation is a few float multiplies. In TABLE mode the kernels are
+ * read from lookup tables with linear interpolation; the table size is chosen
+ * so that the interpolation error stays below a given fraction of the kernel peak.
+ */
+public class SPHKernel 
+{
+	public static final int EXACT = 0; // evaluate the polynomials directly
+	public static final int TABLE = 1; // interpolate in lookup tables
+	
+	private static final int MIN_TABLE = 16;
+	private static final int MAX_TABLE = 1<<16;
+	
+	private float kernel;     // kernel length h
+	private float kernel2;    // h^2
+	private float poly6Coef;  // 315/(64*pi*h^9)
+	private float spikyCoef;  // -45/(pi*h^6)
+	private float viscoCoef;  // 45/(pi*h^6)
+	
+	private int mode;
+	private float errorBound;
+	
+	private int tableSize;       // number of intervals of each table
+	private float poly6Scale;    // table index per unit of r^2
+	private float radialScale;   // table index per unit of r
+	private float[] poly6Table;  // poly6 sampled uniformly in r^2
+	private float[] spikyTable;  // spiky sampled uniformly in r
+	private float[] viscoTable;  // visco sampled uniformly in r
+	
+	public SPHKernel(float h)
+	{
+		mode = EXACT;
+		errorBound = 1e-4f;
+		SetKernel(h);
+	}
+	
+	// recompute the constants (and tables) for a new kernel length
+	public void SetKernel(float h)
+	{
+		kernel  = h;
+		kernel2 = h*h;
+		poly6Coef = (float) (315.0/(64.0 * Math.PI * Math.pow(h, 9)));
+		spikyCoef = (float) (-45.0/(Math.PI * Math.pow(h, 6)));
+		viscoCoef = (float) (45.0/(Math.PI * Math.pow(h, 6)));
+		
+		if(mode == TABLE)
+		{
+			BuildTables();
+		}
+	}
+	
+	// select EXACT or TABLE evaluation, errorBound is relative to the kernel peak
+	public void SetMode(int m, float bound)
+	{
+		mode = m;
+		errorBound = bound;
+		
+		if(mode == TABLE)
+		{
+			BuildTables();
+		}
+		else
+		{
+			poly6Table = null;
+			spikyTable = null;
+			viscoTable = null;
+		}
+	}
+	
+	public int GetMode()
+	{
+		return mode;
+	}
+	
+	public float GetKernel()
+	{
+		return kernel;
+	}
+	
+	// normalization constants of the EXACT polynomials, for code that evaluates them itself
+	public float GetPoly6Coef()
+	{
+		return poly6Coef;
+	}
+	
+	public float GetSpikyCoef()
+	{
+		return spikyCoef;
+	}
+	
+	public float GetViscoCoef()
+	{
+		return viscoCoef;
+	}
+	
+	// number of intervals per table, 0 in EXACT mode
+	public int GetTableSize()
+	{
+		return mode == TABLE ? tableSize : 0;
+	}
+	
+	// polynomial kernel function
+	public float poly6(float r2)
+	{
+		if(mode == TABLE)
+		{
+			return Lookup(poly6Table, r2*poly6Scale);
+		}
+		float d = kernel2-r2;
+		return poly6Coef * d*d*d;
+	}
+	
+	// spiky kernel function
+	public float spiky(float r)
+	{
+		if(mode == TABLE)
+		{
+			return Lookup(spikyTable, r*radialScale);
+		}
+		float d = kernel-r;
+		return spikyCoef * d*d;
+	}
+	
+	// visco kernel function
+	public float visco(float r)
+	{
+		if(mode == TABLE)
+		{
+			return Lookup(viscoTable, r*radialScale);
+		}
+		return viscoCoef * (kernel-r);
+	}
+	
+	private float Lookup(float[] table, float t)
+	{
+		int i = (int)t;
+		if(i >= tableSize)
+		{
+			return table[tableSize];
+		}
+		float frac = t-i;
+		return table[i] + (table[i+1]-table[i])*frac;
+	}
+	
+	private void BuildTables()
+	{
+		// Linear interpolation of f on a step dx errs by at most dx^2/8*max|f''|.
+		// Normalized to the peak, poly6 (1-q)^3 has max|f''| = 6 and spiky (1-s)^2 has 2,
+		// visco is linear and exact, so poly6 decides the size.
+		int n = (int) Math.ceil(Math.sqrt(0.75/errorBound));
+		if(n < MIN_TABLE) n = MIN_TABLE;
+		if(n > MAX_TABLE) n = MAX_TABLE;
+		tableSize = n;
+		
+		poly6Table = new float[n+1];
+		spikyTable = new float[n+1];
+		viscoTable = new float[n+1];
+		poly6Scale  = n/kernel2;
+		radialScale = n/kernel;
+		
+		for(int i=0; i<=n; i++)
+		{
+			double r2 = (double)kernel2*i/n;
+			double r  = (double)kernel*i/n;
+			double d2 = kernel2-r2;
+			double d  = kernel-r;
+			poly6Table[i] = (float) (poly6Coef * d2*d2*d2);
+			spikyTable[i] = (float) (spikyCoef * d*d);
+			viscoTable[i] = (float) (viscoCoef * d);
+		}
+		// the last sample is exactly at r = h where all kernels vanish
+		poly6Table[n] = 0.0f;
+		spikyTable[n] = 0.0f;
+		viscoTable[n] = 0.0f;
+	}
+}
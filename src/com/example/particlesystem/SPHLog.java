@@ -0,0 +1,67 @@
+/** File:		SPHLog.java
+ ** Author:		Dongli Zhang
+ ** Contact:	dongli.zhang0129@gmail.com
+ **
+ ** Copyright (C) Dongli Zhang 2013
+ **
+ ** This program is free software;  you can redistribute it and/or modify
+ ** it under the terms of the GNU General Public License as published by
+ ** the Free Software Foundation; either version 2 of the License, or
+ ** (at your option) any later version.
+ **
+ ** This program is distributed in the hope that it will be useful,
+ ** but WITHOUT ANY WARRANTY;  without even the implied warranty of
+ ** MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See
+ ** the GNU General Public License for more details.
+ **
+ ** You should have received a copy of the GNU General Public License
+ ** along with this program;  if not, write to the Free Software 
+ ** Foundation, 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA
+ */
+
+
+package com.example.particlesystem;
+
+/* Logging hook of the simulation core.
+ * The core does not depend on Android, messages go to the installed Sink:
+ * the app installs one that forwards to android.util.Log, the headless runner
+ * keeps the default that prints to the console.
+ */
+public class SPHLog 
+{
+	public interface Sink
+	{
+		void Info(String tag, String msg);
+		void Error(String tag, String msg);
+	}
+	
+	// print to stdout/stderr
+	public static final Sink CONSOLE = new Sink() {
+		public void Info(String tag, String msg)
+		{
+			System.out.println(tag+": "+msg);
+		}
+		
+		public void Error(String tag, String msg)
+		{
+			System.err.println(tag+": "+msg);
+		}
+	};
+	
+	private static volatile Sink sink = CONSOLE;
+	
+	public static void SetSink(Sink s)
+	{
+		sink = s == null ? CONSOLE : s;
+	}
+	
+	public static void Info(String tag, String msg)
+	{
+		sink.Info(tag, msg);
+	}
+	
+	public static void Error(String tag, String msg)
+	{
+		sink.Error(tag, msg);
+	}
+}
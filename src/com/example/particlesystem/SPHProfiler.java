@@ -0,0 +1,191 @@
+/** File:		SPHProfiler.java
+ ** Author:		Dongli Zhang
+ ** Contact:	dongli.zhang0129@gmail.com
+ **
+ ** Copyright (C) Dongli Zhang 2013
+ **
+ ** This program is free software;  you can redistribute it and/or modify
+ ** it under the terms of the GNU General Public License as published by
+ ** the Free Software Foundation; either version 2 of the License, or
+ ** (at your option) any later version.
+ **
+ ** This program is distributed in the hope that it will be useful,
+ ** but WITHOUT ANY WARRANTY;  without even the implied warranty of
+ ** MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See
+ ** the GNU General Public License for more details.
+ **
+ ** You should have received a copy of the GNU General Public License
+ ** along with this program;  if not, write to the Free Software 
+ ** Foundation, 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA
+ */
+
+package com.example.particlesystem;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/* Latency histograms of a fixed set of named phases.
+ * The owner records the duration of each phase and calls Tick() once per
+ * step or frame; if a dump interval is set, Tick() writes p50/p99/max of every
+ * phase to SPHLog at that interval. Owners keep a null profiler (or a disabled
+ * flag) when profiling is off, so the cost is one branch per phase.
+ * The live histograms belong to the recording thread. Tick() also publishes a
+ * copy of them through a triple buffer every SNAPSHOT_MILLIS, and any other
+ * thread reads only that copy through Snapshot(), so it never sees a
+ * histogram half way through Record() or Reset().
+ */
+public class SPHProfiler
+{
+	private final String name;              // shown in dumps, e.g. "sph" or "render"
+	private final String[] phaseNames;
+	private final LatencyHistogram[] hist;
+	
+	public static final long SNAPSHOT_MILLIS = 100;
+	
+	private static final int INDEX_MASK = 3;
+	private static final int DIRTY = 4;     // the middle set holds a copy no reader has taken
+	
+	private final LatencyHistogram[][] copies = new LatencyHistogram[3][];
+	private final AtomicInteger middle;     // index of the shared set plus DIRTY
+	private int back;                       // owned by the recording thread
+	private int front;                      // owned by readers, under the snapshot lock
+	private final Object snapshotLock = new Object();
+	private long lastSnapshot;
+	
+	private long dumpPeriod;                // nanoseconds between dumps, 0 never
+	private long lastDump;
+	
+	public SPHProfiler(String n, String[] phases)
+	{
+		name = n;
+		phaseNames = phases;
+		hist = new LatencyHistogram[phases.length];
+		for(int i=0; i<phases.length; i++)
+		{
+			hist[i] = new LatencyHistogram();
+		}
+		for(int c=0; c<3; c++)
+		{
+			copies[c] = NewSnapshot();
+		}
+		back = 0;
+		middle = new AtomicInteger(1);
+		front = 2;
+		lastDump = System.nanoTime();
+		lastSnapshot = lastDump;
+	}
+	
+	public void Record(int phase, long nanos)
+	{
+		hist[phase].Record(nanos);
+	}
+	
+	public int GetNumPhases()
+	{
+		return hist.length;
+	}
+	
+	public String GetPhaseName(int phase)
+	{
+		return phaseNames[phase];
+	}
+	
+	// the live histogram, for the recording thread only
+	public LatencyHistogram GetHistogram(int phase)
+	{
+		return hist[phase];
+	}
+	
+	// one empty histogram per phase to pass to Snapshot()
+	public LatencyHistogram[] NewSnapshot()
+	{
+		LatencyHistogram[] h = new LatencyHistogram[hist.length];
+		for(int i=0; i<h.length; i++)
+		{
+			h[i] = new LatencyHistogram();
+		}
+		return h;
+	}
+	
+	// recording thread: copy the live histograms into the back set and swap it
+	// into the middle; called from Tick(), or directly to publish right away
+	public void Publish()
+	{
+		LatencyHistogram[] b = copies[back];
+		for(int i=0; i<hist.length; i++)
+		{
+			hist[i].CopyTo(b[i]);
+		}
+		back = middle.getAndSet(back | DIRTY) & INDEX_MASK;
+	}
+	
+	// any thread: copy the last published histograms into into, which comes
+	// from NewSnapshot(); they are empty until the first publication
+	public void Snapshot(LatencyHistogram[] into)
+	{
+		synchronized(snapshotLock)
+		{
+			if((middle.get() & DIRTY) != 0)
+			{
+				front = middle.getAndSet(front) & INDEX_MASK;
+			}
+			LatencyHistogram[] f = copies[front];
+			for(int i=0; i<hist.length; i++)
+			{
+				f[i].CopyTo(into[i]);
+			}
+		}
+	}
+	
+	public void Reset()
+	{
+		for(int i=0; i<hist.length; i++)
+		{
+			hist[i].Reset();
+		}
+	}
+	
+	// write a report to SPHLog every millis milliseconds from Tick(), 0 turns it off
+	public void SetDumpInterval(long millis)
+	{
+		dumpPeriod = millis*1000000L;
+	}
+	
+	// call once per step or frame on the recording thread
+	public void Tick()
+	{
+		long now = System.nanoTime();
+		if(now-lastSnapshot >= SNAPSHOT_MILLIS*1000000L)
+		{
+			lastSnapshot = now;
+			Publish();
+		}
+		
+		if(dumpPeriod != 0 && now-lastDump >= dumpPeriod)
+		{
+			lastDump = now;
+			SPHLog.Info("DONGLI", Report());
+		}
+	}
+	
+	// one line per phase with count, p50, p99 and max in milliseconds, from the
+	// live histograms; recording thread only
+	public String Report()
+	{
+		return Report(hist);
+	}
+	
+	// the same report from histograms filled by Snapshot()
+	public String Report(LatencyHistogram[] snapshot)
+	{
+		StringBuilder sb = new StringBuilder();
+		sb.append(name).append(" profile (ms)");
+		for(int i=0; i<snapshot.length; i++)
+		{
+			LatencyHistogram h = snapshot[i];
+			sb.append(String.format("\n  %-10s n=%-7d p50=%8.3f p99=%8.3f max=%8.3f",
+					phaseNames[i], h.GetCount(), h.GetPercentile(50.0)/1e6,
+					h.GetPercentile(99.0)/1e6, h.GetMax()/1e6));
+		}
+		return sb.toString();
+	}
+}
@@ -25,13 +25,47 @@
 
 package com.example.particlesystem;
 
-import java.util.ArrayList;
-import java.util.Iterator;
-import android.util.Log;
+import java.nio.FloatBuffer;
 
 // definition of SPH System
-public class SPHSystem 
+public class SPHSystem implements ParticleSimulation
 {
+	// phases of animation(), for profiling
+	public static final int PHASE_GRID      = 0; // grid build, reorder and neighbor list update
+	public static final int PHASE_DENSITY   = 1;
+	public static final int PHASE_FORCE     = 2;
+	public static final int PHASE_EXTERNAL  = 3;
+	public static final int PHASE_PRESSURE  = 4; // incompressible pressure solve, empty with SOLVER_WCSPH
+	public static final int PHASE_ADVECTION = 5;
+	public static final int NUM_PHASES      = 6;
+	public static final int PHASE_STEP      = 6; // the whole step, recorded after the phases
+	public static final String[] PHASE_NAMES = {"grid", "density", "force", "external", "pressure", "advection", "step"};
+	
+	// pressure solvers, see SetSolver
+	public static final int SOLVER_WCSPH  = 0; // weakly compressible, pressure from the equation of state
+	public static final int SOLVER_PCISPH = 1; // predictive-corrective incompressible pressure solve
+	public static final int SOLVER_PBF    = 2; // position-based fluids, density constraints on the positions
+	public static final String[] SOLVER_NAMES = {"wcsph", "pcisph", "pbf"};
+	
+	// neighbor search structures, see SetSearchMode
+	public static final int SEARCH_GRID     = 0; // uniform grid, dense cell arrays over the world rectangle
+	public static final int SEARCH_HASH     = 1; // compact hash grid, occupied cells only, unbounded coordinates
+	public static final int SEARCH_QUADTREE = 2; // adaptive quadtree over the particles, unbounded coordinates
+	public static final String[] SEARCH_NAMES = {"grid", "hash", "quadtree"};
+	
+	public static final int SLEEP_STEPS = 30; // calm steps before a particle falls asleep
+	public static final int INPUT_CAPACITY = 64; // touch events queued between two steps, more are dropped
+	
+	// safety factors of the adaptive time step, see SetAdaptiveTimeStep
+	public static final float CFL_FACTOR       = 0.4f;   // of kernel/(sound speed + max speed)
+	public static final float FORCE_FACTOR     = 0.25f;  // of sqrt(kernel/max acceleration)
+	public static final float VISCOSITY_FACTOR = 0.125f; // of kernel^2/kinematic viscosity
+	public static final int MAX_SUBSTEPS       = 32;     // steps of one Advance(), a frame that needs more is cut short
+	
+	// forward half of the 3x3 stencil, with the cell itself every neighbor pair of cells appears once
+	private static final int[] HALF_SHELL_X = {1, -1, 0, 1};
+	private static final int[] HALF_SHELL_Y = {0, 1, 1, 1};
+	
 	private float kernel;    // general kernel length of particle
 	private float mass;      // general mass of particle
 	
@@ -46,28 +80,111 @@ public class SPHSystem
 	private Vec2f gravity;     // gravity x
 	private float stiffness;   // gas constant
 	private float restDensity; // rest density 
+	private float invRestDensity;
 	private float timeStep; 
 	private float wallDamping;
 	private float viscosity;
 	
-	private ArrayList<Particle> list;  // list of particles for simulation
-	private ArrayList<Cell> clist;     // list of cells for simulation
+	private int solverMode;            // SOLVER_WCSPH, SOLVER_PCISPH or SOLVER_PBF
+	private PressureSolver solver;     // incompressible solver of solverMode, created on first use
+	private int solverIterations;      // limits of SetSolverLimits, 0 keeps the default of the solver
+	private float solverTolerance;
+	
+	private float maxTimeStep;         // upper bound of the adaptive time step, 0 keeps timeStep fixed
+	private float stepTime;            // time step of the current step
+	private float stableTime;          // stable time step found by the last step
+	private double droppedTime;        // simulated seconds of frames Advance() cut short
+	private int shortFrames;           // number of those frames
+	private float[] maxSpeed2;         // per thread maxima of the squared speed and acceleration
+	private float[] maxAcc2;
+	private WorkerPool.RangeTask limitTask;
+	
+	private SPHKernel kernelFunc;      // kernel functions with precomputed coefficients
+	
+	private ParticleStore ps;          // particles for simulation, one column per attribute
+	private NeighborSearch search;     // spatial index rebuilt every step, created on first use
+	private CellGrid grid;             // search if it is a cell grid, the symmetric stencil walks its cells
+	private int searchMode;            // SEARCH_GRID, SEARCH_HASH or SEARCH_QUADTREE
+	private int[][] queryRanges;       // per thread index ranges of the neighbor queries
+	private boolean openBoundary;      // only the floor collides, particles may leave the world box
+	
+	private WorkerPool pool;           // null runs every phase on the calling thread
+	private WorkerPool.RangeTask densityTask;
+	private WorkerPool.RangeTask forceTask;
+	private WorkerPool.RangeTask advectionTask;
+	
+	private boolean symmetric;         // visit each pair once with the half-shell stencil
+	private float[][] pairDens;        // per thread density accumulators of the symmetric mode
+	private float[][] pairForceX;      // per thread force accumulators of the symmetric mode
+	private float[][] pairForceY;
+	private WorkerPool.RangeTask densPairTask;
+	private WorkerPool.RangeTask densReduceTask;
+	private WorkerPool.RangeTask forcePairTask;
+	private WorkerPool.RangeTask forceReduceTask;
+	
+	private NeighborList nlist;        // Verlet lists reused across steps, null scans the grid
+	
+	private NeighborKernels vectorKernels; // neighbor loops in vector lanes, null keeps the scalar ones
+	private float[][] vectorAcc;       // per thread result of NeighborKernels.Force
+	private NeighborBlock[] vectorBlocks; // per thread candidates of one particle
+	
+	private boolean pairCache;         // the density sweep keeps its pairs for the force sweep
+	private int[] cacheWorker;         // thread whose buffers hold the pairs of each particle
+	private int[] cacheStart;          // first of the pairs of each particle in those buffers
+	private int[] cacheCount;          // number of the pairs of each particle
+	private int[] cacheUsed;           // pairs written by each thread in this step
+	private int[][] cacheIndex;        // per thread pairs: neighbor slot, distance vector, distance
+	private float[][] cacheX;
+	private float[][] cacheY;
+	private float[][] cacheDist;
+	private WorkerPool.RangeTask densCacheTask;
+	private WorkerPool.RangeTask forceCacheTask;
+	
+	private float reorderThreshold;    // scatter of the grid that triggers a Z-order sort, 0 is off
+	private float locality;            // scatter measured at the last grid build
+	private int[] order;               // scratch permutation of the reorder pass
+	private int reorderCount;          // number of reorder passes
+	private int stepsSinceReorder;
+	private int reorderInterval;       // steps between the last two reorder passes
+	
+	private FloatBuffer positionOutput; // receives x, y of every slot during advection, may be null
 	
-	private int external_event = 0;    // 1 means external event injected
-	private float external_x;          // touched position
-	private float external_y;          // touched position
-	private float force_x; 			   // finger added force
-	private float force_y;             // finger added force
+	private float sleepSpeed;          // particles slower than this may sleep, 0 turns sleeping off
+	private int sleepAfter;            // calm steps before a particle sleeps, Integer.MAX_VALUE when off
+	private boolean[] cellHot;         // cells with a particle faster than sleepSpeed
+	private boolean[] cellAwake;       // cells with an awake particle
+	private int[] activeCount;         // awake particles counted by each thread
+	private volatile int numActive;    // awake particles of the last step, read by other threads
+	private WorkerPool.RangeTask cellHotTask;
+	private WorkerPool.RangeTask cellSleepTask;
+	
+	private volatile boolean profiling; // may be switched from another thread
+	private SPHProfiler profiler;      // latency histogram of each phase, created on first use
+	private WorkerPool.RangeTask densListTask;
+	private WorkerPool.RangeTask forceListTask;
+	
+	private final InputQueue input;    // touch events of the other threads, drained once per step
+	private int numEvents;             // events of this step, in world units in the batch of input
+	private int[] touchQuery;          // ranges of the query around one event
+	private int[] touchRanges;         // union of the ranges around all events of this step
+	private int numTouchRanges;        // pairs in touchRanges
 	
 	public SPHSystem(Vec2f w)
+	{
+		this(w, 0.04f);
+	}
+	
+	// k is the kernel length, the particle mass scales with k^2 so the
+	// initial lattice of InitFluid() stays at the rest density
+	public SPHSystem(Vec2f w, float k)
 	{
 		// init data structures
 		worldSize = new Vec2f();
 		gridSize  = new Vec2i();
 		gravity   = new Vec2f();
 		
-		kernel = 0.04f;
-		mass = 0.02f;
+		kernel = k;
+		mass = 0.02f*(k/0.04f)*(k/0.04f);
 		
 		numParticle = 0;
 		
@@ -85,16 +202,116 @@ public class SPHSystem
 		timeStep = 0.01f;
 		wallDamping = 0.0f;
 		viscosity = 1.0f;
+		invRestDensity = 1.0f/restDensity;
 		
-		list = new ArrayList<Particle>();
-		clist = new ArrayList<Cell>();
+		kernelFunc = new SPHKernel(kernel);
 		
-		// init the grid system
-		for(int i=0; i<totCell; i++)
-		{
-			Cell c = new Cell();
-			clist.add(c);
-		}
+		ps = new ParticleStore(1024);
+		
+		// the search structure is created by the first step, so a large world can pick a sparse one first
+		searchMode = SEARCH_GRID;
+		
+		// per particle phases that can be split across threads
+		densityTask = new WorkerPool.RangeTask() {
+			public void Run(int begin, int end, int worker)
+			{
+				CompDensPressure(begin, end, worker);
+			}
+		};
+		forceTask = new WorkerPool.RangeTask() {
+			public void Run(int begin, int end, int worker)
+			{
+				CompForce(begin, end, worker);
+			}
+		};
+		advectionTask = new WorkerPool.RangeTask() {
+			public void Run(int begin, int end, int worker)
+			{
+				Advection(begin, end);
+			}
+		};
+		
+		// the symmetric mode splits cells across threads, then reduces per particle
+		densPairTask = new WorkerPool.RangeTask() {
+			public void Run(int begin, int end, int worker)
+			{
+				CompDensPairs(begin, end, worker);
+			}
+		};
+		densReduceTask = new WorkerPool.RangeTask() {
+			public void Run(int begin, int end, int worker)
+			{
+				ReduceDensPairs(begin, end);
+			}
+		};
+		forcePairTask = new WorkerPool.RangeTask() {
+			public void Run(int begin, int end, int worker)
+			{
+				CompForcePairs(begin, end, worker);
+			}
+		};
+		forceReduceTask = new WorkerPool.RangeTask() {
+			public void Run(int begin, int end, int worker)
+			{
+				ReduceForcePairs(begin, end);
+			}
+		};
+		
+		// the neighbor list mode reads the cached lists instead of the grid
+		densListTask = new WorkerPool.RangeTask() {
+			public void Run(int begin, int end, int worker)
+			{
+				CompDensPressureList(begin, end);
+			}
+		};
+		forceListTask = new WorkerPool.RangeTask() {
+			public void Run(int begin, int end, int worker)
+			{
+				CompForceList(begin, end);
+			}
+		};
+		
+		// the cached mode walks the cells once, the force sweep reads the pairs back
+		densCacheTask = new WorkerPool.RangeTask() {
+			public void Run(int begin, int end, int worker)
+			{
+				CompDensPressureCached(begin, end, worker);
+			}
+		};
+		forceCacheTask = new WorkerPool.RangeTask() {
+			public void Run(int begin, int end, int worker)
+			{
+				CompForceCached(begin, end);
+			}
+		};
+		
+		// the touches queued between two steps
+		input = new InputQueue(INPUT_CAPACITY);
+		
+		// the activity passes of the sleeping particles run per cell
+		cellHotTask = new WorkerPool.RangeTask() {
+			public void Run(int begin, int end, int worker)
+			{
+				CompCellHot(begin, end);
+			}
+		};
+		cellSleepTask = new WorkerPool.RangeTask() {
+			public void Run(int begin, int end, int worker)
+			{
+				CompCellSleep(begin, end, worker);
+			}
+		};
+		sleepAfter = Integer.MAX_VALUE;
+		
+		// reduction of the fastest particle for the adaptive time step
+		limitTask = new WorkerPool.RangeTask() {
+			public void Run(int begin, int end, int worker)
+			{
+				CompLimits(begin, end, worker);
+			}
+		};
+		stepTime = timeStep;
+		stableTime = timeStep;
 		
 		//Log.i("DONGLI", "Grid X: "+gridSize.x);
 		//Log.i("DONGLI", "Grid Y: "+gridSize.y);
@@ -103,39 +320,61 @@ public class SPHSystem
 	
 	// init the particles
 	public void InitFluid()
+	{
+		InitFluid(worldSize.x*0.8f, worldSize.y*0.9f);
+	}
+	
+	// fill a block of width x height at the origin, e.g. a small dam in a large world
+	public void InitFluid(float width, float height)
 	{
 		float initVelX = 0.0f;
 		float initVelY = 0.0f;
 		
-		for(float i=worldSize.x*0.0f; i<=worldSize.x*0.8f; i+=kernel*0.8f)
-		{
-			for(float j=worldSize.y*0.0f; j<=worldSize.y*0.9f; j+=kernel*0.8f)
-			{
-				Particle p = new Particle();
-				p.id    = numParticle;
-				p.pos.x = i;
-				p.pos.y = j;
-				p.vel.x = initVelX;
-				p.vel.y = initVelY;
-				p.acc.x = 0.0f;
-				p.acc.y = 0.0f;
-				p.ev.x  = initVelX;
-				p.ev.y  = initVelY;
-				p.dens = restDensity;
-				list.add(p);
+		for(float i=0.0f; i<=width; i+=kernel*0.8f)
+		{
+			for(float j=0.0f; j<=height; j+=kernel*0.8f)
+			{
+				ps.Add(numParticle, i, j, initVelX, initVelY, restDensity);
 				numParticle++;
 			}
 		}
 	}
 	
+	// kernel length, the particles start kernel*0.8 apart
+	public float GetKernel()
+	{
+		return kernel;
+	}
+	
 	public Vec2f GetWorldSize()
 	{
 		return this.worldSize;
 	}
 	
-	public ArrayList<Particle> GetList()
+	// Interleaved x, y of every particle slot are written into out while advecting,
+	// so a renderer gets the positions without another pass. out must hold
+	// 2*GetNumParticle() floats, null stops writing.
+	public void SetPositionOutput(FloatBuffer out)
+	{
+		positionOutput = out;
+	}
+	
+	// write the current positions into out, e.g. for the frame before the first step
+	public void WritePositions(FloatBuffer out)
+	{
+		float[] posX = ps.posX;
+		float[] posY = ps.posY;
+		for(int i=0; i<numParticle; i++)
+		{
+			out.put(i*2,   posX[i]);
+			out.put(i*2+1, posY[i]);
+		}
+	}
+	
+	// column view of all particles, read posX/posY etc. by slot
+	public ParticleStore GetParticles()
 	{
-		return this.list;
+		return this.ps;
 	}
 	
 	public int GetNumParticle()
@@ -143,283 +382,1865 @@ public class SPHSystem
 		return this.numParticle;
 	}
 	
-	// given the x and y of cell in grid system, return the index of cell in arraylist
-	private int CalcCellHash(int x, int y)
+	// debug view of the particles in cell (x, y), null if outside the grid or the search has no cells
+	public Cell GetCell(int x, int y)
+	{
+		EnsureSearch();
+		if(grid == null)
+		{
+			return null;
+		}
+		int hash = grid.CalcCellHash(x, y);
+		if(hash == -1)
+		{
+			return null;
+		}
+		return grid.GetCell(hash, new Cell());
+	}
+	
+	// sort the particles into the neighbor search structure
+	private void BuildSearch()
+	{
+		EnsureSearch();
+		search.Build(ps, numParticle);
+	}
+	
+	private void EnsureSearch()
 	{
-		if(x<0 || x>=gridSize.x || y<0 || y>=gridSize.y)
+		if(search == null)
+		{
+			if(searchMode == SEARCH_HASH)
+			{
+				search = new CompactHashGrid(cellSize);
+			}
+			else if(searchMode == SEARCH_QUADTREE)
+			{
+				search = new QuadTree(cellSize*0.5f);
+			}
+			else
+			{
+				search = new UniformGrid(gridSize.x, gridSize.y, cellSize);
+			}
+			grid = search instanceof CellGrid ? (CellGrid) search : null;
+		}
+		
+		// one ranges buffer per thread, each big enough for a query of the kernel length
+		int threads = GetThreads();
+		int size = 2*search.GetMaxRanges(kernel);
+		if(queryRanges == null || queryRanges.length != threads || queryRanges[0].length < size)
+		{
+			queryRanges = new int[threads][size];
+		}
+		if(vectorAcc == null || vectorAcc.length != threads)
+		{
+			vectorAcc = new float[threads][2];
+			vectorBlocks = new NeighborBlock[threads];
+			for(int t=0; t<threads; t++)
+			{
+				vectorBlocks[t] = new NeighborBlock();
+			}
+		}
+		
+		// the queries around the touches, a default touch reaches twice the kernel length,
+		// the union holds those of a full queue
+		int touchSize = 2*search.GetMaxRanges(kernel*2);
+		if(touchQuery == null || touchQuery.length < touchSize)
+		{
+			touchQuery = new int[touchSize];
+		}
+		if(touchRanges == null || touchRanges.length < INPUT_CAPACITY*touchSize)
 		{
-			return -1;
+			touchRanges = new int[INPUT_CAPACITY*touchSize];
 		}
 		
-		int hash = y*gridSize.x + x;
-		if(hash >= totCell)
+		// the sleep marks, sized even while sleeping is off so that turning it on
+		// (as the quality governor does) does not allocate inside a step
+		if(grid != null)
+		{
+			// the hash grid has at most one cell per particle
+			int totCell = grid.GetTotCell();
+			int cells = totCell > numParticle ? totCell : numParticle;
+			if(cellHot == null || cellHot.length < cells)
+			{
+				cellHot = new boolean[cells];
+				cellAwake = new boolean[cells];
+			}
+		}
+		if(activeCount == null || activeCount.length != threads)
+		{
+			activeCount = new int[threads];
+		}
+	}
+	
+	// SEARCH_GRID allocates every cell of the world, SEARCH_HASH only the occupied ones,
+	// which suits worlds much larger than the fluid, SEARCH_QUADTREE adapts its cells to
+	// the particles, which suits a thin splash over an empty domain. The sparse ones are
+	// required by SetOpenBoundary.
+	public void SetSearchMode(int mode)
+	{
+		if(openBoundary && mode == SEARCH_GRID)
+		{
+			throw new IllegalStateException("an open boundary needs SEARCH_HASH or SEARCH_QUADTREE");
+		}
+		if(sleepSpeed > 0.0f && mode == SEARCH_QUADTREE)
+		{
+			throw new IllegalStateException("sleeping needs SEARCH_GRID or SEARCH_HASH");
+		}
+		if(mode != searchMode)
+		{
+			searchMode = mode;
+			search = null;
+			grid = null;
+		}
+	}
+	
+	public int GetSearchMode()
+	{
+		return searchMode;
+	}
+	
+	// index of name in SEARCH_NAMES, -1 if there is no such search
+	public static int SearchMode(String name)
+	{
+		for(int i=0; i<SEARCH_NAMES.length; i++)
+		{
+			if(SEARCH_NAMES[i].equals(name))
+			{
+				return i;
+			}
+		}
+		return -1;
+	}
+	
+	// the current search structure, null before the first step
+	public NeighborSearch GetSearch()
+	{
+		return search;
+	}
+	
+	// bytes held by the search structure, 0 before the first step
+	public long GetSearchMemory()
+	{
+		return search == null ? 0 : search.GetMemoryBytes();
+	}
+	
+	// Remove the side walls and the ceiling, particles that leave the world box keep
+	// flying and only the floor at y = 0 stops them. Needs SEARCH_HASH or
+	// SEARCH_QUADTREE: the uniform grid has no cells outside the world and would
+	// pile every particle that left it into its border cells.
+	public void SetOpenBoundary(boolean open)
+	{
+		if(open && searchMode == SEARCH_GRID)
+		{
+			throw new IllegalStateException("an open boundary needs SEARCH_HASH or SEARCH_QUADTREE");
+		}
+		openBoundary = open;
+	}
+	
+	public boolean GetOpenBoundary()
+	{
+		return openBoundary;
+	}
+	
+	// Let settled fluid sleep by region: a cell is hot while the mean kinetic energy of
+	// its particles is above that of speed. A particle whose 3x3 cells were all cold for
+	// SLEEP_STEPS steps stops moving and keeps its density and force, awake neighbors
+	// still see it. The count is kept per particle because particles change cells.
+	// Motion in a neighbor cell or an external event within reach of it wakes it again.
+	// Needs cells, so not SEARCH_QUADTREE, 0 turns it off.
+	public void SetSleeping(float speed)
+	{
+		if(speed > 0.0f && !CanSleep())
+		{
+			throw new IllegalStateException("sleeping needs SEARCH_GRID or SEARCH_HASH");
+		}
+		sleepSpeed = speed;
+	}
+	
+	// whether the search mode has the cells SetSleeping works on
+	public boolean CanSleep()
+	{
+		return searchMode != SEARCH_QUADTREE;
+	}
+	
+	public float GetSleeping()
+	{
+		return sleepSpeed;
+	}
+	
+	// particles that were awake in the last step, all of them when sleeping is off
+	public int GetNumActive()
+	{
+		return numActive;
+	}
+	
+	// mark the hot cells, then count the calm steps of the particles of each cell
+	private void UpdateSleep()
+	{
+		if(sleepSpeed <= 0.0f || grid == null)
 		{
-			Log.e("DONGLI", "Error at computing hash");
+			sleepAfter = Integer.MAX_VALUE;
+			numActive = numParticle;
+			return;
 		}
+		sleepAfter = SLEEP_STEPS;
+		int threads = GetThreads();
 		
-		return hash;
+		this.RunCellPhase(cellHotTask);
+		this.RunCellPhase(cellSleepTask);
+		
+		int active = 0;
+		for(int w=0; w<threads; w++)
+		{
+			active += activeCount[w];
+			activeCount[w] = 0;
+		}
+		numActive = active;
 	}
 	
-	// compute the cell index of each particle and assign particles to each cell
-	private void BuildGrid()
+	private void CompCellHot(int begin, int end)
 	{
-		// clear each cell
-		for(int i=0; i<totCell; i++)
+		float[] velX = ps.velX;
+		float[] velY = ps.velY;
+		int[] cellStart = grid.cellStart;
+		int[] cellCount = grid.cellCount;
+		int[] index = grid.index;
+		float speed2 = sleepSpeed*sleepSpeed;
+		
+		for(int h=begin; h<end; h++)
 		{
-			Cell c = (Cell)clist.get(i);
-			c.list.clear();
+			// all particles have the same mass, so the kinetic energy of the cell is
+			// compared as the sum of the squared speeds
+			float energy = 0.0f;
+			int stop = cellStart[h] + cellCount[h];
+			for(int s=cellStart[h]; s<stop; s++)
+			{
+				int i = index[s];
+				energy += velX[i]*velX[i]+velY[i]*velY[i];
+			}
+			cellHot[h] = energy > cellCount[h]*speed2;
 		}
+	}
+	
+	private void CompCellSleep(int begin, int end, int worker)
+	{
+		float[] posX = ps.posX;
+		float[] posY = ps.posY;
+		float[] velX = ps.velX;
+		float[] velY = ps.velY;
+		float[] evX  = ps.evX;
+		float[] evY  = ps.evY;
+		int[] calm = ps.calm;
+		int[] cellStart = grid.cellStart;
+		int[] cellCount = grid.cellCount;
+		int[] index = grid.index;
+		int sleepAfter = this.sleepAfter;
+		int active = 0;
 		
-		// assign each particle to its corresponding cell
-		for(int i=0; i<numParticle; i++)
+		for(int h=begin; h<end; h++)
 		{
-			Particle p = list.get(i);
-			int x = (int)(p.pos.x/cellSize);
-			int y = (int)(p.pos.y/cellSize);
-			int hash = CalcCellHash(x, y);
-			Cell c = (Cell)clist.get(hash);
-			c.list.add(p);
+			if(cellCount[h] == 0)
+			{
+				cellAwake[h] = false;
+				continue;
+			}
+			
+			int cx = grid.GetCellX(h);
+			int cy = grid.GetCellY(h);
+			boolean hot = false;
+			for(int i=-1; i<=1 && !hot; i++)
+			{
+				for(int j=-1; j<=1; j++)
+				{
+					int nh = grid.CalcCellHash(cx+i, cy+j);
+					if(nh != -1 && cellHot[nh])
+					{
+						hot = true;
+						break;
+					}
+				}
+			}
+			
+			boolean awake = false;
+			int stop = cellStart[h] + cellCount[h];
+			for(int s=cellStart[h]; s<stop; s++)
+			{
+				int k = index[s];
+				if(hot)
+				{
+					calm[k] = 0;
+				}
+				else if(calm[k] < sleepAfter && ++calm[k] == sleepAfter)
+				{
+					// falls asleep at rest
+					velX[k] = 0.0f;
+					velY[k] = 0.0f;
+					evX[k] = 0.0f;
+					evY[k] = 0.0f;
+				}
+				if(calm[k] < sleepAfter)
+				{
+					awake = true;
+					active++;
+				}
+			}
+			cellAwake[h] = awake;
 		}
+		
+		activeCount[worker] += active;
 	}
 	
 	// compute density and pressure for each particle
-	private void CompDensPressure()
+	private void CompDensPressure(int begin, int end, int worker)
 	{
-		Vec2i cellPos = new Vec2i();;
-		Vec2i nearPos = new Vec2i();
-		int hash;
+		float[] posX = ps.posX;
+		float[] posY = ps.posY;
+		float[] dens = ps.dens;
+		float[] pres = ps.pres;
+		NeighborSearch ns = search;
+		int[] index = ns.GetIndex();
+		int[] ranges = queryRanges[worker];
+		SPHKernel kf = kernelFunc;
+		float kernel2 = kernel*kernel;
+		float selfDens = mass*kf.poly6(0.0f);
+		int[] calm = ps.calm;
+		int sleepAfter = this.sleepAfter;
+		NeighborKernels vk = VectorKernels();
 		
-		for(int k=0; k<numParticle; k++)
+		for(int k=begin; k<end; k++)
 		{
+			// sleeping particles keep their density and pressure
+			if(calm[k] >= sleepAfter) continue;
+			
 			// for each particle in the simulation
-			Particle p = list.get(k);
-			p.dens = 0.0f;
-			p.pres = 0.0f;
+			float px = posX[k];
+			float py = posY[k];
+			float d = 0.0f;
 			
-			// compute the position of particle in grid
-			cellPos.x = (int)(p.pos.x/cellSize);
-			cellPos.y = (int)(p.pos.y/cellSize);
+			// the index ranges that hold the particles within the kernel length
+			int numRanges = ns.Query(px, py, kernel, ranges);
 			
-			for(int i=-1; i<=1; i++)
+			if(vk != null)
 			{
-				for(int j=-1; j<=1; j++)
+				// the same sum in vector lanes
+				NeighborBlock block = vectorBlocks[worker];
+				block.Gather(ps, index, ranges, numRanges, k, vk.GetLanes(), false);
+				d = vk.Density(block, ps, k) + selfDens;
+				dens[k] = d;
+				pres[k] = Pressure(d);
+				continue;
+			}
+			
+			for(int r=0; r<numRanges; r++)
+			{
+				int rangeEnd = ranges[2*r+1];
+				for(int n=ranges[2*r]; n<rangeEnd; n++)
 				{
-					nearPos.x = cellPos.x + i;
-					nearPos.y = cellPos.y + j;
-					hash = CalcCellHash(nearPos.x, nearPos.y);
-					if(hash == -1) continue;
-					
-					Cell c = clist.get(hash);
+					int np = index[n];
 					
-					for(Iterator<Particle> iter=c.list.iterator(); iter.hasNext(); )
-					{
-						Particle np = (Particle)iter.next();
-						
-						float distVecX = np.pos.x - p.pos.x;
-						float distVecY = np.pos.y - p.pos.y;
-						float dist2 = distVecX*distVecX+distVecY*distVecY;
-
-						if(dist2<0.000001f || dist2>=kernel*kernel)
-						{
-							continue;
-						}
+					float distVecX = posX[np] - px;
+					float distVecY = posY[np] - py;
+					float dist2 = distVecX*distVecX+distVecY*distVecY;
 
-						// for all neighboring particles within the kernel length of this particle
-						p.dens = p.dens + mass * poly6(dist2);
+					if(dist2<0.000001f || dist2>=kernel2)
+					{
+						continue;
 					}
+
+					// for all neighboring particles within the kernel length of this particle
+					d = d + mass * kf.poly6(dist2);
 				}
 			}
 			
 			// the final smoothed density of this particle
-			p.dens = p.dens + mass*poly6(0.0f);
-			p.pres = (float) ((Math.pow(p.dens / restDensity, 7) - 1) * stiffness);
+			d = d + selfDens;
+			dens[k] = d;
+			pres[k] = Pressure(d);
 		}
 	}
 	
 	// compute final smoothed force for each particle
-	private void CompForce()
+	private void CompForce(int begin, int end, int worker)
 	{
-		Vec2i cellPos = new Vec2i();;
-		Vec2i nearPos = new Vec2i();
-		int hash;
+		float[] posX = ps.posX;
+		float[] posY = ps.posY;
+		float[] evX  = ps.evX;
+		float[] evY  = ps.evY;
+		float[] accX = ps.accX;
+		float[] accY = ps.accY;
+		float[] dens = ps.dens;
+		float[] pres = ps.pres;
+		NeighborSearch ns = search;
+		int[] index = ns.GetIndex();
+		int[] ranges = queryRanges[worker];
+		SPHKernel kf = kernelFunc;
+		float kernel2 = kernel*kernel;
+		int[] calm = ps.calm;
+		int sleepAfter = this.sleepAfter;
+		NeighborKernels vk = VectorKernels();
+		float[] acc = vectorAcc[worker];
 		
-		for(int k=0; k<numParticle; k++)
+		for(int k=begin; k<end; k++)
 		{
+			if(calm[k] >= sleepAfter) continue;
+			
 			// for each particle in the simulation
-			Particle p = list.get(k);
-			p.acc.x = 0.0f;
-			p.acc.y = 0.0f;
+			float px = posX[k];
+			float py = posY[k];
+			float pd = dens[k];
+			float pp = pres[k];
+			float ax = 0.0f;
+			float ay = 0.0f;
 			
-			// compute the position of particle in grid
-			cellPos.x = (int)(p.pos.x/cellSize);
-			cellPos.y = (int)(p.pos.y/cellSize);
+			// the index ranges that hold the particles within the kernel length
+			int numRanges = ns.Query(px, py, kernel, ranges);
 			
-			for(int i=-1; i<=1; i++)
+			if(vk != null)
 			{
-				for(int j=-1; j<=1; j++)
+				// the same sums in vector lanes
+				NeighborBlock block = vectorBlocks[worker];
+				block.Gather(ps, index, ranges, numRanges, k, vk.GetLanes(), true);
+				vk.Force(block, ps, k, acc);
+				accX[k] = acc[0]/pd + gravity.x;
+				accY[k] = acc[1]/pd + gravity.y;
+				continue;
+			}
+			
+			for(int r=0; r<numRanges; r++)
+			{
+				int rangeEnd = ranges[2*r+1];
+				for(int n=ranges[2*r]; n<rangeEnd; n++)
 				{
-					nearPos.x = cellPos.x + i;
-					nearPos.y = cellPos.y + j;
-					hash = CalcCellHash(nearPos.x, nearPos.y);
-					if(hash == -1) continue;
-					
-					Cell c = clist.get(hash);
+					int np = index[n];
 					
-					for(Iterator<Particle> iter=c.list.iterator(); iter.hasNext(); )
+					float distVecX = posX[np] - px;
+					float distVecY = posY[np] - py;
+					float dist2 = distVecX*distVecX+distVecY*distVecY;
+					if(dist2<0.000001f || dist2>=kernel2)
 					{
-						Particle np = (Particle)iter.next();
-						//Log.i("DONGLI", "Pos: "+np.pos.x+", "+np.pos.y);
-						
-						float distVecX = np.pos.x - p.pos.x;
-						float distVecY = np.pos.y - p.pos.y;
-						float dist2 = distVecX*distVecX+distVecY*distVecY;
-						if(dist2<0.000001f || dist2>=kernel*kernel)
-						{
-							continue;
-						}
-
-						float dist = (float) Math.sqrt(dist2);
-						float V = mass/p.dens;
-						
-						float tempForce = V * (p.pres+np.pres) * spiky(dist);
-						p.acc.x = p.acc.x - distVecX*tempForce/dist;
-						p.acc.y = p.acc.y - distVecY*tempForce/dist;
-						
-						float relVelX = np.ev.x-p.ev.x;
-						float relVelY = np.ev.y-p.ev.y;
-						tempForce = V * viscosity * visco(dist);
-						p.acc.x = p.acc.x + relVelX*tempForce;
-						p.acc.y = p.acc.y + relVelY*tempForce;
+						continue;
 					}
+
+					float dist = (float) Math.sqrt(dist2);
+					float V = mass/pd;
+					
+					float tempForce = V * (pp+pres[np]) * kf.spiky(dist);
+					ax = ax - distVecX*tempForce/dist;
+					ay = ay - distVecY*tempForce/dist;
+					
+					float relVelX = evX[np]-evX[k];
+					float relVelY = evY[np]-evY[k];
+					tempForce = V * viscosity * kf.visco(dist);
+					ax = ax + relVelX*tempForce;
+					ay = ay + relVelY*tempForce;
 				}
 			}
 			
 			// final acceleration of this particle
-			p.acc.x = p.acc.x/p.dens + gravity.x;
-			p.acc.y = p.acc.y/p.dens + gravity.y;
+			accX[k] = ax/pd + gravity.x;
+			accY[k] = ay/pd + gravity.y;
 		}
 	}
 	
-	// advect and move each particle to new position
-	private void Advection()
+	// density and pressure as CompDensPressure, every pair within the kernel length
+	// is appended to the cache of worker with its distance vector and distance
+	private void CompDensPressureCached(int begin, int end, int worker)
 	{
-		for(int i=0; i<numParticle; i++)
+		float[] posX = ps.posX;
+		float[] posY = ps.posY;
+		float[] dens = ps.dens;
+		float[] pres = ps.pres;
+		NeighborSearch ns = search;
+		int[] index = ns.GetIndex();
+		int[] ranges = queryRanges[worker];
+		SPHKernel kf = kernelFunc;
+		float kernel2 = kernel*kernel;
+		float selfDens = mass*kf.poly6(0.0f);
+		int[] calm = ps.calm;
+		int sleepAfter = this.sleepAfter;
+		int used = cacheUsed[worker];
+		int[] ci = cacheIndex[worker];
+		float[] cx = cacheX[worker];
+		float[] cy = cacheY[worker];
+		float[] cd = cacheDist[worker];
+		
+		for(int k=begin; k<end; k++)
 		{
-			Particle p = list.get(i);
-			
-			p.vel.x = p.vel.x+p.acc.x*timeStep;
-			p.vel.y = p.vel.y+p.acc.y*timeStep;
+			if(calm[k] >= sleepAfter) continue;
 			
-			p.pos.x = p.pos.x+p.vel.x*timeStep;
-			p.pos.y = p.pos.y+p.vel.y*timeStep;
+			float px = posX[k];
+			float py = posY[k];
+			float d = 0.0f;
+			int first = used;
 			
-			if(p.pos.x < 0.0f)
-			{
-				p.vel.x = p.vel.x * wallDamping;
-				p.pos.x = 0.0f;
-			}
-			if(p.pos.x >= worldSize.x)
+			int numRanges = ns.Query(px, py, kernel, ranges);
+			for(int r=0; r<numRanges; r++)
 			{
-				p.vel.x = p.vel.x * wallDamping;
-				p.pos.x = worldSize.x - 0.0001f;
-			}
-			if(p.pos.y < 0.0f)
-			{
-				p.vel.y = p.vel.y * wallDamping;
-				p.pos.y = 0.0f;
-			}
-			if(p.pos.y >= worldSize.y)
-			{
-				p.vel.y = p.vel.y * wallDamping;
-				p.pos.y = worldSize.y - 0.0001f;
+				int rangeEnd = ranges[2*r+1];
+				
+				// room for every candidate of this range
+				if(used + rangeEnd-ranges[2*r] > ci.length)
+				{
+					GrowPairCache(worker, used + rangeEnd-ranges[2*r], used);
+					ci = cacheIndex[worker];
+					cx = cacheX[worker];
+					cy = cacheY[worker];
+					cd = cacheDist[worker];
+				}
+				
+				for(int n=ranges[2*r]; n<rangeEnd; n++)
+				{
+					int np = index[n];
+					
+					float distVecX = posX[np] - px;
+					float distVecY = posY[np] - py;
+					float dist2 = distVecX*distVecX+distVecY*distVecY;
+					if(dist2<0.000001f || dist2>=kernel2)
+					{
+						continue;
+					}
+					
+					d = d + mass * kf.poly6(dist2);
+					
+					ci[used] = np;
+					cx[used] = distVecX;
+					cy[used] = distVecY;
+					cd[used] = (float) Math.sqrt(dist2);
+					used++;
+				}
 			}
 			
-			p.ev.x = (p.ev.x+p.vel.x)/2;
-			p.ev.y = (p.ev.y+p.vel.y)/2;
+			cacheWorker[k] = worker;
+			cacheStart[k] = first;
+			cacheCount[k] = used-first;
+			
+			d = d + selfDens;
+			dens[k] = d;
+			pres[k] = Pressure(d);
 		}
+		
+		cacheUsed[worker] = used;
 	}
 	
-	public void animation()
+	// final smoothed force as CompForce over the pairs cached by the density sweep
+	private void CompForceCached(int begin, int end)
 	{
-		this.BuildGrid();           // compute the cell index of each particle and assign particles to each cell
-		this.CompDensPressure();    // compute density and pressure for each particle
-		this.CompForce();           // compute final smoothed force for each particle
-		this.Add_external_force();  // finger added external force
-		this.Advection();           // advect and move each particle to new position
-	}
-	
-	// polynomial kernel function
-	private float poly6(float r2)
-	{ 
-		return (float) (315.0f/(64.0f * Math.PI * Math.pow(kernel, 9)) * Math.pow(kernel*kernel-r2, 3)); 
-	}
-	
-	// spiky kernel function
-	private float spiky(float r)
-	{ 
-		return (float) (-45.0f/(Math.PI * Math.pow(kernel, 6)) * (kernel-r) * (kernel-r)); 
+		float[] evX  = ps.evX;
+		float[] evY  = ps.evY;
+		float[] accX = ps.accX;
+		float[] accY = ps.accY;
+		float[] dens = ps.dens;
+		float[] pres = ps.pres;
+		SPHKernel kf = kernelFunc;
+		int[] calm = ps.calm;
+		int sleepAfter = this.sleepAfter;
+		
+		for(int k=begin; k<end; k++)
+		{
+			if(calm[k] >= sleepAfter) continue;
+			
+			int w = cacheWorker[k];
+			int[] ci = cacheIndex[w];
+			float[] cx = cacheX[w];
+			float[] cy = cacheY[w];
+			float[] cd = cacheDist[w];
+			float pd = dens[k];
+			float pp = pres[k];
+			float ax = 0.0f;
+			float ay = 0.0f;
+			
+			int pairEnd = cacheStart[k]+cacheCount[k];
+			for(int n=cacheStart[k]; n<pairEnd; n++)
+			{
+				int np = ci[n];
+				float distVecX = cx[n];
+				float distVecY = cy[n];
+				float dist = cd[n];
+				float V = mass/pd;
+				
+				float tempForce = V * (pp+pres[np]) * kf.spiky(dist);
+				ax = ax - distVecX*tempForce/dist;
+				ay = ay - distVecY*tempForce/dist;
+				
+				float relVelX = evX[np]-evX[k];
+				float relVelY = evY[np]-evY[k];
+				tempForce = V * viscosity * kf.visco(dist);
+				ax = ax + relVelX*tempForce;
+				ay = ay + relVelY*tempForce;
+			}
+			
+			accX[k] = ax/pd + gravity.x;
+			accY[k] = ay/pd + gravity.y;
+		}
 	}
 	
-	// visco kernel function
-	private float visco(float r)
-	{ 
-		return (float) (45.0f/(Math.PI * Math.pow(kernel, 6)) * (kernel-r)); 
+	// per particle pair ranges and per thread pair buffers, sized for 16 pairs a
+	// particle and grown by the workers when a step needs more
+	private void EnsurePairCache()
+	{
+		int threads = GetThreads();
+		if(cacheStart == null || cacheStart.length < numParticle)
+		{
+			cacheWorker = new int[numParticle];
+			cacheStart  = new int[numParticle];
+			cacheCount  = new int[numParticle];
+		}
+		if(cacheIndex == null || cacheIndex.length != threads)
+		{
+			int size = Math.max(64, 16*numParticle/threads);
+			cacheUsed  = new int[threads];
+			cacheIndex = new int[threads][size];
+			cacheX     = new float[threads][size];
+			cacheY     = new float[threads][size];
+			cacheDist  = new float[threads][size];
+		}
+		
+		for(int i=0; i<threads; i++)
+		{
+			cacheUsed[i] = 0;
+		}
 	}
 	
-	public void Add_external_event(float x, float y, float fx, float fy)
+	// the first used pairs written by worker in this step are kept
+	private void GrowPairCache(int worker, int size, int used)
 	{
-		external_x = x;
-		external_y = y;
-		force_x = fx;
-		force_y = fy;
-		external_event = 1;
+		int n = Math.max(size, cacheIndex[worker].length*2);
+		
+		int[] index = new int[n];
+		float[] x = new float[n];
+		float[] y = new float[n];
+		float[] dist = new float[n];
+		System.arraycopy(cacheIndex[worker], 0, index, 0, used);
+		System.arraycopy(cacheX[worker], 0, x, 0, used);
+		System.arraycopy(cacheY[worker], 0, y, 0, used);
+		System.arraycopy(cacheDist[worker], 0, dist, 0, used);
+		cacheIndex[worker] = index;
+		cacheX[worker]     = x;
+		cacheY[worker]     = y;
+		cacheDist[worker]  = dist;
 	}
 	
-	// finger added external force
-	private void Add_external_force()
+	// density and pressure from the Verlet neighbor lists
+	private void CompDensPressureList(int begin, int end)
 	{
-		if(external_event == 1)
+		float[] posX = ps.posX;
+		float[] posY = ps.posY;
+		float[] dens = ps.dens;
+		float[] pres = ps.pres;
+		int[] start = nlist.start;
+		int[] list = nlist.list;
+		SPHKernel kf = kernelFunc;
+		float kernel2 = kernel*kernel;
+		float selfDens = mass*kf.poly6(0.0f);
+		int[] calm = ps.calm;
+		int sleepAfter = this.sleepAfter;
+		
+		for(int k=begin; k<end; k++)
 		{
-			//Log.i("DONGLI", "Per "+external_x+","+external_y);
-			if(external_x < 0.0f)
-				external_x = 0.0f;
-			if(external_y < 0.0f)
-				external_y = 0.0f;
-			if(external_x >= 1.0f)
-				external_x = 0.9f;
-			if(external_y >= 1.0f)
-				external_y = 0.9f;
+			if(calm[k] >= sleepAfter) continue;
 			
-			int cellPosX = (int)(external_x * gridSize.x);
-			int cellPosY = (int)(external_y * gridSize.y);
+			float px = posX[k];
+			float py = posY[k];
+			float d = 0.0f;
 			
-			float px = external_x * worldSize.x;
-			float py = external_y * worldSize.y;
+			int listEnd = start[k+1];
+			for(int n=start[k]; n<listEnd; n++)
+			{
+				int np = list[n];
+				
+				float distVecX = posX[np] - px;
+				float distVecY = posY[np] - py;
+				float dist2 = distVecX*distVecX+distVecY*distVecY;
+				if(dist2<0.000001f || dist2>=kernel2)
+				{
+					continue;
+				}
+				
+				d = d + mass * kf.poly6(dist2);
+			}
 			
-			for(int i=-1; i<=1; i++)
+			d = d + selfDens;
+			dens[k] = d;
+			pres[k] = Pressure(d);
+		}
+	}
+	
+	// final smoothed force from the Verlet neighbor lists
+	private void CompForceList(int begin, int end)
+	{
+		float[] posX = ps.posX;
+		float[] posY = ps.posY;
+		float[] evX  = ps.evX;
+		float[] evY  = ps.evY;
+		float[] accX = ps.accX;
+		float[] accY = ps.accY;
+		float[] dens = ps.dens;
+		float[] pres = ps.pres;
+		int[] start = nlist.start;
+		int[] list = nlist.list;
+		SPHKernel kf = kernelFunc;
+		float kernel2 = kernel*kernel;
+		int[] calm = ps.calm;
+		int sleepAfter = this.sleepAfter;
+		
+		for(int k=begin; k<end; k++)
+		{
+			if(calm[k] >= sleepAfter) continue;
+			
+			float px = posX[k];
+			float py = posY[k];
+			float pd = dens[k];
+			float pp = pres[k];
+			float ax = 0.0f;
+			float ay = 0.0f;
+			
+			int listEnd = start[k+1];
+			for(int n=start[k]; n<listEnd; n++)
 			{
-				for(int j=-1; j<=1; j++)
+				int np = list[n];
+				
+				float distVecX = posX[np] - px;
+				float distVecY = posY[np] - py;
+				float dist2 = distVecX*distVecX+distVecY*distVecY;
+				if(dist2<0.000001f || dist2>=kernel2)
 				{
-					int nearPosX = cellPosX + i;
-					int nearPosY = cellPosY + j;
-					int hash = CalcCellHash(nearPosX, nearPosY);
-					if(hash == -1) continue;
-					
-					Cell c = clist.get(hash);
-					
-					for(Iterator<Particle> iter=c.list.iterator(); iter.hasNext(); )
+					continue;
+				}
+				
+				float dist = (float) Math.sqrt(dist2);
+				float V = mass/pd;
+				
+				float tempForce = V * (pp+pres[np]) * kf.spiky(dist);
+				ax = ax - distVecX*tempForce/dist;
+				ay = ay - distVecY*tempForce/dist;
+				
+				float relVelX = evX[np]-evX[k];
+				float relVelY = evY[np]-evY[k];
+				tempForce = V * viscosity * kf.visco(dist);
+				ax = ax + relVelX*tempForce;
+				ay = ay + relVelY*tempForce;
+			}
+			
+			accX[k] = ax/pd + gravity.x;
+			accY[k] = ay/pd + gravity.y;
+		}
+	}
+	
+	// density of the half-shell stencil, each pair of particles is visited once
+	// and added to both, cells [begin, end) write only to the buffers of this worker
+	private void CompDensPairs(int begin, int end, int worker)
+	{
+		int[] cellStart = grid.cellStart;
+		int[] cellCount = grid.cellCount;
+		float[] acc = pairDens[worker];
+		boolean sleeping = sleepAfter != Integer.MAX_VALUE;
+		
+		for(int h=begin; h<end; h++)
+		{
+			int start = cellStart[h];
+			int stop  = start + cellCount[h];
+			if(start == stop) continue;
+			
+			int cx = grid.GetCellX(h);
+			int cy = grid.GetCellY(h);
+			
+			// pairs inside the cell
+			boolean awake = !sleeping || cellAwake[h];
+			if(awake)
+			{
+				DensPairs(start, stop, start, stop, true, acc);
+			}
+			
+			// pairs with the forward neighbor cells
+			for(int f=0; f<4; f++)
+			{
+				int nh = grid.CalcCellHash(cx+HALF_SHELL_X[f], cy+HALF_SHELL_Y[f]);
+				if(nh == -1 || !(awake || cellAwake[nh])) continue;
+				DensPairs(start, stop, cellStart[nh], cellStart[nh]+cellCount[nh], false, acc);
+			}
+		}
+	}
+	
+	private void DensPairs(int startA, int stopA, int startB, int stopB, boolean same, float[] acc)
+	{
+		float[] posX = ps.posX;
+		float[] posY = ps.posY;
+		int[] index = grid.index;
+		SPHKernel kf = kernelFunc;
+		float kernel2 = kernel*kernel;
+		
+		for(int a=startA; a<stopA; a++)
+		{
+			int p = index[a];
+			float px = posX[p];
+			float py = posY[p];
+			float d = 0.0f;
+			
+			for(int b=(same ? a+1 : startB); b<stopB; b++)
+			{
+				int np = index[b];
+				
+				float distVecX = posX[np] - px;
+				float distVecY = posY[np] - py;
+				float dist2 = distVecX*distVecX+distVecY*distVecY;
+				if(dist2<0.000001f || dist2>=kernel2)
+				{
+					continue;
+				}
+				
+				float w = mass * kf.poly6(dist2);
+				d = d + w;
+				acc[np] = acc[np] + w;
+			}
+			acc[p] = acc[p] + d;
+		}
+	}
+	
+	// sum the density buffers of all workers, clear them for the next step
+	private void ReduceDensPairs(int begin, int end)
+	{
+		float[] dens = ps.dens;
+		float[] pres = ps.pres;
+		float selfDens = mass*kernelFunc.poly6(0.0f);
+		float[][] bufs = pairDens;
+		int[] calm = ps.calm;
+		int sleepAfter = this.sleepAfter;
+		
+		for(int k=begin; k<end; k++)
+		{
+			float d = 0.0f;
+			for(int w=0; w<bufs.length; w++)
+			{
+				d = d + bufs[w][k];
+				bufs[w][k] = 0.0f;
+			}
+			if(calm[k] >= sleepAfter) continue;
+			
+			d = d + selfDens;
+			dens[k] = d;
+			pres[k] = Pressure(d);
+		}
+	}
+	
+	// force of the half-shell stencil, the pressure and viscosity terms are
+	// antisymmetric, so each pair adds its force to one particle and subtracts it from the other
+	private void CompForcePairs(int begin, int end, int worker)
+	{
+		int[] cellStart = grid.cellStart;
+		int[] cellCount = grid.cellCount;
+		float[] fx = pairForceX[worker];
+		float[] fy = pairForceY[worker];
+		boolean sleeping = sleepAfter != Integer.MAX_VALUE;
+		
+		for(int h=begin; h<end; h++)
+		{
+			int start = cellStart[h];
+			int stop  = start + cellCount[h];
+			if(start == stop) continue;
+			
+			int cx = grid.GetCellX(h);
+			int cy = grid.GetCellY(h);
+			
+			boolean awake = !sleeping || cellAwake[h];
+			if(awake)
+			{
+				ForcePairs(start, stop, start, stop, true, fx, fy);
+			}
+			
+			for(int f=0; f<4; f++)
+			{
+				int nh = grid.CalcCellHash(cx+HALF_SHELL_X[f], cy+HALF_SHELL_Y[f]);
+				if(nh == -1 || !(awake || cellAwake[nh])) continue;
+				ForcePairs(start, stop, cellStart[nh], cellStart[nh]+cellCount[nh], false, fx, fy);
+			}
+		}
+	}
+	
+	private void ForcePairs(int startA, int stopA, int startB, int stopB, boolean same, float[] fx, float[] fy)
+	{
+		float[] posX = ps.posX;
+		float[] posY = ps.posY;
+		float[] evX  = ps.evX;
+		float[] evY  = ps.evY;
+		float[] pres = ps.pres;
+		int[] index = grid.index;
+		SPHKernel kf = kernelFunc;
+		float kernel2 = kernel*kernel;
+		
+		for(int a=startA; a<stopA; a++)
+		{
+			int p = index[a];
+			float px = posX[p];
+			float py = posY[p];
+			float pp = pres[p];
+			float ax = 0.0f;
+			float ay = 0.0f;
+			
+			for(int b=(same ? a+1 : startB); b<stopB; b++)
+			{
+				int np = index[b];
+				
+				float distVecX = posX[np] - px;
+				float distVecY = posY[np] - py;
+				float dist2 = distVecX*distVecX+distVecY*distVecY;
+				if(dist2<0.000001f || dist2>=kernel2)
+				{
+					continue;
+				}
+				
+				float dist = (float) Math.sqrt(dist2);
+				
+				float tempForce = (pp+pres[np]) * kf.spiky(dist) / dist;
+				float visc = viscosity * kf.visco(dist);
+				float forceX = (evX[np]-evX[p])*visc - distVecX*tempForce;
+				float forceY = (evY[np]-evY[p])*visc - distVecY*tempForce;
+				
+				ax = ax + forceX;
+				ay = ay + forceY;
+				fx[np] = fx[np] - forceX;
+				fy[np] = fy[np] - forceY;
+			}
+			fx[p] = fx[p] + ax;
+			fy[p] = fy[p] + ay;
+		}
+	}
+	
+	// sum the force buffers of all workers, scale by mass/dens^2 and clear them
+	private void ReduceForcePairs(int begin, int end)
+	{
+		float[] accX = ps.accX;
+		float[] accY = ps.accY;
+		float[] dens = ps.dens;
+		float[][] bufX = pairForceX;
+		float[][] bufY = pairForceY;
+		int[] calm = ps.calm;
+		int sleepAfter = this.sleepAfter;
+		
+		for(int k=begin; k<end; k++)
+		{
+			float ax = 0.0f;
+			float ay = 0.0f;
+			for(int w=0; w<bufX.length; w++)
+			{
+				ax = ax + bufX[w][k];
+				ay = ay + bufY[w][k];
+				bufX[w][k] = 0.0f;
+				bufY[w][k] = 0.0f;
+			}
+			if(calm[k] >= sleepAfter) continue;
+			
+			float pd = dens[k];
+			float V = mass/pd;
+			accX[k] = ax*V/pd + gravity.x;
+			accY[k] = ay*V/pd + gravity.y;
+		}
+	}
+	
+	// one accumulation buffer per thread, so the pair phases need no locks
+	private void EnsurePairBuffers()
+	{
+		int threads = GetThreads();
+		if(pairDens != null && pairDens.length == threads && pairDens[0].length >= numParticle)
+		{
+			return;
+		}
+		
+		pairDens   = new float[threads][numParticle];
+		pairForceX = new float[threads][numParticle];
+		pairForceY = new float[threads][numParticle];
+	}
+	
+	// advect and move each particle to new position
+	private void Advection(int begin, int end)
+	{
+		float[] posX = ps.posX;
+		float[] posY = ps.posY;
+		float[] velX = ps.velX;
+		float[] velY = ps.velY;
+		float[] accX = ps.accX;
+		float[] accY = ps.accY;
+		float[] evX  = ps.evX;
+		float[] evY  = ps.evY;
+		FloatBuffer out = positionOutput;
+		float dt = stepTime;
+		boolean walls = !openBoundary;
+		int[] calm = ps.calm;
+		int sleepAfter = this.sleepAfter;
+		
+		for(int i=begin; i<end; i++)
+		{
+			// sleeping particles stay put, the renderer still needs their position
+			if(calm[i] >= sleepAfter)
+			{
+				if(out != null)
+				{
+					out.put(i*2,   posX[i]);
+					out.put(i*2+1, posY[i]);
+				}
+				continue;
+			}
+			
+			float vx = velX[i]+accX[i]*dt;
+			float vy = velY[i]+accY[i]*dt;
+			
+			float x = posX[i]+vx*dt;
+			float y = posY[i]+vy*dt;
+			
+			if(walls && x < 0.0f)
+			{
+				vx = vx * wallDamping;
+				x = 0.0f;
+			}
+			if(walls && x >= worldSize.x)
+			{
+				vx = vx * wallDamping;
+				x = worldSize.x - 0.0001f;
+			}
+			if(y < 0.0f)
+			{
+				vy = vy * wallDamping;
+				y = 0.0f;
+			}
+			if(walls && y >= worldSize.y)
+			{
+				vy = vy * wallDamping;
+				y = worldSize.y - 0.0001f;
+			}
+			
+			velX[i] = vx;
+			velY[i] = vy;
+			posX[i] = x;
+			posY[i] = y;
+			evX[i] = (evX[i]+vx)/2;
+			evY[i] = (evY[i]+vy)/2;
+			
+			// hand the new position straight to the renderer
+			if(out != null)
+			{
+				out.put(i*2,   x);
+				out.put(i*2+1, y);
+			}
+		}
+	}
+	
+	// one step of the fixed time step, or of the stable one when it is adaptive
+	public void animation()
+	{
+		Step(0.0f);
+	}
+	
+	// Advance the simulation by frameTime with the fewest steps the stable time step
+	// allows, spread evenly over the frame. Returns the number of steps taken. A frame
+	// that would need more than MAX_SUBSTEPS stable steps is cut short after them rather
+	// than stepped beyond the bound, the simulation then falls behind by the rest, see
+	// GetDroppedTime().
+	public int Advance(float frameTime)
+	{
+		int steps = 0;
+		float remaining = frameTime;
+		while(remaining > frameTime*1e-4f)
+		{
+			if(steps == MAX_SUBSTEPS)
+			{
+				droppedTime += remaining;
+				shortFrames++;
+				break;
+			}
+			remaining -= Step(remaining);
+			steps++;
+		}
+		return steps;
+	}
+	
+	// simulated seconds Advance() left out to keep every step within the stable bound
+	public double GetDroppedTime()
+	{
+		return droppedTime;
+	}
+	
+	// frames Advance() cut short
+	public int GetShortFrames()
+	{
+		return shortFrames;
+	}
+	
+	// one step, no longer than remaining unless it is 0, returns its time step
+	private float Step(float remaining)
+	{
+		boolean profiling = this.profiling;
+		long stepStart = profiling ? System.nanoTime() : 0;
+		long t = stepStart;
+		
+		this.BuildSearch();                // sort the particles into the neighbor search structure
+		if(reorderThreshold > 0.0f)
+		{
+			this.ReorderParticles();       // sort the store by Z-order once the grid got scattered
+		}
+		if(nlist != null)
+		{
+			nlist.Update(ps, numParticle, search, kernel); // rebuild only if a particle moved more than skin/2
+		}
+		this.DrainInput();                 // the touches queued since the last step
+		this.UpdateSleep();                // put calm regions to sleep, wake the ones around motion
+		if(profiling) t = EndPhase(PHASE_GRID, t);
+		
+		this.DensityPhase();               // compute density and pressure for each particle
+		if(profiling) t = EndPhase(PHASE_DENSITY, t);
+		
+		this.ForcePhase();                 // compute final smoothed force for each particle
+		if(profiling) t = EndPhase(PHASE_FORCE, t);
+		
+		this.Add_external_force();         // finger added external force
+		if(profiling) t = EndPhase(PHASE_EXTERNAL, t);
+		
+		this.ChooseTimeStep(remaining);    // stable time step from the fastest particle
+		if(solverMode != SOLVER_WCSPH)
+		{
+			this.SolvePressure();          // correction that keeps the predicted density at rest
+		}
+		if(profiling) t = EndPhase(PHASE_PRESSURE, t);
+		
+		this.RunPhase(advectionTask);      // advect and move each particle to new position
+		if(profiling)
+		{
+			t = EndPhase(PHASE_ADVECTION, t);
+			profiler.Record(PHASE_STEP, t-stepStart);
+			profiler.Tick();
+		}
+		return stepTime;
+	}
+	
+	private void ChooseTimeStep(float remaining)
+	{
+		float limit = timeStep;
+		if(maxTimeStep > 0.0f)
+		{
+			limit = StableTimeStep();
+			stableTime = limit;
+		}
+		
+		if(remaining <= 0.0f)
+		{
+			stepTime = limit;
+		}
+		else
+		{
+			// the fewest steps of at most limit that cover remaining, all of the same length
+			int n = (int)(remaining/limit);
+			if(n*limit < remaining)
+			{
+				n++;
+			}
+			stepTime = remaining/n;
+		}
+	}
+	
+	// the smallest of the CFL, force and viscosity limits, within the bounds
+	private float StableTimeStep()
+	{
+		int threads = GetThreads();
+		if(maxSpeed2 == null || maxSpeed2.length != threads)
+		{
+			maxSpeed2 = new float[threads];
+			maxAcc2 = new float[threads];
+		}
+		this.RunPhase(limitTask);
+		
+		float v2 = 0.0f;
+		float a2 = 0.0f;
+		for(int w=0; w<threads; w++)
+		{
+			if(maxSpeed2[w] > v2) v2 = maxSpeed2[w];
+			if(maxAcc2[w] > a2) a2 = maxAcc2[w];
+			maxSpeed2[w] = 0.0f;
+			maxAcc2[w] = 0.0f;
+		}
+		
+		// the speed of sound of the equation of state at rest density, an incompressible
+		// solve has no pressure waves to resolve and the pressure is not in acc yet
+		float sound = solverMode == SOLVER_WCSPH ? (float) Math.sqrt(7.0f*stiffness*invRestDensity) : 0.0f;
+		float dt = CFL_FACTOR*kernel/(sound + (float) Math.sqrt(v2));
+		if(a2 > 0.0f)
+		{
+			float force = FORCE_FACTOR*(float) Math.sqrt(kernel/(float) Math.sqrt(a2));
+			if(force < dt) dt = force;
+		}
+		float visc = VISCOSITY_FACTOR*kernel*kernel*restDensity/viscosity;
+		if(visc < dt) dt = visc;
+		
+		if(dt > maxTimeStep) dt = maxTimeStep;
+		return dt;
+	}
+	
+	// fastest speed and largest acceleration of the awake particles
+	private void CompLimits(int begin, int end, int worker)
+	{
+		float[] velX = ps.velX;
+		float[] velY = ps.velY;
+		float[] accX = ps.accX;
+		float[] accY = ps.accY;
+		int[] calm = ps.calm;
+		int sleepAfter = this.sleepAfter;
+		float v2 = 0.0f;
+		float a2 = 0.0f;
+		
+		for(int i=begin; i<end; i++)
+		{
+			if(calm[i] >= sleepAfter) continue;
+			
+			float v = velX[i]*velX[i]+velY[i]*velY[i];
+			float a = accX[i]*accX[i]+accY[i]*accY[i];
+			if(v > v2) v2 = v;
+			if(a > a2) a2 = a;
+		}
+		
+		if(v2 > maxSpeed2[worker]) maxSpeed2[worker] = v2;
+		if(a2 > maxAcc2[worker]) maxAcc2[worker] = a2;
+	}
+	
+	// Choose the time step of every step from the fastest particle: the CFL limit with
+	// the speed of sound, the force limit and the viscosity limit, scaled by their
+	// factors and kept below maxStep. 0 goes back to the fixed time step. Advance() then
+	// substeps a frame with the fewest stable steps.
+	public void SetAdaptiveTimeStep(float maxStep)
+	{
+		maxTimeStep = maxStep;
+	}
+	
+	public float GetAdaptiveTimeStep()
+	{
+		return maxTimeStep;
+	}
+	
+	// time step of the last step
+	public float GetTimeStep()
+	{
+		return stepTime;
+	}
+	
+	// stable time step found by the last adaptive step
+	public float GetStableTimeStep()
+	{
+		return stableTime;
+	}
+	
+	// time step of animation() and the bound of Advance() while the adaptive one is off
+	public void SetTimeStep(float t)
+	{
+		timeStep = t;
+	}
+	
+	// SOLVER_WCSPH takes its pressure from the stiff equation of state, which needs small
+	// time steps to keep the density error low. SOLVER_PCISPH iterates the pressure until
+	// the predicted density error is below the tolerance of SetSolverLimits, which keeps
+	// the fluid close to its rest density at up to twice the time step, and without the
+	// speed of sound in the adaptive time step. SOLVER_PBF moves the predicted positions onto the density constraints with a
+	// few Jacobi iterations, which gives up some accuracy but stays stable at time steps
+	// several times larger. Both query the same search with their own, wider kernel.
+	public void SetSolver(int mode)
+	{
+		if(mode != solverMode)
+		{
+			solverMode = mode;
+			solver = null;
+		}
+	}
+	
+	public int GetSolver()
+	{
+		return solverMode;
+	}
+	
+	// index of name in SOLVER_NAMES, -1 if there is no such solver
+	public static int SolverMode(String name)
+	{
+		for(int i=0; i<SOLVER_NAMES.length; i++)
+		{
+			if(SOLVER_NAMES[i].equals(name))
+			{
+				return i;
+			}
+		}
+		return -1;
+	}
+	
+	// iteration cap and density error tolerance of the incompressible solvers,
+	// 0 keeps the default of the solver
+	public void SetSolverLimits(int maxIterations, float tolerance)
+	{
+		solverIterations = maxIterations;
+		solverTolerance = tolerance;
+		if(solver != null)
+		{
+			ApplySolverLimits();
+		}
+	}
+	
+	// the limits of SetSolverLimits, 0 for the default of the solver
+	public int GetSolverIterations()
+	{
+		return solverIterations;
+	}
+	
+	public float GetSolverTolerance()
+	{
+		return solverTolerance;
+	}
+	
+	// the incompressible solver with the statistics of its last solve,
+	// null with SOLVER_WCSPH or before the first step
+	public PressureSolver GetPressureSolver()
+	{
+		return solver;
+	}
+	
+	private void EnsureSolver()
+	{
+		if(solver == null)
+		{
+			// the rest density of the lattice InitFluid creates
+			if(solverMode == SOLVER_PBF)
+			{
+				solver = new PBFSolver(kernel*0.8f, mass);
+			}
+			else
+			{
+				solver = new PCISPHSolver(kernel*0.8f, mass);
+			}
+			ApplySolverLimits();
+		}
+	}
+	
+	private void ApplySolverLimits()
+	{
+		int iterations = solverIterations > 0 ? solverIterations : solver.GetMaxIterations();
+		float tolerance = solverTolerance > 0.0f ? solverTolerance : solver.GetTolerance();
+		solver.SetLimits(iterations, tolerance);
+	}
+	
+	private void SolvePressure()
+	{
+		EnsureSolver();
+		solver.Solve(ps, numParticle, search, pool, stepTime, worldSize, !openBoundary, sleepAfter);
+	}
+	
+	private void DensityPhase()
+	{
+		if(nlist != null)
+		{
+			this.RunPhase(densListTask);       // density from the neighbor lists
+		}
+		else if(symmetric && grid != null)
+		{
+			this.EnsurePairBuffers();
+			this.RunCellPhase(densPairTask);   // accumulate density once per pair
+			this.RunPhase(densReduceTask);     // sum the thread buffers, compute pressure
+		}
+		else if(pairCache)
+		{
+			this.EnsurePairCache();
+			this.RunPhase(densCacheTask);      // density, keep the pairs for the force sweep
+		}
+		else
+		{
+			NeighborKernels vk = VectorKernels();
+			if(vk != null)
+			{
+				vk.SetConstants(kernel, mass, viscosity, kernelFunc);
+			}
+			this.RunPhase(densityTask);
+		}
+	}
+	
+	private void ForcePhase()
+	{
+		if(nlist != null)
+		{
+			this.RunPhase(forceListTask);      // force from the neighbor lists
+		}
+		else if(symmetric && grid != null)
+		{
+			this.RunCellPhase(forcePairTask);  // accumulate force once per pair
+			this.RunPhase(forceReduceTask);    // sum the thread buffers, final acceleration
+		}
+		else if(pairCache)
+		{
+			this.RunPhase(forceCacheTask);     // force over the cached pairs
+		}
+		else
+		{
+			this.RunPhase(forceTask);
+		}
+	}
+	
+	private long EndPhase(int phase, long start)
+	{
+		long now = System.nanoTime();
+		profiler.Record(phase, now-start);
+		return now;
+	}
+	
+	// record the duration of each phase of animation() into latency histograms,
+	// when off the only cost is one branch per phase
+	public void SetProfiling(boolean p)
+	{
+		if(p && profiler == null)
+		{
+			profiler = new SPHProfiler("sph", PHASE_NAMES);
+		}
+		profiling = p;
+	}
+	
+	// histograms of PHASE_GRID ... PHASE_STEP, null until profiling was turned on;
+	// threads other than the stepping one read them through its Snapshot()
+	public SPHProfiler GetProfiler()
+	{
+		return profiler;
+	}
+	
+	// total nanoseconds spent in a phase since the last ResetProfile(); these two
+	// read the live histograms and belong to the stepping thread
+	public long GetPhaseNanos(int phase)
+	{
+		return profiler == null ? 0 : profiler.GetHistogram(phase).GetTotal();
+	}
+	
+	// number of steps that were profiled since the last ResetProfile()
+	public long GetProfiledSteps()
+	{
+		return profiler == null ? 0 : profiler.GetHistogram(PHASE_STEP).GetCount();
+	}
+	
+	public void ResetProfile()
+	{
+		if(profiler != null)
+		{
+			profiler.Reset();
+		}
+	}
+	
+	// run a per cell phase over all cells of the grid
+	private void RunCellPhase(WorkerPool.RangeTask task)
+	{
+		if(pool == null)
+		{
+			task.Run(0, grid.GetTotCell(), 0);
+		}
+		else
+		{
+			pool.Run(task, grid.GetTotCell());
+		}
+	}
+	
+	// visit each neighbor pair once (self cell + 4 forward cells) instead of from both sides,
+	// needs a cell grid, the quadtree keeps visiting pairs from both sides
+	public void SetSymmetric(boolean s)
+	{
+		symmetric = s;
+	}
+	
+	public boolean GetSymmetric()
+	{
+		return symmetric;
+	}
+	
+	// Do the neighbor loops of the plain density and force passes in vector lanes with
+	// FloatVectorKernels. It lives in the jvm source root and needs a JVM started with
+	// --add-modules jdk.incubator.vector; without them the scalar loops stay and
+	// GetVectorLanes() is 0. Only used with EXACT kernels, the symmetric, neighbor
+	// list and pair cache modes keep their own loops.
+	public void SetVectorized(boolean v)
+	{
+		vectorKernels = v ? LoadVectorKernels() : null;
+	}
+	
+	// neighbors the density and force passes do at once, 0 if they are scalar
+	public int GetVectorLanes()
+	{
+		return vectorKernels == null ? 0 : vectorKernels.GetLanes();
+	}
+	
+	private static NeighborKernels LoadVectorKernels()
+	{
+		try
+		{
+			Class<?> c = Class.forName("com.example.particlesystem.FloatVectorKernels");
+			return (NeighborKernels) c.newInstance();
+		}
+		catch(Exception e)
+		{
+			// not built, e.g. on Android
+		}
+		catch(LinkageError e)
+		{
+			// built, but the JVM has no jdk.incubator.vector
+		}
+		SPHLog.Info("DONGLI", "Vector API not available, the density and force passes stay scalar");
+		return null;
+	}
+	
+	// the vector kernels if the plain passes can use them now
+	private NeighborKernels VectorKernels()
+	{
+		return kernelFunc.GetMode() == SPHKernel.EXACT ? vectorKernels : null;
+	}
+	
+	// Keep the pairs found by the density sweep, with their distance vector and
+	// distance, so the force sweep neither queries the search nor takes a square
+	// root. Costs 16 bytes a pair, see GetPairCacheMemory(). Not used with the
+	// neighbor lists or the symmetric mode.
+	public void SetPairCache(boolean c)
+	{
+		pairCache = c;
+		if(!c)
+		{
+			cacheWorker = null;
+			cacheStart = null;
+			cacheCount = null;
+			cacheUsed = null;
+			cacheIndex = null;
+			cacheX = null;
+			cacheY = null;
+			cacheDist = null;
+		}
+	}
+	
+	public boolean GetPairCache()
+	{
+		return pairCache;
+	}
+	
+	// bytes held by the pair cache, 0 when it is off
+	public long GetPairCacheMemory()
+	{
+		if(cacheIndex == null)
+		{
+			return 0;
+		}
+		
+		long bytes = 12L*cacheStart.length + 4L*cacheUsed.length;
+		for(int i=0; i<cacheIndex.length; i++)
+		{
+			bytes += 16L*cacheIndex[i].length;
+		}
+		return bytes;
+	}
+	
+	// pairs cached in the last step
+	public int GetNumCachedPairs()
+	{
+		if(cacheUsed == null)
+		{
+			return 0;
+		}
+		
+		int pairs = 0;
+		for(int i=0; i<cacheUsed.length; i++)
+		{
+			pairs += cacheUsed[i];
+		}
+		return pairs;
+	}
+	
+	// Sort the particle store by the Z-order of the cells whenever the measured scatter
+	// of the grid exceeds threshold, so the interval adapts to how fast the fluid mixes.
+	// Slots change, use ParticleStore.GetSlot(id) to follow a particle. 0 turns it off.
+	public void SetReorder(float threshold)
+	{
+		reorderThreshold = threshold;
+	}
+	
+	// scatter of the particles of each cell in memory, 0 is contiguous
+	public float GetLocality()
+	{
+		return locality;
+	}
+	
+	public int GetReorderCount()
+	{
+		return reorderCount;
+	}
+	
+	// steps between the last two reorder passes
+	public int GetReorderInterval()
+	{
+		return reorderInterval;
+	}
+	
+	private void ReorderParticles()
+	{
+		locality = search.Scatter(numParticle);
+		stepsSinceReorder++;
+		if(locality <= reorderThreshold)
+		{
+			return;
+		}
+		
+		if(order == null || order.length < numParticle)
+		{
+			order = new int[numParticle];
+		}
+		search.MortonOrder(order);
+		ps.Permute(order);
+		
+		// every slot based structure is stale now
+		if(nlist != null)
+		{
+			nlist.Invalidate();
+		}
+		search.Build(ps, numParticle);
+		
+		reorderInterval = stepsSinceReorder;
+		stepsSinceReorder = 0;
+		reorderCount++;
+	}
+	
+	// cache neighbors within kernel+skin across steps, skin <= 0 turns the lists off
+	// the lists take precedence over the symmetric stencil
+	public void SetNeighborList(float skin)
+	{
+		nlist = skin > 0.0f ? new NeighborList(skin) : null;
+	}
+	
+	// the lists with their rebuild statistics, null when they are off
+	public NeighborList GetNeighborList()
+	{
+		return nlist;
+	}
+	
+	// run a per particle phase over all particles, returns when every thread is done
+	private void RunPhase(WorkerPool.RangeTask task)
+	{
+		if(pool == null)
+		{
+			task.Run(0, numParticle, 0);
+		}
+		else
+		{
+			pool.Run(task, numParticle);
+		}
+	}
+	
+	// number of threads for the density, force and advection phases, 1 is serial
+	public void SetThreads(int threads)
+	{
+		Shutdown();
+		if(threads > 1)
+		{
+			pool = new WorkerPool(threads);
+		}
+	}
+	
+	public int GetThreads()
+	{
+		return pool == null ? 1 : pool.GetNumThreads();
+	}
+	
+	// the pool threads besides the caller of animation(), empty when serial
+	public Thread[] GetWorkerThreads()
+	{
+		return pool == null ? new Thread[0] : pool.GetWorkers();
+	}
+	
+	// stop the worker threads, the system keeps running serially
+	public void Shutdown()
+	{
+		if(pool != null)
+		{
+			pool.Shutdown();
+			pool = null;
+		}
+	}
+	
+	// weakly compressible equation of state, (d/restDensity)^7 evaluated in float,
+	// 0 for the incompressible solvers, which add their pressure force later
+	private float Pressure(float d)
+	{
+		if(solverMode != SOLVER_WCSPH)
+		{
+			return 0.0f;
+		}
+		float x  = d * invRestDensity;
+		float x2 = x*x;
+		float x4 = x2*x2;
+		return (x*x2*x4 - 1) * stiffness;
+	}
+	
+	// select exact or tabulated kernel evaluation, errorBound is relative to the kernel peak
+	public void SetKernelMode(int mode, float errorBound)
+	{
+		kernelFunc.SetMode(mode, errorBound);
+	}
+	
+	public SPHKernel GetKernelFunc()
+	{
+		return kernelFunc;
+	}
+	
+	// Queue a finger at (x, y) in [0, 1] of the world flinging with (fx, fy), it pushes
+	// the particles within twice the kernel length in the next step. Any thread may call
+	// it, events beyond INPUT_CAPACITY per step are dropped.
+	public void Add_external_event(float x, float y, float fx, float fy)
+	{
+		input.Offer(x, y, fx, fy, 0.0f);
+	}
+	
+	// as above, pushing the particles within radius in world units
+	public void Add_external_event(float x, float y, float fx, float fy, float radius)
+	{
+		input.Offer(x, y, fx, fy, radius);
+	}
+	
+	public InputQueue GetInputQueue()
+	{
+		return input;
+	}
+	
+	// take the queued events and turn them into world positions and radii, collect the
+	// ranges they reach and wake the particles in reach before UpdateSleep decides who sleeps
+	private void DrainInput()
+	{
+		int n = input.Drain();
+		input.ToWorld(n, worldSize, kernel*2);
+		numEvents = n;
+		
+		// events wider than any before need larger query buffers
+		float[] radius = input.radius;
+		int querySize = 0;
+		int unionSize = 0;
+		for(int e=0; e<n; e++)
+		{
+			int size = 2*search.GetMaxRanges(radius[e]);
+			querySize = Math.max(querySize, size);
+			unionSize += size;
+		}
+		if(touchQuery.length < querySize)
+		{
+			touchQuery = new int[querySize];
+		}
+		if(touchRanges.length < unionSize)
+		{
+			touchRanges = new int[unionSize];
+		}
+		numTouchRanges = n == 0 ? 0 : UnionTouchRanges(n);
+		
+		if(sleepSpeed > 0.0f)
+		{
+			int[] calm = ps.calm;
+			int[] index = search.GetIndex();
+			int[] ranges = touchRanges;
+			for(int q=0; q<numTouchRanges; q++)
+			{
+				int rangeEnd = ranges[2*q+1];
+				for(int s=ranges[2*q]; s<rangeEnd; s++)
+				{
+					int k = index[s];
+					if(FirstTouch(k, 0) != -1)
 					{
-						Particle p = (Particle)iter.next();
-						if(p.pos.x-px<=kernel*2 && p.pos.y-py<=kernel*2)
-						{
-							p.acc.x = p.acc.x + 300.0f*force_x;
-							p.acc.y = p.acc.y + 300.0f*force_y;
-						}
+						calm[k] = 0;
 					}
-				}	
+				}
+			}
+		}
+	}
+	
+	// Query the neighbor search around each of the n events and merge the ranges into
+	// touchRanges, sorted and without overlaps, so that a particle reached by several
+	// events is visited once. Returns the number of pairs.
+	private int UnionTouchRanges(int n)
+	{
+		int[] query = touchQuery;
+		int[] ranges = touchRanges;
+		float[] x = input.x;
+		float[] y = input.y;
+		float[] radius = input.radius;
+		int num = 0;
+		
+		for(int e=0; e<n; e++)
+		{
+			int found = search.Query(x[e], y[e], radius[e], query);
+			for(int q=0; q<found; q++)
+			{
+				// insertion by begin, the ranges of one query mostly come sorted already
+				int begin = query[2*q];
+				int end = query[2*q+1];
+				int p = num;
+				while(p > 0 && ranges[2*p-2] > begin)
+				{
+					ranges[2*p]   = ranges[2*p-2];
+					ranges[2*p+1] = ranges[2*p-1];
+					p--;
+				}
+				ranges[2*p]   = begin;
+				ranges[2*p+1] = end;
+				num++;
 			}
+		}
+		
+		// merge the pairs that overlap or touch
+		int merged = 0;
+		for(int q=0; q<num; q++)
+		{
+			int begin = ranges[2*q];
+			int end = ranges[2*q+1];
+			if(merged > 0 && begin <= ranges[2*merged-1])
+			{
+				if(end > ranges[2*merged-1])
+				{
+					ranges[2*merged-1] = end;
+				}
+				continue;
+			}
+			ranges[2*merged]   = begin;
+			ranges[2*merged+1] = end;
+			merged++;
+		}
+		return merged;
+	}
 	
-			external_event = 0;
+	// the first event from e on that reaches particle k, -1 if none does
+	private int FirstTouch(int k, int e)
+	{
+		float px = ps.posX[k];
+		float py = ps.posY[k];
+		float[] x = input.x;
+		float[] y = input.y;
+		float[] radius = input.radius;
+		for(; e<numEvents; e++)
+		{
+			float dx = px-x[e];
+			float dy = py-y[e];
+			if(dx*dx+dy*dy <= radius[e]*radius[e])
+			{
+				return e;
+			}
+		}
+		return -1;
+	}
+	
+	// finger added external force of all events of this step, one walk over the union
+	// of the ranges they reach, each particle is pushed by every event that reaches it
+	private void Add_external_force()
+	{
+		float[] accX = ps.accX;
+		float[] accY = ps.accY;
+		float[] fx = input.fx;
+		float[] fy = input.fy;
+		int[] index = search.GetIndex();
+		int[] ranges = touchRanges;
+		
+		for(int q=0; q<numTouchRanges; q++)
+		{
+			int rangeEnd = ranges[2*q+1];
+			for(int s=ranges[2*q]; s<rangeEnd; s++)
+			{
+				int k = index[s];
+				for(int e=FirstTouch(k, 0); e != -1; e=FirstTouch(k, e+1))
+				{
+					accX[k] = accX[k] + InputQueue.FORCE_SCALE*fx[e];
+					accY[k] = accY[k] + InputQueue.FORCE_SCALE*fy[e];
+				}
+			}
 		}
 	}
 }
@@ -0,0 +1,250 @@
+/** File:		SimulationDriver.java
+ ** Author:		Dongli Zhang
+ ** Contact:	dongli.zhang0129@gmail.com
+ **
+ ** Copyright (C) Dongli Zhang 2013
+ **
+ ** This program is free software;  you can redistribute it and/or modify
+ ** it under the terms of the GNU General Public License as published by
+ ** the Free Software Foundation; either version 2 of the License, or
+ ** (at your option) any later version.
+ **
+ ** This program is distributed in the hope that it will be useful,
+ ** but WITHOUT ANY WARRANTY;  without even the implied warranty of
+ ** MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See
+ ** the GNU General Public License for more details.
+ **
+ ** You should have received a copy of the GNU General Public License
+ ** along with this program;  if not, write to the Free Software 
+ ** Foundation, 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA
+ */
+
+
+package com.example.particlesystem;
+
+/* Runs the animation() of an SPHSystem or FLIPSystem on its own thread.
+ * Each finished step is published through a TripleBuffer, so the renderer
+ * draws the newest positions without blocking and a slow step never holds up
+ * a frame. The step rate is independent of the display rate.
+ * With a time scale the steps follow the wall clock: an accumulator collects the
+ * simulated time owed and each step pays off its time step, so the fluid moves at
+ * the same speed on every device. A FrameInterpolator smooths the frames.
+ * An SPHSystem with an adaptive time step instead advances by all the time owed
+ * at once through SPHSystem.Advance(), with the fewest stable steps, as soon as
+ * its largest step is owed.
+ */
+public class SimulationDriver implements Runnable
+{
+	private final ParticleSimulation sim;
+	private final TripleBuffer frames;
+	
+	private static final float MAX_LAG = 0.25f; // wall seconds the accumulator may fall behind
+	
+	private volatile long stepPeriod;   // nanoseconds per step, 0 steps as fast as possible
+	private volatile float timeScale;   // simulated seconds per wall second, 0 steps by stepPeriod
+	private volatile boolean running;
+	private Thread thread;
+	private long steps;                 // only touched by the simulation thread
+	private double simTime;             // simulated seconds, only touched by the simulation thread
+	private volatile QualityGovernor governor; // sees the duration of every step, may be null
+	
+	public SimulationDriver(ParticleSimulation s)
+	{
+		sim = s;
+		frames = new TripleBuffer(s.GetNumParticle());
+		stepPeriod = 0;
+		
+		// the renderer can draw the initial state before the first step
+		sim.WritePositions(frames.GetBack());
+		frames.Publish(sim.GetNumParticle(), 0, 0.0, sim.GetReorderCount());
+	}
+	
+	// simulation steps per second, 0 for as fast as possible, while the time scale is 0
+	public void SetStepRate(float stepsPerSecond)
+	{
+		stepPeriod = stepsPerSecond > 0.0f ? (long)(1e9/stepsPerSecond) : 0;
+	}
+	
+	// Simulated seconds per wall second, 1 is real time. Steps are taken as the wall
+	// clock owes them; if the device can not keep up, at most MAX_LAG seconds are owed
+	// and the rest is dropped. 0 goes back to the step rate.
+	public void SetTimeScale(float scale)
+	{
+		timeScale = scale;
+	}
+	
+	public float GetTimeScale()
+	{
+		return timeScale;
+	}
+	
+	public synchronized void Start()
+	{
+		if(thread != null)
+		{
+			return;
+		}
+		running = true;
+		thread = new Thread(this, "SPHSimulation");
+		thread.start();
+	}
+	
+	// stop the simulation thread and wait for the current step to finish
+	public synchronized void Stop()
+	{
+		if(thread == null)
+		{
+			return;
+		}
+		running = false;
+		thread.interrupt();
+		try
+		{
+			thread.join();
+		}
+		catch(InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+		}
+		thread = null;
+	}
+	
+	// let g adjust the quality of the simulation from the duration of its steps, null stops it
+	public void SetGovernor(QualityGovernor g)
+	{
+		governor = g;
+	}
+	
+	public QualityGovernor GetGovernor()
+	{
+		return governor;
+	}
+	
+	public ParticleSimulation GetSimulation()
+	{
+		return sim;
+	}
+	
+	// the buffer the renderer reads, call Acquire() on it once per frame
+	public TripleBuffer GetFrames()
+	{
+		return frames;
+	}
+	
+	// the adaptive SPH system, null if the simulation takes fixed steps
+	private SPHSystem Adaptive()
+	{
+		if(sim instanceof SPHSystem && ((SPHSystem) sim).GetAdaptiveTimeStep() > 0.0f)
+		{
+			return (SPHSystem) sim;
+		}
+		return null;
+	}
+	
+	// one step, or a frame of frameTime through Advance() if the system is adaptive;
+	// returns the simulated time covered
+	private float Step(float frameTime)
+	{
+		// advection writes the new positions straight into the back buffer
+		sim.SetPositionOutput(frames.GetBack());
+		SPHSystem adaptive = frameTime > 0.0f ? Adaptive() : null;
+		long start = System.nanoTime();
+		float dt;
+		if(adaptive != null)
+		{
+			// the part of a frame cut short was not simulated, the fluid falls behind
+			double dropped = adaptive.GetDroppedTime();
+			adaptive.Advance(frameTime);
+			dt = frameTime - (float)(adaptive.GetDroppedTime()-dropped);
+		}
+		else
+		{
+			sim.animation();
+			dt = sim.GetTimeStep();
+		}
+		long nanos = System.nanoTime()-start;
+		steps++;
+		simTime += dt;
+		frames.Publish(sim.GetNumParticle(), steps, simTime, sim.GetReorderCount());
+		
+		// changes settings between the steps, on this thread
+		QualityGovernor g = governor;
+		if(g != null)
+		{
+			g.Observe(nanos, dt);
+		}
+		return dt;
+	}
+	
+	// sleep for nanos, false if interrupted
+	private static boolean Sleep(long nanos)
+	{
+		try
+		{
+			Thread.sleep(nanos/1000000, (int)(nanos%1000000));
+		}
+		catch(InterruptedException e)
+		{
+			return false;
+		}
+		return true;
+	}
+	
+	public void run()
+	{
+		long next = System.nanoTime();
+		long last = next;
+		double accumulator = 0.0;
+		
+		while(running)
+		{
+			float scale = timeScale;
+			if(scale > 0.0f)
+			{
+				// simulated time owed by the wall clock since the last pass
+				long now = System.nanoTime();
+				accumulator = Math.min(accumulator + (now-last)*1e-9*scale, MAX_LAG*scale);
+				last = now;
+				next = now;
+				
+				SPHSystem adaptive = Adaptive();
+				float dt = adaptive != null ? adaptive.GetAdaptiveTimeStep() : sim.GetTimeStep();
+				if(accumulator < dt)
+				{
+					// wait until the next step is owed
+					if(!Sleep((long)((dt-accumulator)/scale*1e9)))
+					{
+						break;
+					}
+					continue;
+				}
+				
+				accumulator -= this.Step(adaptive != null ? (float) accumulator : 0.0f);
+				continue;
+			}
+			last = System.nanoTime();
+			accumulator = 0.0;
+			
+			this.Step(0.0f);
+			
+			long period = stepPeriod;
+			if(period > 0)
+			{
+				next += period;
+				long wait = next - System.nanoTime();
+				if(wait > 0)
+				{
+					if(!Sleep(wait))
+					{
+						break;
+					}
+				}
+				else
+				{
+					// fell behind, do not try to catch up with a burst of steps
+					next = System.nanoTime();
+				}
+			}
+		}
+	}
+}
@@ -0,0 +1,145 @@
+/** File:		TripleBuffer.java
+ ** Author:		Dongli Zhang
+ ** Contact:	dongli.zhang0129@gmail.com
+ **
+ ** Copyright (C) Dongli Zhang 2013
+ **
+ ** This program is free software;  you can redistribute it and/or modify
+ ** it under the terms of the GNU General Public License as published by
+ ** the Free Software Foundation; either version 2 of the License, or
+ ** (at your option) any later version.
+ **
+ ** This program is distributed in the hope that it will be useful,
+ ** but WITHOUT ANY WARRANTY;  without even the implied warranty of
+ ** MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See
+ ** the GNU General Public License for more details.
+ **
+ ** You should have received a copy of the GNU General Public License
+ ** along with this program;  if not, write to the Free Software 
+ ** Foundation, 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA
+ */
+
+
+package com.example.particlesystem;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/* Lock-free triple buffer of particle positions (x, y interleaved).
+ * The producer fills its back buffer and publishes it, the consumer picks up
+ * the most recently published one. Neither side ever waits for the other: the
+ * buffers are exchanged with a single atomic swap of the middle slot.
+ * There must be one producer thread and one consumer thread.
+ */
+public class TripleBuffer 
+{
+	private static final int INDEX_MASK = 3;
+	private static final int DIRTY = 4;  // the middle slot holds a frame the consumer has not seen
+	
+	private final FloatBuffer[] buffers = new FloatBuffer[3];
+	private final int[] count = new int[3];   // number of particles of each frame
+	private final long[] frame = new long[3]; // producer frame number of each buffer
+	private final double[] time = new double[3]; // simulated seconds of each buffer
+	private final long[] stamp = new long[3]; // System.nanoTime() of the publication of each buffer
+	private final int[] layout = new int[3];  // reorder count of the simulation at each buffer
+	
+	private final AtomicInteger middle;  // index of the shared slot plus DIRTY
+	private int back;                    // owned by the producer
+	private int front;                   // owned by the consumer
+	
+	public TripleBuffer(int numParticle)
+	{
+		for(int i=0; i<3; i++)
+		{
+			ByteBuffer b = ByteBuffer.allocateDirect(numParticle*2*4);
+			b.order(ByteOrder.nativeOrder());
+			buffers[i] = b.asFloatBuffer();
+		}
+		back = 0;
+		middle = new AtomicInteger(1);
+		front = 2;
+	}
+	
+	// producer side: the buffer to write the next frame into
+	public FloatBuffer GetBack()
+	{
+		return buffers[back];
+	}
+	
+	// producer side: make the back buffer the latest frame
+	public void Publish(int numParticle, long frameNumber)
+	{
+		Publish(numParticle, frameNumber, 0.0);
+	}
+	
+	// producer side: make the back buffer the latest frame, the state at simTime seconds
+	public void Publish(int numParticle, long frameNumber, double simTime)
+	{
+		Publish(numParticle, frameNumber, simTime, 0);
+	}
+	
+	// as above, with the slot layout the positions are in, ParticleSimulation.GetReorderCount()
+	public void Publish(int numParticle, long frameNumber, double simTime, int slotLayout)
+	{
+		count[back] = numParticle;
+		layout[back] = slotLayout;
+		frame[back] = frameNumber;
+		time[back] = simTime;
+		stamp[back] = System.nanoTime();
+		back = middle.getAndSet(back | DIRTY) & INDEX_MASK;
+	}
+	
+	// consumer side: true if Acquire() would switch to a newer frame, the front
+	// buffer stays valid until then
+	public boolean Pending()
+	{
+		return (middle.get() & DIRTY) != 0;
+	}
+	
+	// consumer side: switch to the latest published frame if there is a new one,
+	// returns false if the front buffer is still the newest
+	public boolean Acquire()
+	{
+		if((middle.get() & DIRTY) == 0)
+		{
+			return false;
+		}
+		front = middle.getAndSet(front) & INDEX_MASK;
+		return true;
+	}
+	
+	// consumer side: the positions of the frame picked up by the last Acquire()
+	public FloatBuffer GetFront()
+	{
+		return buffers[front];
+	}
+	
+	public int GetFrontCount()
+	{
+		return count[front];
+	}
+	
+	public long GetFrontFrame()
+	{
+		return frame[front];
+	}
+	
+	public double GetFrontTime()
+	{
+		return time[front];
+	}
+	
+	// System.nanoTime() when the front frame was published
+	public long GetFrontStamp()
+	{
+		return stamp[front];
+	}
+	
+	// slot layout of the front frame, frames of the same layout hold each particle in the same slot
+	public int GetFrontLayout()
+	{
+		return layout[front];
+	}
+}
@@ -0,0 +1,180 @@
+/** File:		UniformGrid.java
+ ** Author:		Dongli Zhang
+ ** Contact:	dongli.zhang0129@gmail.com
+ **
+ ** Copyright (C) Dongli Zhang 2013
+ **
+ ** This program is free software;  you can redistribute it and/or modify
+ ** it under the terms of the GNU General Public License as published by
+ ** the Free Software Foundation; either version 2 of the License, or
+ ** (at your option) any later version.
+ **
+ ** This program is distributed in the hope that it will be useful,
+ ** but WITHOUT ANY WARRANTY;  without even the implied warranty of
+ ** MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See
+ ** the GNU General Public License for more details.
+ **
+ ** You should have received a copy of the GNU General Public License
+ ** along with this program;  if not, write to the Free Software 
+ ** Foundation, 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA
+ */
+
+
+package com.example.particlesystem;
+
+/* Uniform grid built by one counting sort over the cell hash of each particle.
+ * After Build(), the slots of the particles in cell h are
+ * index[cellStart[h]] ... index[cellStart[h]+cellCount[h]-1], in ascending slot order.
+ * Nothing is allocated per frame unless the particle count grows.
+ */
+public class UniformGrid extends CellGrid
+{
+	private int gridX;         // number of cells in x
+	private int gridY;         // number of cells in y
+	private int totCell;       // total number of cells
+	
+	private int[] cursor;      // scratch insertion point of each cell
+	private int[] mortonCells; // cell hashes in Z-order, built on first use
+	
+	public UniformGrid(int x, int y, float size)
+	{
+		gridX = x;
+		gridY = y;
+		totCell = x*y;
+		cellSize = size;
+		
+		cellStart = new int[totCell];
+		cellCount = new int[totCell];
+		cursor    = new int[totCell];
+		index        = new int[0];
+		particleCell = new int[0];
+	}
+	
+	public int GetTotCell()
+	{
+		return totCell;
+	}
+	
+	// given the x and y of cell in grid system, return the hash of cell, -1 if outside
+	public int CalcCellHash(int x, int y)
+	{
+		if(x<0 || x>=gridX || y<0 || y>=gridY)
+		{
+			return -1;
+		}
+		
+		int hash = y*gridX + x;
+		if(hash >= totCell)
+		{
+			SPHLog.Error("DONGLI", "Error at computing hash");
+		}
+		
+		return hash;
+	}
+	
+	public int GetCellX(int hash)
+	{
+		return hash % gridX;
+	}
+	
+	public int GetCellY(int hash)
+	{
+		return hash / gridX;
+	}
+	
+	// counting sort all particles of ps into the cells
+	public void Build(ParticleStore ps, int num)
+	{
+		if(index.length < num)
+		{
+			index = new int[num];
+			particleCell = new int[num];
+		}
+		
+		float[] posX = ps.posX;
+		float[] posY = ps.posY;
+		
+		// count the particles of each cell
+		for(int h=0; h<totCell; h++)
+		{
+			cellCount[h] = 0;
+		}
+		for(int i=0; i<num; i++)
+		{
+			int x = (int)(posX[i]/cellSize);
+			int y = (int)(posY[i]/cellSize);
+			// particles are kept inside the world, clamp against rounding at the border
+			if(x < 0) x = 0;
+			if(x >= gridX) x = gridX-1;
+			if(y < 0) y = 0;
+			if(y >= gridY) y = gridY-1;
+			
+			int hash = y*gridX + x;
+			particleCell[i] = hash;
+			cellCount[hash]++;
+		}
+		
+		// prefix sum gives the start of each cell
+		int sum = 0;
+		for(int h=0; h<totCell; h++)
+		{
+			cellStart[h] = sum;
+			cursor[h] = sum;
+			sum += cellCount[h];
+		}
+		
+		// scatter the slots, stable so each cell stays in slot order
+		for(int i=0; i<num; i++)
+		{
+			index[cursor[particleCell[i]]++] = i;
+		}
+	}
+	
+	public float Scatter(int num)
+	{
+		if(mortonCells == null)
+		{
+			BuildMortonCells();
+		}
+		return ScatterOf(mortonCells, totCell, num);
+	}
+	
+	public void MortonOrder(int[] order)
+	{
+		if(mortonCells == null)
+		{
+			BuildMortonCells();
+		}
+		OrderOf(mortonCells, totCell, order);
+	}
+	
+	// the cell arrays cover the whole world, empty or not
+	public long GetMemoryBytes()
+	{
+		long cells = 3L*totCell + (mortonCells == null ? 0 : mortonCells.length);
+		return 4L*(cells + index.length + particleCell.length);
+	}
+	
+	// walk the Z-order curve of the enclosing power of two square and keep the cells inside the grid
+	private void BuildMortonCells()
+	{
+		int side = 1;
+		while(side < gridX || side < gridY)
+		{
+			side <<= 1;
+		}
+		
+		mortonCells = new int[totCell];
+		int n = 0;
+		long codes = (long)side*side;
+		for(long code=0; code<codes; code++)
+		{
+			int x = Compact((int)code);
+			int y = Compact((int)(code >>> 1));
+			if(x < gridX && y < gridY)
+			{
+				mortonCells[n++] = y*gridX + x;
+			}
+		}
+	}
+}
@@ -0,0 +1,227 @@
+/** File:		WorkerPool.java
+ ** Author:		Dongli Zhang
+ ** Contact:	dongli.zhang0129@gmail.com
+ **
+ ** Copyright (C) Dongli Zhang 2013
+ **
+ ** This program is free software;  you can redistribute it and/or modify
+ ** it under the terms of the GNU General Public License as published by
+ ** the Free Software Foundation; either version 2 of the License, or
+ ** (at your option) any later version.
+ **
+ ** This program is distributed in the hope that it will be useful,
+ ** but WITHOUT ANY WARRANTY;  without even the implied warranty of
+ ** MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See
+ ** the GNU General Public License for more details.
+ **
+ ** You should have received a copy of the GNU General Public License
+ ** along with this program;  if not, write to the Free Software 
+ ** Foundation, 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA
+ */
+
+
+package com.example.particlesystem;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/* Fixed pool of worker threads for the per particle phases.
+ * Run() splits [0, n) into chunks that the workers and the calling thread
+ * grab from a shared counter, and returns only after every chunk is done,
+ * so consecutive calls are separated by a barrier. Nothing is allocated per call.
+ */
+public class WorkerPool 
+{
+	// a phase over a range of particles, worker is in [0, GetNumThreads())
+	public interface RangeTask
+	{
+		void Run(int begin, int end, int worker);
+	}
+	
+	private static final int MIN_CHUNK = 64;  // smallest range handed to one thread
+	
+	private final int numThreads;             // worker threads plus the calling thread
+	private final Thread[] workers;
+	
+	private final Object startLock = new Object();
+	private final Object doneLock  = new Object();
+	private int generation;                   // bumped for each Run(), guarded by startLock
+	private boolean shutdown;                 // guarded by startLock
+	
+	private RangeTask task;                   // published through startLock
+	private int total;
+	private int chunk;
+	private final AtomicInteger next    = new AtomicInteger();
+	private final AtomicInteger running = new AtomicInteger();
+	private volatile Throwable failure;
+	
+	public WorkerPool(int threads)
+	{
+		numThreads = threads < 1 ? 1 : threads;
+		workers = new Thread[numThreads-1];
+		
+		for(int i=0; i<workers.length; i++)
+		{
+			final int worker = i+1;
+			workers[i] = new Thread(new Runnable() {
+				public void run()
+				{
+					WorkerLoop(worker);
+				}
+			}, "SPHWorker-"+worker);
+			workers[i].setDaemon(true);
+			workers[i].start();
+		}
+	}
+	
+	public int GetNumThreads()
+	{
+		return numThreads;
+	}
+	
+	// the worker threads, not including the calling thread
+	public Thread[] GetWorkers()
+	{
+		Thread[] t = new Thread[workers.length];
+		System.arraycopy(workers, 0, t, 0, workers.length);
+		return t;
+	}
+	
+	// run t over [0, n) on all threads and wait until it is finished
+	public void Run(RangeTask t, int n)
+	{
+		if(numThreads == 1 || n <= MIN_CHUNK)
+		{
+			t.Run(0, n, 0);
+			return;
+		}
+		
+		int c = n/(numThreads*4);
+		
+		task  = t;
+		total = n;
+		chunk = c < MIN_CHUNK ? MIN_CHUNK : c;
+		next.set(0);
+		running.set(workers.length);
+		failure = null;
+		
+		synchronized(startLock)
+		{
+			generation++;
+			startLock.notifyAll();
+		}
+		
+		try
+		{
+			Work(0);
+		}
+		catch(Throwable e)
+		{
+			failure = e;
+			next.set(total);
+		}
+		
+		// barrier, wait for the workers to drain their chunks. The wait does not give
+		// in to an interrupt, with the flag set again it would return at once and spin,
+		// so the interrupt is kept and restored after the barrier.
+		boolean interrupted = false;
+		synchronized(doneLock)
+		{
+			while(running.get() > 0)
+			{
+				try
+				{
+					doneLock.wait();
+				}
+				catch(InterruptedException e)
+				{
+					interrupted = true;
+				}
+			}
+		}
+		task = null;
+		if(interrupted)
+		{
+			Thread.currentThread().interrupt();
+		}
+		
+		if(failure != null)
+		{
+			throw new RuntimeException("SPH worker failed", failure);
+		}
+	}
+	
+	// stop all worker threads, the pool can not be used afterwards
+	public void Shutdown()
+	{
+		synchronized(startLock)
+		{
+			shutdown = true;
+			startLock.notifyAll();
+		}
+	}
+	
+	private void Work(int worker)
+	{
+		RangeTask t = task;
+		int n = total;
+		int c = chunk;
+		
+		while(true)
+		{
+			int begin = next.getAndAdd(c);
+			if(begin >= n)
+			{
+				break;
+			}
+			int end = begin+c < n ? begin+c : n;
+			t.Run(begin, end, worker);
+		}
+	}
+	
+	private void WorkerLoop(int worker)
+	{
+		int seen = 0;
+		
+		while(true)
+		{
+			synchronized(startLock)
+			{
+				while(generation == seen && !shutdown)
+				{
+					try
+					{
+						startLock.wait();
+					}
+					catch(InterruptedException e)
+					{
+						return;
+					}
+				}
+				if(shutdown)
+				{
+					return;
+				}
+				seen = generation;
+			}
+			
+			try
+			{
+				Work(worker);
+			}
+			catch(Throwable e)
+			{
+				failure = e;
+				// let the other threads finish quickly
+				next.set(total);
+			}
+			
+			if(running.decrementAndGet() == 0)
+			{
+				synchronized(doneLock)
+				{
+					doneLock.notifyAll();
+				}
+			}
+		}
+	}
+}